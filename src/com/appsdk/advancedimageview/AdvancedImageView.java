@@ -1,30 +1,43 @@
 package com.appsdk.advancedimageview;
 
 import com.appsdk.advancedimageview.listener.AdvancedImageViewLoadListener;
+import com.appsdk.advancedimageview.listener.AdvancedImageViewLoadResultListener;
 import com.appsdk.advancedimageview.util.AssetsManager;
 import com.appsdk.advancedimageview.util.AsyncLocalImageLoader;
 import com.appsdk.advancedimageview.util.AsyncNetImageLoader;
 import com.appsdk.advancedimageview.util.BitmapCache;
-import com.appsdk.advancedimageview.util.AsyncLocalImageLoader.LocalImageCallback;
-import com.appsdk.advancedimageview.util.AsyncNetImageLoader.ImageCallback;
+import com.appsdk.advancedimageview.util.AsyncLocalImageLoader.LocalImageResultCallback;
+import com.appsdk.advancedimageview.util.AsyncNetImageLoader.ImageResultCallback;
 import com.appsdk.advancedimageview.util.DataCleanManager;
+import com.appsdk.advancedimageview.util.ImageDiskCache;
+import com.appsdk.advancedimageview.util.ImageLoadRequest;
+import com.appsdk.advancedimageview.util.ImageLoadResult;
+import com.appsdk.advancedimageview.util.LatencyHistogram;
+import com.appsdk.advancedimageview.util.TiledBitmapDrawable;
+import com.appsdk.advancedimageview.util.TiledImageDecoder;
+import com.appsdk.advancedimageview.util.VariantKey;
 import com.appsdk.advancedimageview.util.mConfig;
 
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
 import android.graphics.PorterDuff.Mode;
+import android.graphics.Shader;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.os.Environment;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 /**
@@ -37,6 +50,27 @@ public class AdvancedImageView extends ImageView {
 
 	private static String TAG = "AdvancedImageView";
 
+	/**
+	 * Rounded corners drawn through a BitmapShader of the displayed bitmap,
+	 * no offscreen layer per frame. The default.
+	 */
+	public static final int ROUND_MODE_SHADER = 0;
+	/**
+	 * Rounded corners drawn once into a bitmap kept in BitmapCache, each
+	 * frame only draws that bitmap
+	 */
+	public static final int ROUND_MODE_BAKED = 1;
+	/**
+	 * Rounded corners masked through two offscreen layers per frame, also
+	 * used when the other modes can't draw the image: backgrounds, drawables
+	 * that are not bitmaps, tiled images and devices before API 16
+	 */
+	public static final int ROUND_MODE_LAYER = 2;
+
+	/** Durations of draw() of rounded images, per round mode */
+	private static final LatencyHistogram[] mDrawHistograms = { new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram() };
+	private static volatile boolean mDrawTimingEnabled = false;
+
 	private static Context mContext;
 
 	private Drawable mDefaultDrawable = null;
@@ -46,16 +80,26 @@ public class AdvancedImageView extends ImageView {
 	private Drawable mErrorDrawable = null;
 	private int mErrorResId = 0;
 	private AdvancedImageViewLoadListener mListener = null;
+	private AdvancedImageViewLoadResultListener mResultListener = null;
 	private boolean mFitHeight = false;
 	private boolean mFitWidth = false;
 	private boolean mCenterCrop = false;
 	private int mThumbnailWidth = 0;
 	private float mAspectRatio = 0.0f;
 	private int mRoundRadius = 0;
+	private int mRevalidation = AsyncNetImageLoader.REVALIDATE_NEVER;
+	private int mRoundMode = ROUND_MODE_SHADER;
 	private long mImageFlag;
 
 	private AsyncLocalImageLoader mLocalImageLoader;
 	private AsyncNetImageLoader mNetImageLoader;
+	private ImageLoadRequest mLoadRequest;
+	private String mLoadSource;
+	private boolean mLoadSourceIsLocal;
+	private boolean mLoadCancelledByDetach = false;
+	/** The loaded bitmap displayed, released to BitmapCache once replaced */
+	private Bitmap mDisplayedBitmap;
+	private TiledImageDecoder mTiledDecoder;
 
 	public AdvancedImageView(Context context) {
 		this(context, null);
@@ -95,6 +139,8 @@ public class AdvancedImageView extends ImageView {
 				Log.i(TAG, "Set error image");
 			}
 			mRoundRadius = attrs.getAttributeIntValue(mConfig.XMLNS, "roundRadius", 0);
+			mRevalidation = attrs.getAttributeIntValue(mConfig.XMLNS, "revalidation", AsyncNetImageLoader.REVALIDATE_NEVER);
+			mRoundMode = attrs.getAttributeIntValue(mConfig.XMLNS, "roundMode", ROUND_MODE_SHADER);
 			Log.i(TAG, "fitWidth:" + mFitWidth + "; fitHeight:" + mFitHeight + "; centerCrop:" + mCenterCrop + "; thumbnailWidth:" + mThumbnailWidth + "; mAspectRatio:" + mAspectRatio + "; mRoundRadius:" + mRoundRadius);
 			initRoundRadius();
 		}
@@ -169,6 +215,16 @@ public class AdvancedImageView extends ImageView {
 		mListener = listener;
 	}
 
+	/**
+	 * Set AdvancedImageViewLoadResultListener to get how each image was
+	 * loaded, in addition to AdvancedImageViewLoadListener
+	 * 
+	 * @param listener
+	 */
+	public void setOnLoadResultListener(AdvancedImageViewLoadResultListener listener) {
+		mResultListener = listener;
+	}
+
 	/**
 	 * Set fitheight mode, the height is fixed Notice: fitHeight, fitWidth,
 	 * centerCrop, aspectRatio can only set one attribute
@@ -229,6 +285,56 @@ public class AdvancedImageView extends ImageView {
 	public void setRondRadius(int radius) {
 		mRoundRadius = radius;
 		initRoundRadius();
+		updateBakedBitmap();
+	}
+
+	/**
+	 * Set how rounded corners are drawn
+	 * 
+	 * @param mode
+	 *            ROUND_MODE_SHADER, ROUND_MODE_BAKED or ROUND_MODE_LAYER
+	 */
+	public void setRoundMode(int mode) {
+		mRoundMode = mode;
+		updateBakedBitmap();
+		invalidate();
+	}
+
+	/**
+	 * Records the duration of each draw of a rounded image in the histogram
+	 * of the round mode it was drawn in, to compare the modes on a device.
+	 * With hardware acceleration the layers of ROUND_MODE_LAYER are drawn on
+	 * the render thread, compare the modes with a software layer or with the
+	 * frame times of the device.
+	 */
+	public static void setDrawTimingEnabled(boolean enabled) {
+		mDrawTimingEnabled = enabled;
+	}
+
+	/**
+	 * Returns the durations of draw() of the rounded images drawn in
+	 * {@code mode}, in microseconds, see {@link #setDrawTimingEnabled}
+	 */
+	public static LatencyHistogram getDrawLatencyHistogram(int mode) {
+		return mDrawHistograms[mode];
+	}
+
+	/** Forgets the draw durations recorded so far */
+	public static void resetDrawLatencyHistograms() {
+		for (LatencyHistogram histogram : mDrawHistograms) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * Set when a net image cached on the disk is checked with the server
+	 * 
+	 * @param revalidation
+	 *            AsyncNetImageLoader.REVALIDATE_NEVER, REVALIDATE_WHEN_STALE
+	 *            or REVALIDATE_ALWAYS
+	 */
+	public void setRevalidation(int revalidation) {
+		mRevalidation = revalidation;
 	}
 
 	/**
@@ -237,6 +343,7 @@ public class AdvancedImageView extends ImageView {
 	 * @param filePath
 	 */
 	public void setLocalImage(String filePath) {
+		cancelLoad();
 		mImageFlag = System.currentTimeMillis();
 		mLocalImageLoader = new AsyncLocalImageLoader(mContext, mThumbnailWidth);
 		if (filePath == null || filePath.length() < 1) {
@@ -249,37 +356,72 @@ public class AdvancedImageView extends ImageView {
 				setImageDrawable(mLoadingDrawable);
 			else
 				setImageResource(mLoadingResId);
-			mLocalImageLoader.loadDrawable(filePath, mImageFlag, new LocalImageCallback() {
+			mLoadSource = filePath;
+			mLoadSourceIsLocal = true;
+			mLoadRequest = mLocalImageLoader.loadDrawable(filePath, mImageFlag, getTargetWidth(), getTargetHeight(), getLoadPriority(), new LocalImageResultCallback() {
+				@Override
+				public void onLoaded(Bitmap bitmap, long imageFlag, ImageLoadResult result) {
+					onImageLoaded(bitmap, imageFlag, result);
+				}
+
+				@Override
+				public void onError(Exception e, long imageFlag, ImageLoadResult result) {
+					onImageError(imageFlag, result);
+				}
+
 				@Override
 				public void onLoaded(Bitmap bitmap, long imageFlag) {
-					if (imageFlag == mImageFlag) {
-						setImageBitmap(bitmap);
-					}
-					if (mListener != null)
-						mListener.onFinish(AdvancedImageView.this, true, bitmap);
+					onImageLoaded(bitmap, imageFlag, null);
 				}
 
 				@Override
 				public void onError(Exception e, long imageFlag) {
-					if (mErrorDrawable != null) {
-						if (imageFlag == mImageFlag) {
-							setImageDrawable(mErrorDrawable);
-						}
-						if (mListener != null)
-							mListener.onFinish(AdvancedImageView.this, true, ((BitmapDrawable) mErrorDrawable).getBitmap());
-					} else {
-						if (imageFlag == mImageFlag) {
-							setImageResource(mErrorResId);
-						}
-						Bitmap bitmap = mErrorResId > 0 ? ((BitmapDrawable) getResources().getDrawable(mErrorResId)).getBitmap() : null;
-						if (mListener != null)
-							mListener.onFinish(AdvancedImageView.this, true, bitmap);
-					}
+					onImageError(imageFlag, null);
 				}
 			});
 		}
 	}
 
+	/**
+	 * Set a very large image from filePath in local storage, in tiled mode:
+	 * only a preview of the image is decoded whole, the parts visible at the
+	 * current zoom are decoded by tiles at the needed resolution. Zoom with
+	 * ScaleType.MATRIX and setImageMatrix. Falls back to setLocalImage if the
+	 * image can't be decoded by tiles (before API 10, unsupported format).
+	 * 
+	 * @param filePath
+	 */
+	public void setTiledImage(final String filePath) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1 || filePath == null || filePath.length() < 1) {
+			setLocalImage(filePath);
+			return;
+		}
+		cancelLoad();
+		mImageFlag = System.currentTimeMillis();
+		final long imageFlag = mImageFlag;
+		if (mLoadingDrawable != null)
+			setImageDrawable(mLoadingDrawable);
+		else
+			setImageResource(mLoadingResId);
+		mTiledDecoder = new TiledImageDecoder(getContext(), filePath);
+		mTiledDecoder.open(getTargetWidth(), getTargetHeight(), new TiledImageDecoder.Callback() {
+			@Override
+			public void onPreviewLoaded(TiledBitmapDrawable drawable) {
+				if (imageFlag != mImageFlag)
+					return;
+				setImageDrawable(drawable);
+				if (mListener != null)
+					mListener.onFinish(AdvancedImageView.this, true, drawable.getBitmap());
+			}
+
+			@Override
+			public void onError(Exception e) {
+				if (imageFlag == mImageFlag)
+					setLocalImage(filePath);
+			}
+		});
+	}
+
 	/**
 	 * Set image from url on internet <br>
 	 * Notice: Must set <uses-permission
@@ -288,8 +430,10 @@ public class AdvancedImageView extends ImageView {
 	 * @param url
 	 */
 	public void setNetImage(String url) {
+		cancelLoad();
 		mImageFlag = System.currentTimeMillis();
 		mNetImageLoader = new AsyncNetImageLoader(mContext, mThumbnailWidth);
+		mNetImageLoader.setRevalidation(mRevalidation);
 		if (url == null || url.length() < 1 || mNetImageLoader == null) {
 			if (mDefaultDrawable != null)
 				setImageDrawable(mDefaultDrawable);
@@ -300,47 +444,212 @@ public class AdvancedImageView extends ImageView {
 				setImageDrawable(mLoadingDrawable);
 			else
 				setImageResource(mLoadingResId);
-			mNetImageLoader.loadDrawable(url, mImageFlag, new ImageCallback() {
+			mLoadSource = url;
+			mLoadSourceIsLocal = false;
+			mLoadRequest = mNetImageLoader.loadDrawable(url, mImageFlag, getTargetWidth(), getTargetHeight(), getLoadPriority(), new ImageResultCallback() {
 				@Override
-				public void onError(Exception e, long imageFlag) {
-					if (mErrorDrawable != null) {
-						if (imageFlag == mImageFlag) {
-							setImageDrawable(mErrorDrawable);
-						}
-						if (mListener != null)
-							mListener.onFinish(AdvancedImageView.this, true, ((BitmapDrawable) mErrorDrawable).getBitmap());
-					} else {
-						if (imageFlag == mImageFlag) {
-							setImageResource(mErrorResId);
-						}
-						Bitmap bitmap = mErrorResId > 0 ? ((BitmapDrawable) getResources().getDrawable(mErrorResId)).getBitmap() : null;
-						if (mListener != null)
-							mListener.onFinish(AdvancedImageView.this, true, bitmap);
-					}
+				public void onLoaded(Bitmap bitmap, long imageFlag, ImageLoadResult result) {
+					onImageLoaded(bitmap, imageFlag, result);
+				}
+
+				@Override
+				public void onError(Exception e, long imageFlag, ImageLoadResult result) {
+					onImageError(imageFlag, result);
 				}
 
 				@Override
 				public void onLoaded(Bitmap bitmap, long imageFlag) {
-					if (imageFlag == mImageFlag) {
-						setImageBitmap(bitmap);
-					}
-					if (mListener != null)
-						mListener.onFinish(AdvancedImageView.this, true, bitmap);
+					onImageLoaded(bitmap, imageFlag, null);
+				}
+
+				@Override
+				public void onError(Exception e, long imageFlag) {
+					onImageError(imageFlag, null);
 				}
 			});
 		}
 	}
 
+	private void onImageLoaded(Bitmap bitmap, long imageFlag, ImageLoadResult result) {
+		if (imageFlag == mImageFlag) {
+			mLoadRequest = null;
+			setLoadedBitmap(bitmap);
+		} else {
+			BitmapCache.getInstance(getContext()).releaseBitmap(bitmap);
+		}
+		if (mListener != null)
+			mListener.onFinish(this, true, bitmap);
+		if (mResultListener != null && result != null)
+			mResultListener.onFinish(this, result, bitmap);
+	}
+
+	/** Shows the error image, it is passed to the listeners */
+	private void onImageError(long imageFlag, ImageLoadResult result) {
+		Bitmap bitmap;
+		if (mErrorDrawable != null) {
+			if (imageFlag == mImageFlag) {
+				mLoadRequest = null;
+				setImageDrawable(mErrorDrawable);
+			}
+			bitmap = ((BitmapDrawable) mErrorDrawable).getBitmap();
+		} else {
+			if (imageFlag == mImageFlag) {
+				mLoadRequest = null;
+				setImageResource(mErrorResId);
+			}
+			bitmap = mErrorResId > 0 ? ((BitmapDrawable) getResources().getDrawable(mErrorResId)).getBitmap() : null;
+		}
+		if (mListener != null)
+			mListener.onFinish(this, false, bitmap);
+		if (mResultListener != null && result != null)
+			mResultListener.onFinish(this, result, bitmap);
+	}
+
 	/**
 	 * Clear displayed image, recover default image
 	 */
 	public void clear() {
+		cancelLoad();
 		if (mDefaultDrawable != null)
 			setImageDrawable(mDefaultDrawable);
 		else
 			setImageResource(mDefaultResId);
 	}
 
+	/**
+	 * Width the image should be decoded at: the laid out width, or the exact
+	 * width from the layout params, or 0 if unknown or if the width follows
+	 * the image (fitHeight)
+	 */
+	private int getTargetWidth() {
+		if (mFitHeight)
+			return 0;
+		if (getWidth() > 0)
+			return getWidth();
+		ViewGroup.LayoutParams lp = getLayoutParams();
+		return lp != null && lp.width > 0 ? lp.width : 0;
+	}
+
+	/**
+	 * Height the image should be decoded at: the laid out height, or the
+	 * exact height from the layout params, or 0 if unknown or if the height
+	 * follows the image (fitWidth, aspectRatio)
+	 */
+	private int getTargetHeight() {
+		if (mFitWidth || mAspectRatio != 0)
+			return 0;
+		if (getHeight() > 0)
+			return getHeight();
+		ViewGroup.LayoutParams lp = getLayoutParams();
+		return lp != null && lp.height > 0 ? lp.height : 0;
+	}
+
+	/**
+	 * Display a bitmap delivered by a loader, the bitmap displayed before is
+	 * released so it can be reused
+	 */
+	private void setLoadedBitmap(Bitmap bitmap) {
+		releaseDisplayedBitmap();
+		// set before the drawable so the bake knows the bitmap of mLoadSource
+		mDisplayedBitmap = bitmap;
+		super.setImageDrawable(new BitmapDrawable(getResources(), bitmap));
+		updateBakedBitmap();
+	}
+
+	private void releaseDisplayedBitmap() {
+		if (mDisplayedBitmap != null) {
+			BitmapCache.getInstance(getContext()).releaseBitmap(mDisplayedBitmap);
+			mDisplayedBitmap = null;
+		}
+		releaseBakedBitmap();
+	}
+
+	@Override
+	public void setImageDrawable(Drawable drawable) {
+		super.setImageDrawable(drawable);
+		releaseDisplayedBitmap();
+		updateBakedBitmap();
+	}
+
+	@Override
+	public void setImageResource(int resId) {
+		super.setImageResource(resId);
+		releaseDisplayedBitmap();
+		updateBakedBitmap();
+	}
+
+	@Override
+	public void setScaleType(ScaleType scaleType) {
+		super.setScaleType(scaleType);
+		updateBakedBitmap();
+	}
+
+	@Override
+	public void setImageMatrix(Matrix matrix) {
+		super.setImageMatrix(matrix);
+		updateBakedBitmap();
+	}
+
+	@Override
+	public void setPadding(int left, int top, int right, int bottom) {
+		super.setPadding(left, top, right, bottom);
+		updateBakedBitmap();
+	}
+
+	/**
+	 * A view bound before it is attached, like a row prepared ahead of a
+	 * scroll, only prefetches until it is attached
+	 */
+	private int getLoadPriority() {
+		return getWindowToken() != null ? ImageLoadRequest.PRIORITY_VISIBLE : ImageLoadRequest.PRIORITY_PREFETCH;
+	}
+
+	/**
+	 * Cancel the load in progress, its download and decode are stopped unless
+	 * another view waits for the same image
+	 */
+	private void cancelLoad() {
+		if (mLoadRequest != null) {
+			mLoadRequest.cancel();
+			mLoadRequest = null;
+		}
+		if (mTiledDecoder != null) {
+			mTiledDecoder.recycle();
+			mTiledDecoder = null;
+		}
+		mLoadSource = null;
+		mLoadCancelledByDetach = false;
+	}
+
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		if (mLoadRequest != null)
+			mLoadRequest.setPriority(ImageLoadRequest.PRIORITY_VISIBLE);
+		if (mLoadCancelledByDetach) {
+			// resume the load cancelled by onDetachedFromWindow
+			mLoadCancelledByDetach = false;
+			if (mLoadSourceIsLocal)
+				setLocalImage(mLoadSource);
+			else
+				setNetImage(mLoadSource);
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		// tiles are decoded again when needed
+		if (mTiledDecoder != null)
+			mTiledDecoder.evictTiles();
+		if (mLoadRequest != null) {
+			String source = mLoadSource;
+			cancelLoad();
+			mLoadSource = source;
+			mLoadCancelledByDetach = true;
+		}
+	}
+
 	/**
 	 * Clear all the cache of AdvancedImageView, call this function before
 	 * destory application
@@ -348,6 +657,7 @@ public class AdvancedImageView extends ImageView {
 	public static void destory() {
 		try {
 			BitmapCache.getInstance(mContext).destroy();
+			ImageDiskCache.destroy();
 			DataCleanManager.cleanApplicationData(mContext, Environment.getDownloadCacheDirectory().getAbsolutePath() + "/image/");
 			String state = Environment.getExternalStorageState();
 			if (state.equals(Environment.MEDIA_MOUNTED)) {
@@ -387,19 +697,171 @@ public class AdvancedImageView extends ImageView {
 		int w = getWidth();
 		int h = getHeight();
 		roundRect.set(0, 0, w, h);
+		// the bounds of the image were configured with the new frame
+		if (changed)
+			updateBakedBitmap();
+	}
+
+	private final Paint shaderPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+	private final Matrix shaderMatrix = new Matrix();
+	private final RectF bitmapRect = new RectF();
+	private final RectF drawRect = new RectF();
+	/** Bitmap of the current shader, the shader is only created again for a new bitmap */
+	private Bitmap shaderBitmap;
+	/** The rounded image drawn in ROUND_MODE_BAKED, from bakedSource */
+	private Bitmap bakedBitmap;
+	private Bitmap bakedSource;
+	private VariantKey bakedKey;
+	private int bakedLeft;
+	private int bakedTop;
+	private final float[] matrixValues = new float[9];
+
+	/**
+	 * Whether the rounded image can be drawn without layers: a bitmap
+	 * drawable alone, and the draw matrix of ImageView (API 16)
+	 */
+	private boolean canDrawRoundedBitmap() {
+		if (mRoundMode == ROUND_MODE_LAYER || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || getBackground() != null)
+			return false;
+		Drawable drawable = getDrawable();
+		if (!(drawable instanceof BitmapDrawable) || drawable instanceof TiledBitmapDrawable)
+			return false;
+		Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+		return bitmap != null && !bitmap.isRecycled();
+	}
+
+	/**
+	 * Maps the bitmap to the view like ImageView.onDraw does and sets
+	 * drawRect to the visible part of the image
+	 */
+	private void computeShaderMatrix(BitmapDrawable drawable, Bitmap bitmap) {
+		bitmapRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+		drawRect.set(drawable.getBounds());
+		shaderMatrix.setRectToRect(bitmapRect, drawRect, Matrix.ScaleToFit.FILL);
+		shaderMatrix.postConcat(getImageMatrix());
+		shaderMatrix.postTranslate(getPaddingLeft(), getPaddingTop());
+		drawRect.set(bitmapRect);
+		shaderMatrix.mapRect(drawRect);
+		if (!drawRect.intersect(getPaddingLeft(), getPaddingTop(), getWidth() - getPaddingRight(), getHeight() - getPaddingBottom()))
+			drawRect.setEmpty();
+	}
+
+	private void drawRoundedBitmap(Canvas canvas) {
+		BitmapDrawable drawable = (BitmapDrawable) getDrawable();
+		Bitmap bitmap = drawable.getBitmap();
+		computeShaderMatrix(drawable, bitmap);
+		if (drawRect.isEmpty())
+			return;
+		if (bitmap != shaderBitmap) {
+			shaderBitmap = bitmap;
+			shaderPaint.setShader(new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+		}
+		shaderPaint.getShader().setLocalMatrix(shaderMatrix);
+		canvas.drawRoundRect(drawRect, rectadius, rectadius, shaderPaint);
+	}
+
+	/** Whether the baked rounded image is the one to draw now */
+	private boolean canDrawBakedBitmap() {
+		return mRoundMode == ROUND_MODE_BAKED && bakedBitmap != null && !bakedBitmap.isRecycled() && bakedSource == ((BitmapDrawable) getDrawable()).getBitmap();
+	}
+
+	/**
+	 * Bakes the rounded image again if the bitmap, the bounds, the scale
+	 * type or the image matrix changed, so onDraw only draws it
+	 */
+	private void updateBakedBitmap() {
+		if (mRoundMode != ROUND_MODE_BAKED || mRoundRadius < 1 || getWidth() == 0 || !canDrawRoundedBitmap()) {
+			releaseBakedBitmap();
+			return;
+		}
+		BitmapDrawable drawable = (BitmapDrawable) getDrawable();
+		Bitmap bitmap = drawable.getBitmap();
+		computeShaderMatrix(drawable, bitmap);
+		int width = Math.round(drawRect.width());
+		int height = Math.round(drawRect.height());
+		if (width <= 0 || height <= 0) {
+			releaseBakedBitmap();
+			return;
+		}
+		// the part of the image shown and its scale, relative to drawRect
+		Matrix matrix = new Matrix(shaderMatrix);
+		matrix.postTranslate(-drawRect.left, -drawRect.top);
+		matrix.getValues(matrixValues);
+		StringBuilder transformation = new StringBuilder("rounded:").append(rectadius).append(':').append(getScaleType());
+		for (float value : matrixValues) {
+			transformation.append(',').append(value);
+		}
+		// only a delivered bitmap is known by its source, placeholders and
+		// bitmaps set by the app are baked without the cache
+		boolean cacheable = bitmap == mDisplayedBitmap && mLoadSource != null;
+		VariantKey key = new VariantKey(cacheable ? mLoadSource : "", 0, width, height, transformation.toString());
+		bakedLeft = Math.round(drawRect.left);
+		bakedTop = Math.round(drawRect.top);
+		if (bakedBitmap != null && bitmap == bakedSource && key.equals(bakedKey))
+			return;
+		releaseBakedBitmap();
+		BitmapCache cache = BitmapCache.getInstance(getContext());
+		// only the exact size, a downscaled copy would shrink the corners
+		Bitmap baked = cacheable ? cache.peekMemCache(key.getKey()) : null;
+		if (baked == null) {
+			try {
+				baked = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			} catch (OutOfMemoryError e) {
+				return;
+			}
+			Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+			BitmapShader shader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+			shader.setLocalMatrix(matrix);
+			paint.setShader(shader);
+			new Canvas(baked).drawRoundRect(new RectF(0, 0, width, height), rectadius, rectadius, paint);
+			if (cacheable)
+				cache.addVariantToMemCache(key, 0, baked);
+		}
+		// keep it out of the pool while displayed
+		if (cacheable)
+			cache.acquireBitmap(baked);
+		bakedBitmap = baked;
+		bakedSource = bitmap;
+		bakedKey = key;
+	}
+
+	private void releaseBakedBitmap() {
+		if (bakedBitmap != null) {
+			BitmapCache.getInstance(getContext()).releaseBitmap(bakedBitmap);
+			bakedBitmap = null;
+			bakedSource = null;
+			bakedKey = null;
+		}
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (mRoundRadius < 1 || !canDrawRoundedBitmap())
+			super.onDraw(canvas);
+		else if (canDrawBakedBitmap())
+			canvas.drawBitmap(bakedBitmap, bakedLeft, bakedTop, null);
+		else
+			drawRoundedBitmap(canvas);
 	}
 
 	@Override
 	public void draw(Canvas canvas) {
-		if (mRoundRadius < 1) {
+		long start = mDrawTimingEnabled && mRoundRadius >= 1 ? System.nanoTime() : 0;
+		int mode;
+		if (mRoundRadius < 1 || canDrawRoundedBitmap()) {
+			// rounded bitmaps are drawn by onDraw
+			mode = start != 0 && canDrawBakedBitmap() ? ROUND_MODE_BAKED : ROUND_MODE_SHADER;
 			super.draw(canvas);
 		} else {
+			mode = ROUND_MODE_LAYER;
 			canvas.saveLayer(roundRect, zonePaint, Canvas.ALL_SAVE_FLAG);
 			canvas.drawRoundRect(roundRect, rectadius, rectadius, zonePaint);
 			canvas.saveLayer(roundRect, maskPaint, Canvas.ALL_SAVE_FLAG);
 			super.draw(canvas);
 			canvas.restore();
 		}
+		if (start != 0)
+			mDrawHistograms[mode].record((System.nanoTime() - start) / 1000);
 	}
 
 	@Override
@@ -10,10 +10,12 @@ import com.appsdk.advancedimageview.AdvancedImageView;
 public interface AdvancedImageViewLoadListener {
 	/**
 	 * Listen AdvancedImageView load event, when image load finish, this event
-	 * is triggered
+	 * is triggered. The bitmap may be reused for another image once the view
+	 * doesn't display it anymore, don't keep a reference to it.
 	 * 
 	 * @param view
 	 * @param result
+	 *            false if the load failed, the bitmap is then the error image
 	 * @param bitmap
 	 */
 	void onFinish(AdvancedImageView view, boolean result, Bitmap bitmap);
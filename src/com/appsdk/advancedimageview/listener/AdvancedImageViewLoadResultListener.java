@@ -0,0 +1,23 @@
+package com.appsdk.advancedimageview.listener;
+
+import android.graphics.Bitmap;
+
+import com.appsdk.advancedimageview.AdvancedImageView;
+import com.appsdk.advancedimageview.util.ImageLoadResult;
+
+/**
+ * Get onFinish callback with how the image was loaded
+ */
+public interface AdvancedImageViewLoadResultListener {
+	/**
+	 * Listen AdvancedImageView load event with its result: where the image
+	 * came from, the bytes read, the decoded size and the time spent in each
+	 * stage. Not triggered for the preview of a tiled image.
+	 * 
+	 * @param view
+	 * @param result
+	 * @param bitmap
+	 *            the loaded bitmap, or the error image if the load failed
+	 */
+	void onFinish(AdvancedImageView view, ImageLoadResult result, Bitmap bitmap);
+}
@@ -1,9 +1,10 @@
 package com.appsdk.advancedimageview.util;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -11,7 +12,6 @@ import java.util.concurrent.TimeUnit;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
 import android.media.ThumbnailUtils;
 import android.os.Handler;
 import android.os.Looper;
@@ -23,7 +23,9 @@ public class AsyncLocalImageLoader {
 	private static final boolean LOG_ENABLED = false;
 
 	private static Context mContext;
-	private static int mThumbnailWidth;
+	private int mThumbnailWidth;
+	private static final InFlightTasks<LoadImageTask> mInFlightTasks = new InFlightTasks<LoadImageTask>();
+	/** Own pool of this loader, or null to use the shared decode pool */
 	private ThreadPoolExecutor mPoolExecutor;
 	private Handler mMainThreadHandler;
 
@@ -31,131 +33,237 @@ public class AsyncLocalImageLoader {
 		this(context, 0);
 	}
 
+	/**
+	 * Creates a loader running on the decode pool shared by every loader, see
+	 * {@link ImageLoaderEngine}
+	 */
 	public AsyncLocalImageLoader(Context context, int thumbnailWidth) {
-		this(context, thumbnailWidth, 5, 20);
+		mContext = context;
+		mThumbnailWidth = thumbnailWidth;
+		mPoolExecutor = null;
+		mMainThreadHandler = ImageLoaderEngine.getInstance().getMainThreadHandler();
 	}
 
 	public AsyncLocalImageLoader(Context context, int thumbnailWidth, int maxPoolSize, int queueSize) {
 		this(context, thumbnailWidth, 2, maxPoolSize, 3, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize), new ThreadPoolExecutor.DiscardOldestPolicy());
 	}
 
+	/**
+	 * Creates a loader with its own thread pool. Call {@link #shutdown()} when
+	 * the loader is no longer used.
+	 */
 	public AsyncLocalImageLoader(Context context, int thumbnailWidth, int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, BlockingQueue<Runnable> workQueue, RejectedExecutionHandler handler) {
 		mContext = context;
 		mThumbnailWidth = thumbnailWidth;
-		mPoolExecutor = new ThreadPoolExecutor(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, handler);
+		mPoolExecutor = new ThreadPoolExecutor(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, InFlightTasks.wrap(handler));
 		mMainThreadHandler = new Handler(Looper.getMainLooper());
 	}
 
-	public void loadDrawable(String imageFilePath, long imageFlag, LocalImageCallback localImageCallback) {
+	/**
+	 * Starts loading {@code imageFilePath}, the result is posted to
+	 * {@code localImageCallback} on the main thread.
+	 *
+	 * @return the request, cancel it when the image is no longer needed, or
+	 *         null if {@code localImageCallback} is null
+	 */
+	public ImageLoadRequest loadDrawable(String imageFilePath, long imageFlag, LocalImageCallback localImageCallback) {
+		return loadDrawable(imageFilePath, imageFlag, 0, 0, localImageCallback);
+	}
+
+	/**
+	 * Starts loading {@code imageFilePath} for a view of {@code reqWidth} x
+	 * {@code reqHeight}, the image is decoded at the smallest power of two
+	 * sample size not smaller than that. If a thumbnail width is set it takes
+	 * precedence, if neither is known the screen size is used.
+	 *
+	 * @return the request, cancel it when the image is no longer needed, or
+	 *         null if {@code localImageCallback} is null
+	 */
+	public ImageLoadRequest loadDrawable(String imageFilePath, long imageFlag, int reqWidth, int reqHeight, LocalImageCallback localImageCallback) {
+		return loadDrawable(imageFilePath, imageFlag, reqWidth, reqHeight, ImageLoadRequest.PRIORITY_VISIBLE, localImageCallback);
+	}
+
+	/**
+	 * Same as {@link #loadDrawable(String, long, int, int, LocalImageCallback)} at the
+	 * given priority, see {@link ImageLoadRequest#setPriority(int)}. If the
+	 * queue is full the request of lowest priority is dropped and its
+	 * callback gets a {@link RejectedExecutionException}.
+	 */
+	public ImageLoadRequest loadDrawable(String imageFilePath, long imageFlag, int reqWidth, int reqHeight, int priority, LocalImageCallback localImageCallback) {
 		if (localImageCallback == null)
-			return;
-		LoadImageTask task = new LoadImageTask(imageFilePath, imageFlag, mMainThreadHandler, localImageCallback);
-		mPoolExecutor.execute(task);
+			return null;
+		LoadImageTask task = new LoadImageTask(imageFilePath, imageFlag, priority, mMainThreadHandler, localImageCallback);
+		task.setTargetSize(mContext, mThumbnailWidth, reqWidth, reqHeight);
+		// a load of the same path already in flight will deliver to this task
+		if (mInFlightTasks.register(task)) {
+			if (mPoolExecutor != null)
+				task.execute(mPoolExecutor);
+			else
+				task.execute(ImageLoaderEngine.getInstance().getDecodeExecutor());
+		} else {
+			// raise the priority of the load in flight if needed
+			task.setPriority(priority);
+		}
+		return task;
 	}
 
+	/**
+	 * Loads {@code imageFilePath} into the memory cache at prefetch priority,
+	 * so that a later {@link #loadDrawable} is served from memory or joins
+	 * this load.
+	 */
+	public ImageLoadRequest prefetch(String imageFilePath) {
+		return loadDrawable(imageFilePath, 0, 0, 0, ImageLoadRequest.PRIORITY_PREFETCH, new LocalImageCallback() {
+			@Override
+			public void onLoaded(Bitmap bitmap, long imageFlag) {
+				// not displayed, it can be reused once it leaves the cache
+				BitmapCache.getInstance(mContext).releaseBitmap(bitmap);
+			}
+
+			@Override
+			public void onError(Exception e, long imageFlag) {
+			}
+		});
+	}
+
+	/**
+	 * Shuts down the pool of this loader, loads on the shared pools are not
+	 * affected.
+	 */
 	public void shutdown() {
-		mPoolExecutor.shutdown();
+		if (mPoolExecutor != null)
+			mPoolExecutor.shutdown();
 	}
 
-	private static final class LoadImageTask implements Runnable {
-		private Handler mHandler;
+	private static final class LoadImageTask extends ImageLoadTask {
 		private LocalImageCallback mCallback;
-		private String mPath;
-		private long mImageFlag;
 
-		public LoadImageTask(String imgPath, long imageFlag, Handler handler, LocalImageCallback imageCallback) {
+		public LoadImageTask(String imgPath, long imageFlag, int priority, Handler handler, LocalImageCallback imageCallback) {
+			super(imgPath, imageFlag, priority, handler);
 			if (LOG_ENABLED)
 				Log.d(TAG, "start a task for load image:" + imgPath);
-			this.mHandler = handler;
-			this.mPath = imgPath;
-			this.mImageFlag = imageFlag;
 			this.mCallback = imageCallback;
 		}
 
+		@Override
+		public void onDropped() {
+			deliverError(new RejectedExecutionException("Load dropped:" + mKey));
+		}
+
+		@Override
+		protected ImageLoadTask getInFlightLeader() {
+			return mInFlightTasks.getLeader(this);
+		}
+
+		@Override
+		protected ImageLoadTask cancelInFlight() {
+			return mInFlightTasks.cancel(this);
+		}
+
+		@Override
+		protected List<LoadImageTask> completeInFlight() {
+			return mInFlightTasks.complete(this);
+		}
+
+		@Override
+		protected BitmapCache getBitmapCache() {
+			return BitmapCache.getInstance(mContext);
+		}
+
+		@Override
+		protected void dispatchLoaded(ImageLoadTask leader, Bitmap bitmap) {
+			if (mCallback instanceof LocalImageResultCallback)
+				((LocalImageResultCallback) mCallback).onLoaded(bitmap, mImageFlag, leader.createResult(this, bitmap, null));
+			else
+				mCallback.onLoaded(bitmap, mImageFlag);
+		}
+
+		@Override
+		protected void dispatchError(ImageLoadTask leader, Exception e) {
+			if (mCallback instanceof LocalImageResultCallback)
+				((LocalImageResultCallback) mCallback).onError(e, mImageFlag, leader.createResult(this, null, e));
+			else
+				mCallback.onError(e, mImageFlag);
+		}
+
 		@Override
 		public void run() {
+			if (!enterStage())
+				return;
+			mTimings.mark(LoadTimings.STAGE_DEQUEUE);
 			try {
-				final Bitmap cacheBitmap = BitmapCache.getInstance(mContext).getBitmapFromMemCache(mPath);
+				final Bitmap cacheBitmap = BitmapCache.getInstance(mContext).getVariantFromMemCache(mVariantKey, true);
+				mTimings.mark(LoadTimings.STAGE_CACHE_LOOKUP);
 				if (cacheBitmap != null) {
-					mHandler.post(new Runnable() {
-						@Override
-						public void run() {
-							mCallback.onLoaded(cacheBitmap, mImageFlag);
-						}
-					});
+					deliverLoaded(cacheBitmap);
 				} else {
-					if (mPath.contains("mp4") || mPath.contains("wmv") || mPath.contains("avi") || mPath.contains("3gp")) {
-						final Bitmap bitmap = getThumbnail(ThumbnailUtils.createVideoThumbnail(mPath, Thumbnails.MICRO_KIND));
-						if (bitmap != null) {
-							BitmapCache.getInstance(mContext).addBitmapToMemCache(mPath, bitmap);
-							mHandler.post(new Runnable() {
-								@Override
-								public void run() {
-									mCallback.onLoaded(bitmap, mImageFlag);
-								}
-							});
-						}
+					BitmapCache bitmapCache = BitmapCache.getInstance(mContext);
+					BitmapPool pool = bitmapCache.getBitmapPool();
+					final Bitmap bitmap;
+					mDataSource = ImageLoadResult.DATA_SOURCE_LOCAL;
+					mByteCount = new File(mKey).length();
+					// route by the header of the file, not by its path
+					if (FormatDetector.isVideo(mKey)) {
+						Bitmap thumbnail = ThumbnailUtils.createVideoThumbnail(mKey, Thumbnails.MICRO_KIND);
+						mTimings.mark(LoadTimings.STAGE_DECODE);
+						bitmap = thumbnail != null ? BitmapDecoder.scaleToWidth(thumbnail, mThumbnailWidth, pool) : null;
+						if (bitmap != thumbnail)
+							mTimings.mark(LoadTimings.STAGE_TRANSFORM);
 					} else {
-						final Bitmap bitmap = loadLocalFile(mPath);
-						if (bitmap != null) {
-							BitmapCache.getInstance(mContext).addBitmapToMemCache(mPath, bitmap);
-							mHandler.post(new Runnable() {
-								@Override
-								public void run() {
-									mCallback.onLoaded(bitmap, mImageFlag);
-								}
-							});
-						}
+						BitmapFactory.Options opts = new BitmapFactory.Options();
+						bitmap = loadLocalFile(mKey, opts, pool);
+						mSampleSize = opts.inSampleSize;
+					}
+					if (isAborted()) {
+						if (bitmap != null)
+							pool.put(bitmap);
+						return;
+					}
+					if (bitmap != null) {
+						// acquire before caching, the cache may evict it right
+						// away
+						List<ImageLoadTask> receivers = acquireReceivers(bitmap);
+						bitmapCache.addVariantToMemCache(mVariantKey, mSampleSize, bitmap);
+						mTimings.mark(LoadTimings.STAGE_CACHE_PUT);
+						postLoaded(receivers, bitmap);
+					} else {
+						deliverError(new Exception("Unable to load image:" + mKey));
 					}
 				}
 			} catch (final Exception e) {
-				mHandler.post(new Runnable() {
-					@Override
-					public void run() {
-						mCallback.onError(e, mImageFlag);
-					}
-				});
+				deliverError(e);
 			} catch (OutOfMemoryError e) {
-				BitmapCache.getInstance(mContext).clear();
-				mHandler.post(new Runnable() {
-					@Override
-					public void run() {
-						mCallback.onError(new Exception("OutOfMemoryError"), mImageFlag);
-					}
-				});
-				System.gc();
+				// decodes already retry once at a larger sample size, only make
+				// room for the next loads instead of dropping the whole cache
+				BitmapCache.getInstance(mContext).onOutOfMemory();
+				deliverError(new Exception("OutOfMemoryError"));
+			} finally {
+				exitStage();
 			}
 		}
 
-		private Bitmap loadLocalFile(String filePath) {
+		private Bitmap loadLocalFile(String filePath, BitmapFactory.Options opts, BitmapPool pool) {
 			try {
 				File file = new File(filePath);
 				if (!file.exists())
 					return null;
-				FileInputStream fis = new FileInputStream(file);
-				BitmapFactory.Options opts = new BitmapFactory.Options();
-				opts.inSampleSize = 2;
-				Bitmap res = BitmapFactory.decodeStream(fis, null, opts);
-				if (res != null)
-					return getThumbnail(res);
+				setDecodeOptions(opts);
+				// a thumbnail comes out of the decoder at its width, the scale
+				// only fixes a rounding difference
+				Bitmap res = mThumbnailWidth > 0 ? BitmapDecoder.decodeFileToWidth(filePath, mThumbnailWidth, opts, pool) : BitmapDecoder.decodeFile(filePath, mTargetWidth, mTargetHeight, opts, pool);
+				mTimings.mark(LoadTimings.STAGE_DECODE);
+				if (res != null && !isAborted()) {
+					Bitmap scaled = BitmapDecoder.scaleToWidth(res, mThumbnailWidth, pool);
+					if (scaled != res)
+						mTimings.mark(LoadTimings.STAGE_TRANSFORM);
+					return scaled;
+				}
 			} catch (Exception e) {
-				e.printStackTrace();
+				if (!isAborted())
+					e.printStackTrace();
 			}
 			return null;
 		}
-
-		private Bitmap getThumbnail(Bitmap bitmap) {
-			if (mThumbnailWidth > 0) {
-				int width = bitmap.getWidth();
-				int height = bitmap.getHeight();
-				float scale = ((float) mThumbnailWidth) / width;
-				Matrix matrix = new Matrix();
-				matrix.postScale(scale, scale);
-				return Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
-			} else {
-				return bitmap;
-			}
-		}
 	}
 
 	public static interface LocalImageCallback {
@@ -163,4 +271,14 @@ public class AsyncLocalImageLoader {
 
 		public void onError(Exception e, long imageFlag);
 	}
+
+	/**
+	 * A callback told how the image was loaded, see {@link ImageLoadResult}.
+	 * Its methods with a result are called instead of the others.
+	 */
+	public static interface LocalImageResultCallback extends LocalImageCallback {
+		public void onLoaded(Bitmap bitmap, long imageFlag, ImageLoadResult result);
+
+		public void onError(Exception e, long imageFlag, ImageLoadResult result);
+	}
 }
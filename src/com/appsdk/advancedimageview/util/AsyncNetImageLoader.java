@@ -1,12 +1,13 @@
 package com.appsdk.advancedimageview.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -14,7 +15,6 @@ import java.util.concurrent.TimeUnit;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
@@ -23,125 +23,428 @@ public class AsyncNetImageLoader {
 	private static final String TAG = "AsyncNetImageLoader";
 	private static final boolean LOG_ENABLED = false;
 
+	/** The cached copy is always served, the default */
+	public static final int REVALIDATE_NEVER = 0;
+	/**
+	 * The cached copy is served while fresh according to its Cache-Control
+	 * max-age or Expires, then revalidated with a conditional request
+	 */
+	public static final int REVALIDATE_WHEN_STALE = 1;
+	/** Every load from the disk sends a conditional request for the cached copy */
+	public static final int REVALIDATE_ALWAYS = 2;
+
 	private static Context mContext;
-	private static int mThumbnailWidth;
+	private int mThumbnailWidth;
+	private static final InFlightTasks<LoadImageTask> mInFlightTasks = new InFlightTasks<LoadImageTask>();
+	/**
+	 * One permit per url being fetched. Loads of other variants of a url are
+	 * parked until its fetch ends, then read the disk cache, an image is
+	 * never downloaded twice at once.
+	 */
+	private static final HostLimiter mFetchingUrls = new HostLimiter(1);
+	/** Own pool of this loader, or null to use the shared pools */
 	private ThreadPoolExecutor mPoolExecutor;
 	private Handler mMainThreadHandler;
+	private int mRevalidation = REVALIDATE_NEVER;
 
 	public AsyncNetImageLoader(Context context) {
 		this(context, 0);
 	}
-	
+
+	/**
+	 * Creates a loader running on the pools shared by every loader, see
+	 * {@link ImageLoaderEngine}
+	 */
 	public AsyncNetImageLoader(Context context, int thumbnailWidth) {
-		this(context, thumbnailWidth, 5, 20);
+		mContext = context;
+		mThumbnailWidth = thumbnailWidth;
+		mPoolExecutor = null;
+		mMainThreadHandler = ImageLoaderEngine.getInstance().getMainThreadHandler();
 	}
 
 	public AsyncNetImageLoader(Context context, int thumbnailWidth, int maxPoolSize, int queueSize) {
 		this(context, thumbnailWidth, 0, maxPoolSize, 3, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize), new ThreadPoolExecutor.DiscardOldestPolicy());
 	}
 
+	/**
+	 * Creates a loader with its own thread pool, fetches and decodes both run
+	 * on this pool. Call {@link #shutdown()} when the loader is no longer used.
+	 */
 	public AsyncNetImageLoader(Context context, int thumbnailWidth, int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, BlockingQueue<Runnable> workQueue, RejectedExecutionHandler handler) {
 		mContext = context;
 		mThumbnailWidth = thumbnailWidth;
-		mPoolExecutor = new ThreadPoolExecutor(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, handler);
+		mPoolExecutor = new ThreadPoolExecutor(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, InFlightTasks.wrap(handler));
 		mMainThreadHandler = new Handler(Looper.getMainLooper());
 	}
 
-	public void loadDrawable(String imageUrl, long imageFlag, ImageCallback imageCallback) {
+	/**
+	 * Sets when the copy in the disk cache is checked with the server, see
+	 * {@link #REVALIDATE_NEVER}, {@link #REVALIDATE_WHEN_STALE} and
+	 * {@link #REVALIDATE_ALWAYS}. The check sends the ETag and Last-Modified
+	 * of the copy and a 304 response serves it without downloading it again.
+	 * If the server can't be reached the cached copy is served. A bitmap
+	 * still in the memory cache is served without a check, only loads from
+	 * the disk are revalidated.
+	 */
+	public void setRevalidation(int revalidation) {
+		mRevalidation = revalidation;
+	}
+
+	public int getRevalidation() {
+		return mRevalidation;
+	}
+
+	/**
+	 * Starts loading {@code imageUrl}, the result is posted to
+	 * {@code imageCallback} on the main thread.
+	 *
+	 * @return the request, cancel it when the image is no longer needed, or
+	 *         null if {@code imageCallback} is null
+	 */
+	public ImageLoadRequest loadDrawable(String imageUrl, long imageFlag, ImageCallback imageCallback) {
+		return loadDrawable(imageUrl, imageFlag, 0, 0, imageCallback);
+	}
+
+	/**
+	 * Starts loading {@code imageUrl} for a view of {@code reqWidth} x
+	 * {@code reqHeight}, the image is decoded at the smallest power of two
+	 * sample size not smaller than that. If a thumbnail width is set it takes
+	 * precedence, if neither is known the screen size is used.
+	 *
+	 * @return the request, cancel it when the image is no longer needed, or
+	 *         null if {@code imageCallback} is null
+	 */
+	public ImageLoadRequest loadDrawable(String imageUrl, long imageFlag, int reqWidth, int reqHeight, ImageCallback imageCallback) {
+		return loadDrawable(imageUrl, imageFlag, reqWidth, reqHeight, ImageLoadRequest.PRIORITY_VISIBLE, imageCallback);
+	}
+
+	/**
+	 * Same as {@link #loadDrawable(String, long, int, int, ImageCallback)} at the
+	 * given priority, see {@link ImageLoadRequest#setPriority(int)}. If the
+	 * queue is full the request of lowest priority is dropped and its
+	 * callback gets a {@link RejectedExecutionException}.
+	 */
+	public ImageLoadRequest loadDrawable(String imageUrl, long imageFlag, int reqWidth, int reqHeight, int priority, ImageCallback imageCallback) {
 		if (imageCallback == null)
-			return;
-		LoadImageTask task = new LoadImageTask(imageUrl, imageFlag, mMainThreadHandler, imageCallback);
-		mPoolExecutor.execute(task);
+			return null;
+		LoadImageTask task = new LoadImageTask(imageUrl, imageFlag, priority, mMainThreadHandler, mPoolExecutor == null, imageCallback);
+		task.setTargetSize(mContext, mThumbnailWidth, reqWidth, reqHeight);
+		task.mRevalidation = mRevalidation;
+		// a load of the same url already in flight will deliver to this task
+		if (mInFlightTasks.register(task)) {
+			if (mPoolExecutor != null)
+				task.execute(mPoolExecutor);
+			else
+				task.execute(ImageLoaderEngine.getInstance().getIoExecutor());
+		} else {
+			// raise the priority of the load in flight if needed
+			task.setPriority(priority);
+		}
+		return task;
 	}
 
+	/**
+	 * Loads {@code imageUrl} into the caches at prefetch priority, so that a
+	 * later {@link #loadDrawable} is served from memory or joins this load.
+	 */
+	public ImageLoadRequest prefetch(String imageUrl) {
+		return loadDrawable(imageUrl, 0, 0, 0, ImageLoadRequest.PRIORITY_PREFETCH, new ImageCallback() {
+			@Override
+			public void onLoaded(Bitmap bitmap, long imageFlag) {
+				// not displayed, it can be reused once it leaves the cache
+				BitmapCache.getInstance(mContext).releaseBitmap(bitmap);
+			}
+
+			@Override
+			public void onError(Exception e, long imageFlag) {
+			}
+		});
+	}
+
+	/**
+	 * Shuts down the pool of this loader, loads on the shared pools are not
+	 * affected.
+	 */
 	public void shutdown() {
-		mPoolExecutor.shutdown();
+		if (mPoolExecutor != null)
+			mPoolExecutor.shutdown();
 	}
 
-	private static final class LoadImageTask implements Runnable {
-		private Handler mHandler;
+	private static final class LoadImageTask extends ImageLoadTask {
+		private boolean mSharedPool;
 		private ImageCallback mCallback;
-		private String mUrl;
-		private long mImageFlag;
+		private int mRevalidation;
+		/** Validators of the downloaded bytes, stored with them on the disk */
+		private CacheValidators mValidators;
 
-		public LoadImageTask(String imageUrl, long imageFlag, Handler handler, ImageCallback imageCallback) {
+		public LoadImageTask(String imageUrl, long imageFlag, int priority, Handler handler, boolean sharedPool, ImageCallback imageCallback) {
+			super(imageUrl, imageFlag, priority, handler);
 			if (LOG_ENABLED)
 				Log.d(TAG, "start a task for load image:" + imageUrl);
-			this.mHandler = handler;
-			this.mUrl = imageUrl;
-			this.mImageFlag = imageFlag;
+			this.mSharedPool = sharedPool;
 			this.mCallback = imageCallback;
 		}
 
+		@Override
+		public void onDropped() {
+			deliverError(new RejectedExecutionException("Load dropped:" + mKey));
+		}
+
+		@Override
+		protected ImageLoadTask getInFlightLeader() {
+			return mInFlightTasks.getLeader(this);
+		}
+
+		@Override
+		protected ImageLoadTask cancelInFlight() {
+			return mInFlightTasks.cancel(this);
+		}
+
+		@Override
+		protected List<LoadImageTask> completeInFlight() {
+			return mInFlightTasks.complete(this);
+		}
+
+		@Override
+		protected BitmapCache getBitmapCache() {
+			return BitmapCache.getInstance(mContext);
+		}
+
+		@Override
+		protected void dispatchLoaded(ImageLoadTask leader, Bitmap bitmap) {
+			if (mCallback instanceof ImageResultCallback)
+				((ImageResultCallback) mCallback).onLoaded(bitmap, mImageFlag, leader.createResult(this, bitmap, null));
+			else
+				mCallback.onLoaded(bitmap, mImageFlag);
+		}
+
+		@Override
+		protected void dispatchError(ImageLoadTask leader, Exception e) {
+			if (mCallback instanceof ImageResultCallback)
+				((ImageResultCallback) mCallback).onError(e, mImageFlag, leader.createResult(this, null, e));
+			else
+				mCallback.onError(e, mImageFlag);
+		}
+
 		@Override
 		public void run() {
+			if (!enterStage())
+				return;
+			mTimings.mark(LoadTimings.STAGE_DEQUEUE);
 			try {
-				final Bitmap cacheBitmap = BitmapCache.getInstance(mContext).getBitmapFromMemCache(mUrl);
+				BitmapCache bitmapCache = BitmapCache.getInstance(mContext);
+				ImageDiskCache diskCache = ImageDiskCache.getInstance(mContext);
+				final Bitmap cacheBitmap = bitmapCache.getVariantFromMemCache(mVariantKey, true);
 				if (cacheBitmap != null) {
-					mHandler.post(new Runnable() {
-						@Override
-						public void run() {
-							mCallback.onLoaded(cacheBitmap, mImageFlag);
-						}
-					});
-				} else {
-					URL url = new URL(mUrl);
-					URLConnection conn = url.openConnection();
-					conn.connect();
-					InputStream is = conn.getInputStream();
-					ByteArrayOutputStream baos = new ByteArrayOutputStream();
-					byte[] cache = new byte[1024 * 10];
-					int len = 0;
-					while ((len = is.read(cache)) != -1) {
-						baos.write(cache, 0, len);
-					}
-					ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-
-					BitmapFactory.Options opts = new BitmapFactory.Options();
-					opts.inSampleSize = 2;
-					final Bitmap bitmap = getThumbnail(BitmapFactory.decodeStream(bais, null, opts));
-					if (bitmap != null) {
-						BitmapCache.getInstance(mContext).addBitmapToMemCache(mUrl, bitmap);
-						mHandler.post(new Runnable() {
-							@Override
-							public void run() {
-								mCallback.onLoaded(bitmap, mImageFlag);
+					mTimings.mark(LoadTimings.STAGE_CACHE_LOOKUP);
+					deliverLoaded(cacheBitmap);
+					return;
+				}
+				// only loads that go to the disk pay for reading the validators
+				CacheValidators validators = null;
+				if (mRevalidation != REVALIDATE_NEVER) {
+					validators = diskCache.getValidators(mKey);
+					if (validators != null && mRevalidation == REVALIDATE_WHEN_STALE && validators.isFresh(System.currentTimeMillis()))
+						validators = null;
+				}
+				byte[] data = null;
+				boolean fromDisk = false;
+				boolean changed = false;
+				if (validators == null) {
+					data = diskCache.get(mKey);
+					fromDisk = data != null;
+				}
+				mTimings.mark(LoadTimings.STAGE_CACHE_LOOKUP);
+				if (data == null) {
+					String host = new URL(mKey).getHost();
+					// the url first, a task waiting for another variant
+					// must not hold a permit of the host. Both park this
+					// task without holding a thread, it runs again later.
+					if (!acquire(mFetchingUrls, mKey))
+						return;
+					try {
+						if (!acquireHost(host))
+							return;
+						try {
+							if (validators == null) {
+								// another variant may have fetched it meanwhile
+								data = diskCache.get(mKey);
+								fromDisk = data != null;
+							} else {
+								// the cached copy needs to be checked with the
+								// server
+								try {
+									data = download(validators);
+								} catch (IOException e) {
+									if (isAborted())
+										throw e;
+									if (LOG_ENABLED)
+										Log.d(TAG, "Revalidation failed, serving cached copy of " + mKey, e);
+								}
+								changed = data != null;
+								if (data == null) {
+									// another variant may have decoded it meanwhile
+									final Bitmap decodedBitmap = bitmapCache.getVariantFromMemCache(mVariantKey, true);
+									if (decodedBitmap != null) {
+										deliverLoaded(decodedBitmap);
+										return;
+									}
+									data = diskCache.get(mKey);
+									fromDisk = data != null;
+								}
 							}
-						});
+							if (data == null)
+								data = download(null);
+						} finally {
+							releaseHost(host);
+						}
+					} finally {
+						mFetchingUrls.release(mKey);
 					}
-					is.close();
-					baos.close();
-					bais.close();
 				}
+				if (!isAborted())
+					decode(data, fromDisk, changed);
 			} catch (final Exception e) {
-				mHandler.post(new Runnable() {
-					@Override
-					public void run() {
-						mCallback.onError(e, mImageFlag);
-					}
-				});
+				deliverError(e);
 			} catch (OutOfMemoryError e) {
-				BitmapCache.getInstance(mContext).clear();
-				mHandler.post(new Runnable() {
-					@Override
-					public void run() {
-						mCallback.onError(new Exception("OutOfMemoryError"), mImageFlag);
-					}
-				});
-				System.gc();
+				// decodes already retry once at a larger sample size, only make
+				// room for the next loads instead of dropping the whole cache
+				BitmapCache.getInstance(mContext).onOutOfMemory();
+				deliverError(new Exception("OutOfMemoryError"));
+			} finally {
+				exitStage();
+			}
+		}
+
+		/**
+		 * Downloads the image, conditionally if {@code validators} is not
+		 * null. A plain download resumes the bytes kept from a previous
+		 * broken download of the image if there are some, and keeps the
+		 * bytes of a large image on the disk while they arrive.
+		 *
+		 * @return the downloaded bytes, or null if the server answered that
+		 *         the cached copy didn't change, its validators are then
+		 *         refreshed on the disk
+		 */
+		private byte[] download(final CacheValidators validators) throws IOException {
+			mDataSource = ImageLoadResult.DATA_SOURCE_NETWORK;
+			long deadline = System.currentTimeMillis() + ImageLoaderEngine.getRequestDeadline();
+			PartialDownload partial = validators == null ? ImageDiskCache.getInstance(mContext).getPartialDownload(mKey) : null;
+			ResumableDownload download = new ResumableDownload(new ResumableDownload.Listener() {
+				@Override
+				public URLConnection openConnection() throws IOException {
+					URLConnection conn = new URL(mKey).openConnection();
+					conn.setConnectTimeout(ImageLoaderEngine.getConnectTimeout());
+					conn.setReadTimeout(ImageLoaderEngine.getReadTimeout());
+					if (validators != null)
+						validators.applyTo(conn);
+					return conn;
+				}
+
+				@Override
+				public void onConnection(URLConnection conn, Closeable stream) {
+					setConnection(conn, stream);
+				}
+
+				@Override
+				public void onStage(int stage) {
+					mTimings.mark(stage);
+				}
+
+				@Override
+				public boolean isAborted() {
+					return LoadImageTask.this.isAborted();
+				}
+			}, partial, deadline);
+			byte[] data = download.run();
+			URLConnection conn = download.getConnection();
+			if (data == null) {
+				if (validators == null)
+					throw new IOException("HTTP 304 without a conditional request for " + mKey);
+				validators.update(conn, System.currentTimeMillis());
+				ImageDiskCache.getInstance(mContext).putValidators(mKey, validators);
+				if (LOG_ENABLED)
+					Log.d(TAG, "Not modified: " + mKey);
+				return null;
 			}
+			mValidators = CacheValidators.fromConnection(conn, System.currentTimeMillis());
+			return data;
 		}
 
-		private Bitmap getThumbnail(Bitmap bitmap) {
-			if (mThumbnailWidth > 0) {
-				int width = bitmap.getWidth();
-				int height = bitmap.getHeight();
-				float scale = ((float) mThumbnailWidth) / width;
-				Matrix matrix = new Matrix();
-				matrix.postScale(scale, scale);
-				return Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
+		/**
+		 * Decodes the fetched bytes on the shared decode pool, or on the
+		 * current thread if this loader has its own pool
+		 *
+		 * @param changed
+		 *            whether the bytes replace a cached copy that changed on
+		 *            the server
+		 */
+		private void decode(final byte[] data, final boolean fromDisk, final boolean changed) {
+			mDataSource = fromDisk ? ImageLoadResult.DATA_SOURCE_DISK : ImageLoadResult.DATA_SOURCE_NETWORK;
+			mByteCount = data.length;
+			Runnable decodeTask = new Stage() {
+				@Override
+				public void run() {
+					if (!enterStage())
+						return;
+					try {
+						BitmapCache bitmapCache = BitmapCache.getInstance(mContext);
+						BitmapPool pool = bitmapCache.getBitmapPool();
+						BitmapFactory.Options opts = new BitmapFactory.Options();
+						setDecodeOptions(opts);
+						// a thumbnail comes out of the decoder at its width, the
+						// scale only fixes a rounding difference
+						Bitmap decoded = mThumbnailWidth > 0 ? BitmapDecoder.decodeByteArrayToWidth(data, mThumbnailWidth, opts, pool) : BitmapDecoder.decodeByteArray(data, mTargetWidth, mTargetHeight, opts, pool);
+						mTimings.mark(LoadTimings.STAGE_DECODE);
+						mSampleSize = opts.inSampleSize;
+						final Bitmap bitmap = decoded != null ? BitmapDecoder.scaleToWidth(decoded, mThumbnailWidth, pool) : null;
+						if (bitmap != decoded)
+							mTimings.mark(LoadTimings.STAGE_TRANSFORM);
+						if (isAborted()) {
+							if (bitmap != null)
+								pool.put(bitmap);
+							return;
+						}
+						ImageDiskCache diskCache = ImageDiskCache.getInstance(mContext);
+						if (bitmap != null) {
+							// only keep bytes that decode, a broken download
+							// must not be served again from the disk
+							if (!fromDisk)
+								diskCache.put(mKey, data, mValidators);
+							// acquire before caching, the cache may evict it
+							// right away
+							List<ImageLoadTask> receivers = acquireReceivers(bitmap);
+							if (changed)
+								bitmapCache.removeVariantsFromMemCache(mKey);
+							bitmapCache.addVariantToMemCache(mVariantKey, opts.inSampleSize, bitmap);
+							mTimings.mark(LoadTimings.STAGE_CACHE_PUT);
+							postLoaded(receivers, bitmap);
+						} else {
+							if (fromDisk)
+								diskCache.remove(mKey);
+							deliverError(new Exception("Unable to decode image:" + mKey));
+						}
+					} catch (final Exception e) {
+						deliverError(e);
+					} catch (OutOfMemoryError e) {
+						// decodes already retry once at a larger sample size, only make
+						// room for the next loads instead of dropping the whole cache
+						BitmapCache.getInstance(mContext).onOutOfMemory();
+						deliverError(new Exception("OutOfMemoryError"));
+					} finally {
+						exitStage();
+					}
+				}
+			};
+			if (mSharedPool) {
+				try {
+					ImageLoaderEngine.getInstance().getDecodeExecutor().execute(decodeTask);
+				} catch (RejectedExecutionException e) {
+					// the engine was reconfigured, decode here instead
+					decodeTask.run();
+				}
 			} else {
-				return bitmap;
+				decodeTask.run();
 			}
 		}
 	}
@@ -151,4 +454,14 @@ public class AsyncNetImageLoader {
 
 		public void onError(Exception e, long imageFlag);
 	}
+
+	/**
+	 * A callback told how the image was loaded, see {@link ImageLoadResult}.
+	 * Its methods with a result are called instead of the others.
+	 */
+	public static interface ImageResultCallback extends ImageCallback {
+		public void onLoaded(Bitmap bitmap, long imageFlag, ImageLoadResult result);
+
+		public void onError(Exception e, long imageFlag, ImageLoadResult result);
+	}
 }
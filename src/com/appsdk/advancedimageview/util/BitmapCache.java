@@ -1,9 +1,22 @@
 package com.appsdk.advancedimageview.util;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 
@@ -11,8 +24,91 @@ public class BitmapCache {
 	public static final String TAG = "BitmapCache";
 	private static final boolean LOG_ENABLED = false;
 
+	/**
+	 * Time without trim request after which a trimmed cache gets its full
+	 * size back, the system doesn't say when memory pressure ends
+	 */
+	private static final long RESTORE_DELAY_MS = 60 * 1000;
+
+	/** Evicts the least recently used bitmap, the default */
+	public static final int POLICY_LRU = 0;
+	/**
+	 * Keeps bitmaps requested once apart from those requested again, a
+	 * scroll through many images doesn't push out the often shown ones
+	 */
+	public static final int POLICY_2Q = 1;
+	/**
+	 * Only caches a new bitmap in place of another if it is requested more
+	 * often, also scan resistant, for skewed workloads
+	 */
+	public static final int POLICY_TINY_LFU = 2;
+
 	private static BitmapCache mInstance;
-	private final MyLruCache<String, Bitmap> mMemCache;
+	private static int mPolicy = POLICY_LRU;
+	private final Context mAppContext;
+	/** Sizes of the cache and of the pool without memory pressure */
+	private final int mMaxCacheSize;
+	private final int mMaxPoolSize;
+	/** Share of the sizes currently allowed, in percent */
+	private volatile int mBudgetPercent = 100;
+	private volatile long mLastTrimTime;
+	private ComponentCallbacks mTrimCallbacks;
+	private final ConcurrentLruCache<String, Bitmap> mMemCache;
+	private final BitmapPool mBitmapPool;
+	/**
+	 * Number of times each delivered bitmap is displayed, a bitmap leaving the
+	 * cache is only pooled once it is not displayed anymore
+	 */
+	private final WeakHashMap<Bitmap, DisplayRef> mDisplayRefs = new WeakHashMap<Bitmap, DisplayRef>();
+	/** Variants in the cache by key, and by source to find a larger one */
+	private final HashMap<String, Variant> mVariants = new HashMap<String, Variant>();
+	private final HashMap<String, ArrayList<Variant>> mVariantsBySource = new HashMap<String, ArrayList<Variant>>();
+	/**
+	 * Second tier: bitmaps evicted from the cache while displayed, by key. A
+	 * request for one of them takes it back into the cache instead of
+	 * decoding it again, as long as a view holds it. Guarded by mDisplayRefs.
+	 */
+	private final HashMap<String, EvictedRef> mEvicted = new HashMap<String, EvictedRef>();
+	private final ReferenceQueue<Bitmap> mEvictedQueue = new ReferenceQueue<Bitmap>();
+	/** Statistics, striped so that counting doesn't contend, see getStats() */
+	private final StripedCounter[] mHitCounts = createCounters(CacheStats.SOURCE_COUNT);
+	private final StripedCounter[] mMissCounts = createCounters(CacheStats.SOURCE_COUNT);
+	private final StripedCounter mPrimaryHitCount = new StripedCounter();
+	private final StripedCounter mSecondaryHitCount = new StripedCounter();
+	private final StripedCounter mDerivedCount = new StripedCounter();
+	private final StripedCounter mInsertCount = new StripedCounter();
+	private final StripedCounter mInsertedBytes = new StripedCounter();
+	private final StripedCounter[] mEvictionCounts = createCounters(CacheStats.CAUSE_COUNT);
+	private final StripedCounter[] mEvictedBytes = createCounters(CacheStats.CAUSE_COUNT);
+	/** Only raised on inserts, reads don't touch it */
+	private final AtomicLong mPeakSize = new AtomicLong();
+	/** Cause of the removals made by the current thread, if not the default */
+	private final ThreadLocal<Integer> mRemovalCause = new ThreadLocal<Integer>();
+	/** Records the requests while tracing, null otherwise */
+	private volatile CacheTrace.Recorder mTrace;
+
+	/**
+	 * Sets the eviction policy of the cache, one of {@link #POLICY_LRU},
+	 * {@link #POLICY_2Q} and {@link #POLICY_TINY_LFU}. It is used when the
+	 * cache is created, call it before the first image is loaded or after
+	 * {@link #destroy()}.
+	 */
+	public static void setEvictionPolicy(int policy) {
+		if (mInstance != null && LOG_ENABLED)
+			Log.w(TAG, "Cache already created, the policy applies after destroy()");
+		mPolicy = policy;
+	}
+
+	private static EvictionPolicy<String> createPolicy(int policy) {
+		switch (policy) {
+		case POLICY_2Q:
+			return new TwoQueuePolicy<String>();
+		case POLICY_TINY_LFU:
+			return new TinyLfuPolicy<String>();
+		default:
+			return new LruPolicy<String>();
+		}
+	}
 
 	public static BitmapCache getInstance(Context context) {
 		if (mInstance == null)
@@ -30,18 +126,404 @@ public class BitmapCache {
 		if (LOG_ENABLED)
 			Log.d(TAG, "LRUCache size sets to " + cacheSize);
 
-		mMemCache = new MyLruCache<String, Bitmap>(cacheSize) {
+		mMemCache = new ConcurrentLruCache<String, Bitmap>(cacheSize, createPolicy(mPolicy)) {
 			@Override
 			protected int sizeOf(String key, Bitmap value) {
-				return value.getRowBytes() * value.getHeight();
+				return getSize(value);
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+				Integer cause = mRemovalCause.get();
+				countRemoval(cause != null ? cause : (evicted ? CacheStats.CAUSE_SIZE : CacheStats.CAUSE_EXPLICIT), oldValue);
+				if (oldValue != newValue) {
+					Variant variant = onVariantRemoved(key);
+					// an explicit removal means the bitmap is stale, don't
+					// keep it around
+					onBitmapRemoved(evicted ? key : null, variant, oldValue);
+				}
 			}
 		};
+		// Reuse bitmaps leaving the cache for up to 1/4th of its size
+		mBitmapPool = new BitmapPool(cacheSize / 4);
+		mMaxCacheSize = cacheSize;
+		mMaxPoolSize = cacheSize / 4;
+
+		mAppContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+			MemoryTrimCallbacks callbacks = new MemoryTrimCallbacks(this);
+			mAppContext.registerComponentCallbacks(callbacks);
+			mTrimCallbacks = callbacks;
+		}
+	}
+
+	/**
+	 * Shrinks the cache and the pool for a trim level of
+	 * {@link ComponentCallbacks2}, called by the system from API 14. While
+	 * the app runs, a lower level grows them back; otherwise they get their
+	 * full size back once no trim was requested for a while.
+	 */
+	public void trimMemory(int level) {
+		int cachePercent;
+		int poolPercent;
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+			cachePercent = 0;
+			poolPercent = 0;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			cachePercent = 25;
+			poolPercent = 0;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+			cachePercent = 50;
+			poolPercent = 0;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			cachePercent = 75;
+			poolPercent = 50;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			cachePercent = 25;
+			poolPercent = 0;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			cachePercent = 50;
+			poolPercent = 50;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			cachePercent = 75;
+			poolPercent = 100;
+		} else {
+			return;
+		}
+		// only the running levels tell that the pressure went down
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && cachePercent > mBudgetPercent)
+			cachePercent = mBudgetPercent;
+		if (LOG_ENABLED)
+			Log.d(TAG, "Trim level " + level + ", cache at " + cachePercent + "%, pool at " + poolPercent + "%");
+		mLastTrimTime = SystemClock.uptimeMillis();
+		setBudget(cachePercent, poolPercent);
+		if (cachePercent == 0) {
+			// the cache keeps a minimal size, but empty
+			mRemovalCause.set(CacheStats.CAUSE_TRIM);
+			try {
+				mMemCache.evictAll();
+			} finally {
+				mRemovalCause.remove();
+			}
+		}
 	}
 
+	/**
+	 * Called when a decode ran out of memory even at a larger sample size:
+	 * halves the cache and empties the pool, the rest of the cache stays
+	 */
+	public void onOutOfMemory() {
+		mLastTrimTime = SystemClock.uptimeMillis();
+		setBudget(mBudgetPercent / 2, 0);
+	}
+
+	private void setBudget(int cachePercent, int poolPercent) {
+		mBudgetPercent = cachePercent;
+		// the pool first, so that it doesn't take what the cache evicts
+		mBitmapPool.resize((int) ((long) mMaxPoolSize * poolPercent / 100));
+		mRemovalCause.set(CacheStats.CAUSE_TRIM);
+		try {
+			// a cache of size 0 isn't allowed, keep room for a few thumbnails
+			mMemCache.resize(Math.max(mMaxCacheSize / 16, (int) ((long) mMaxCacheSize * cachePercent / 100)));
+		} finally {
+			mRemovalCause.remove();
+		}
+	}
+
+	/** Gives the cache its full size back once memory pressure is over */
+	private void restoreBudget() {
+		if (mBudgetPercent < 100 && SystemClock.uptimeMillis() - mLastTrimTime > RESTORE_DELAY_MS) {
+			if (LOG_ENABLED)
+				Log.d(TAG, "No memory pressure anymore, restoring the cache size");
+			setBudget(100, 100);
+		}
+	}
+
+	/** Returns the pool fed by the bitmaps leaving this cache */
+	public BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
+
+	/**
+	 * Marks {@code bitmap} as displayed, it won't be reused even if it leaves
+	 * the cache until {@link #releaseBitmap(Bitmap)} is called as many times.
+	 * The loaders acquire every bitmap they deliver.
+	 */
+	public void acquireBitmap(Bitmap bitmap) {
+		if (bitmap == null)
+			return;
+		synchronized (mDisplayRefs) {
+			DisplayRef ref = mDisplayRefs.get(bitmap);
+			if (ref == null) {
+				ref = new DisplayRef();
+				mDisplayRefs.put(bitmap, ref);
+			}
+			ref.mCount++;
+			// it may have been pooled right after it was read from the cache
+			if (mBitmapPool.remove(bitmap))
+				ref.mRemoved = true;
+		}
+	}
+
+	/**
+	 * Marks {@code bitmap} as no longer displayed by one of its users, it is
+	 * pooled if no one displays it and it already left the cache.
+	 */
+	public void releaseBitmap(Bitmap bitmap) {
+		if (bitmap == null)
+			return;
+		synchronized (mDisplayRefs) {
+			DisplayRef ref = mDisplayRefs.get(bitmap);
+			if (ref == null || --ref.mCount > 0)
+				return;
+			mDisplayRefs.remove(bitmap);
+			if (ref.mRemoved) {
+				// no view holds it anymore, it can't be taken back
+				if (ref.mEvictedKey != null) {
+					EvictedRef evicted = mEvicted.get(ref.mEvictedKey);
+					if (evicted != null && evicted.get() == bitmap)
+						mEvicted.remove(ref.mEvictedKey);
+				}
+				mBitmapPool.put(bitmap);
+			}
+		}
+	}
+
+	/**
+	 * Pools a bitmap that left the cache, or keeps it in the second tier
+	 * under {@code evictedKey} if it is displayed
+	 */
+	private void onBitmapRemoved(String evictedKey, Variant variant, Bitmap bitmap) {
+		synchronized (mDisplayRefs) {
+			DisplayRef ref = mDisplayRefs.get(bitmap);
+			if (ref != null && ref.mCount > 0) {
+				ref.mRemoved = true;
+				if (evictedKey != null && !bitmap.isRecycled()) {
+					purgeEvicted();
+					ref.mEvictedKey = evictedKey;
+					mEvicted.put(evictedKey, new EvictedRef(evictedKey, variant, bitmap, mEvictedQueue));
+				}
+			} else {
+				mBitmapPool.put(bitmap);
+			}
+		}
+	}
+
+	/** Forgets the second tier bitmaps no view holds anymore */
+	private void purgeEvicted() {
+		EvictedRef ref;
+		while ((ref = (EvictedRef) mEvictedQueue.poll()) != null) {
+			if (mEvicted.get(ref.mKey) == ref)
+				mEvicted.remove(ref.mKey);
+		}
+	}
+
+	/**
+	 * Acquires {@code bitmap} if it is still cached as {@code key}. A removal
+	 * leaves the map before it is notified under mDisplayRefs, so a bitmap
+	 * found here can't be pooled anymore once acquired.
+	 *
+	 * @return false if the bitmap left the cache since it was read, it may
+	 *         already be reused
+	 */
+	private boolean acquireCached(String key, Bitmap bitmap) {
+		synchronized (mDisplayRefs) {
+			if (mMemCache.peek(key) != bitmap)
+				return false;
+			acquireBitmap(bitmap);
+			return true;
+		}
+	}
+
+	/**
+	 * Takes the bitmap of {@code key} back from the second tier into the
+	 * cache.
+	 *
+	 * @param acquire
+	 *            whether to acquire the bitmap for the caller
+	 * @return the bitmap, or null if it isn't held by a view anymore
+	 */
+	private Bitmap recoverEvicted(String key, boolean acquire) {
+		Bitmap bitmap;
+		Variant variant;
+		synchronized (mDisplayRefs) {
+			purgeEvicted();
+			EvictedRef evicted = mEvicted.remove(key);
+			if (evicted == null)
+				return null;
+			bitmap = evicted.get();
+			DisplayRef ref = bitmap != null ? mDisplayRefs.get(bitmap) : null;
+			if (ref == null || bitmap.isRecycled())
+				return null;
+			// back in the cache, it mustn't be pooled when released
+			ref.mRemoved = false;
+			ref.mEvictedKey = null;
+			if (acquire)
+				ref.mCount++;
+			variant = evicted.mVariant;
+		}
+		if (LOG_ENABLED)
+			Log.d(TAG, "Recovered evicted bitmap " + key);
+		// put outside of mDisplayRefs, the put may evict
+		if (variant != null)
+			addVariantToMemCache(variant.mKey, variant.mSampleSize, bitmap);
+		else
+			mMemCache.put(key, bitmap);
+		return bitmap;
+	}
+
+	private static final class DisplayRef {
+		int mCount;
+		/** Whether the bitmap left the cache while displayed */
+		boolean mRemoved;
+		/** Key of the bitmap in the second tier, if it was evicted */
+		String mEvictedKey;
+	}
+
+	private static final class EvictedRef extends WeakReference<Bitmap> {
+		final String mKey;
+		/** The variant the bitmap was cached as, null if not a variant */
+		final Variant mVariant;
+
+		EvictedRef(String key, Variant variant, Bitmap bitmap, ReferenceQueue<Bitmap> queue) {
+			super(bitmap, queue);
+			mKey = key;
+			mVariant = variant;
+		}
+	}
+
+	/**
+	 * Returns the bitmap of {@code key} from the cache, or from the bitmaps
+	 * evicted from it that are still displayed.
+	 */
 	public Bitmap getBitmapFromMemCache(String key) {
-		final Bitmap b = mMemCache.get(key);
+		return getBitmapFromMemCache(key, false);
+	}
+
+	/**
+	 * @param acquire
+	 *            whether to acquire the bitmap with the lookup, see
+	 *            {@link #getVariantFromMemCache(VariantKey, boolean)}
+	 */
+	private Bitmap getBitmapFromMemCache(String key, boolean acquire) {
+		Bitmap b = checkRecycled(key, mMemCache.get(key));
+		if (b != null && acquire && !acquireCached(key, b))
+			b = null;
+		if (b != null) {
+			mPrimaryHitCount.increment();
+		} else {
+			b = recoverEvicted(key, acquire);
+			if (b != null)
+				mSecondaryHitCount.increment();
+		}
+		if (b != null)
+			mHitCounts[getSource(key)].increment();
+		else
+			mMissCounts[getSource(key)].increment();
 		if (LOG_ENABLED)
 			Log.d(TAG, (b == null) ? "Cache miss" : "Cache found");
+		CacheTrace.Recorder trace = mTrace;
+		if (trace != null)
+			trace.record(CacheTrace.OP_GET, key, b != null ? getSize(b) : 0);
+		return b;
+	}
+
+	private static int getSize(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	/**
+	 * Starts recording the lookups and additions of this cache to
+	 * {@code file}, see {@link CacheTrace}. Replay the trace with the
+	 * CacheSimulator of tools/ to compare sizes and policies. Tracing costs a
+	 * synchronized buffered write per request, only use it to collect traces.
+	 */
+	public void startTrace(File file) throws IOException {
+		CacheTrace.Recorder trace = new CacheTrace.Recorder(file);
+		stopTrace();
+		mTrace = trace;
+	}
+
+	/** Stops recording and closes the trace file */
+	public void stopTrace() {
+		CacheTrace.Recorder trace = mTrace;
+		mTrace = null;
+		if (trace != null) {
+			try {
+				trace.close();
+			} catch (IOException e) {
+				if (LOG_ENABLED)
+					Log.w(TAG, "Unable to close the trace", e);
+			}
+		}
+	}
+
+	/** Called before {@code bitmap} is put in the cache */
+	private void onAdding(String key, Bitmap bitmap) {
+		int size = getSize(bitmap);
+		mInsertCount.increment();
+		mInsertedBytes.add(size);
+		CacheTrace.Recorder trace = mTrace;
+		if (trace != null)
+			trace.record(CacheTrace.OP_PUT, key, size);
+	}
+
+	/** Called after a put, the size of the cache may be a new peak */
+	private void onAdded() {
+		long size = mMemCache.size();
+		long peak;
+		while (size > (peak = mPeakSize.get()) && !mPeakSize.compareAndSet(peak, size)) {
+		}
+	}
+
+	private void countRemoval(int cause, Bitmap bitmap) {
+		mEvictionCounts[cause].increment();
+		mEvictedBytes[cause].add(getSize(bitmap));
+	}
+
+	private static StripedCounter[] createCounters(int count) {
+		StripedCounter[] counters = new StripedCounter[count];
+		for (int i = 0; i < count; i++) {
+			counters[i] = new StripedCounter();
+		}
+		return counters;
+	}
+
+	private static long[] sum(StripedCounter[] counters) {
+		long[] sums = new long[counters.length];
+		for (int i = 0; i < counters.length; i++) {
+			sums[i] = counters[i].sum();
+		}
+		return sums;
+	}
+
+	/** Returns where the image of a cache key comes from, see CacheStats */
+	private static int getSource(String key) {
+		if (key.startsWith("res:"))
+			return CacheStats.SOURCE_RESOURCE;
+		if (key.startsWith("http://") || key.startsWith("https://"))
+			return CacheStats.SOURCE_NETWORK;
+		return CacheStats.SOURCE_LOCAL;
+	}
+
+	/**
+	 * Returns a snapshot of the statistics of the cache. Taking it reads the
+	 * striped counters without any lock, it can be polled often.
+	 */
+	public CacheStats getStats() {
+		return new CacheStats(SystemClock.uptimeMillis(), sum(mHitCounts), sum(mMissCounts), mPrimaryHitCount.sum(), mSecondaryHitCount.sum(), mDerivedCount.sum(), mInsertCount.sum(), mInsertedBytes.sum(), sum(mEvictionCounts), sum(mEvictedBytes), mMemCache.size(), mMemCache.maxSize(), mPeakSize.get());
+	}
+
+	/**
+	 * Returns the bitmap of {@code key} in the cache, not counted as a request
+	 * nor as an access by the eviction policy
+	 */
+	public Bitmap peekMemCache(String key) {
+		return checkRecycled(key, mMemCache.peek(key));
+	}
+
+	/** Returns {@code b} cached as {@code key}, or null if it was recycled */
+	private Bitmap checkRecycled(String key, Bitmap b) {
 		if (b != null && b.isRecycled()) {
 			/* A recycled bitmap cannot be used again */
 			mMemCache.remove(key);
@@ -50,15 +532,219 @@ public class BitmapCache {
 		return b;
 	}
 
+	/** Returns the number of requests served by the cache */
+	public long getPrimaryHitCount() {
+		return mPrimaryHitCount.sum();
+	}
+
+	/**
+	 * Returns the number of requests served by a bitmap evicted from the
+	 * cache but still displayed
+	 */
+	public long getSecondaryHitCount() {
+		return mSecondaryHitCount.sum();
+	}
+
+	/** Returns the number of requests served by neither tier */
+	public long getMissCount() {
+		long count = 0;
+		for (StripedCounter counter : mMissCounts) {
+			count += counter.sum();
+		}
+		return count;
+	}
+
 	public void addBitmapToMemCache(String key, Bitmap bitmap) {
-		if (key != null && bitmap != null && getBitmapFromMemCache(key) == null)
+		restoreBudget();
+		if (key != null && bitmap != null && peekMemCache(key) == null) {
+			onAdding(key, bitmap);
 			mMemCache.put(key, bitmap);
+			onAdded();
+		}
 	}
 	
 	public void removeBitmapFromMemCache(String key) {
 		mMemCache.remove(key);
 	}
 
+	/**
+	 * Adds a decoded variant of an image to the cache.
+	 *
+	 * @param sampleSize
+	 *            the sample size the image was decoded at, 0 if it didn't come
+	 *            from a sampled decode (a video thumbnail)
+	 */
+	public void addVariantToMemCache(VariantKey key, int sampleSize, Bitmap bitmap) {
+		if (key == null || bitmap == null)
+			return;
+		restoreBudget();
+		synchronized (mVariants) {
+			if (peekMemCache(key.getKey()) != null)
+				return;
+			// indexed first, a bitmap too large for the cache is evicted by
+			// the put itself
+			Variant variant = new Variant(key, sampleSize);
+			mVariants.put(key.getKey(), variant);
+			ArrayList<Variant> variants = mVariantsBySource.get(key.getSource());
+			if (variants == null) {
+				variants = new ArrayList<Variant>(2);
+				mVariantsBySource.put(key.getSource(), variants);
+			}
+			variants.add(variant);
+			onAdding(key.getKey(), bitmap);
+			mMemCache.put(key.getKey(), bitmap);
+			onAdded();
+		}
+	}
+
+	/**
+	 * Returns the variant {@code key} of an image. If only a larger variant
+	 * of the image with the same transformation is cached, it is downscaled
+	 * to the requested size and the copy is cached, the image isn't read
+	 * again.
+	 *
+	 * @return the bitmap, or null if no cached variant can serve the request
+	 */
+	public Bitmap getVariantFromMemCache(VariantKey key) {
+		return getVariantFromMemCache(key, false);
+	}
+
+	/**
+	 * Returns the variant {@code key} of an image like
+	 * {@link #getVariantFromMemCache(VariantKey)}.
+	 *
+	 * @param acquire
+	 *            whether to acquire the bitmap before returning it, as
+	 *            {@link #acquireBitmap(Bitmap)} would. A bitmap acquired
+	 *            after the lookup may have been evicted and reused in
+	 *            between; the caller must release it if it doesn't display
+	 *            it.
+	 */
+	public Bitmap getVariantFromMemCache(VariantKey key, boolean acquire) {
+		Bitmap bitmap = getBitmapFromMemCache(key.getKey(), acquire);
+		if (bitmap != null)
+			return bitmap;
+		ArrayList<Variant> candidates;
+		synchronized (mVariants) {
+			ArrayList<Variant> variants = mVariantsBySource.get(key.getSource());
+			if (variants == null)
+				return null;
+			candidates = new ArrayList<Variant>(variants);
+		}
+		Variant best = null;
+		Bitmap bestBitmap = null;
+		for (Variant candidate : candidates) {
+			if (!candidate.mKey.isSameTransformation(key))
+				continue;
+			Bitmap candidateBitmap = peekMemCache(candidate.mKey.getKey());
+			if (candidateBitmap == null || !candidate.canServe(key, candidateBitmap))
+				continue;
+			if (bestBitmap == null || candidateBitmap.getWidth() * candidateBitmap.getHeight() < bestBitmap.getWidth() * bestBitmap.getHeight()) {
+				best = candidate;
+				bestBitmap = candidateBitmap;
+			}
+		}
+		if (best == null)
+			return null;
+		// only the variant served from is an access
+		mMemCache.get(best.mKey.getKey());
+		// keep it out of the pool while it's drawn from
+		if (!acquireCached(best.mKey.getKey(), bestBitmap))
+			return null;
+		Bitmap variant = null;
+		try {
+			variant = downscaleVariant(key, best, bestBitmap, acquire);
+		} finally {
+			// an acquiring lookup that returns the variant itself keeps it
+			if (variant != bestBitmap || !acquire)
+				releaseBitmap(bestBitmap);
+		}
+		return variant;
+	}
+
+	/**
+	 * Returns {@code source} downscaled to the variant {@code key}, or
+	 * {@code source} itself if it already has the size a decode would give.
+	 * The caller holds {@code source}.
+	 *
+	 * @param acquire
+	 *            whether to acquire a downscaled copy before it is cached
+	 */
+	private Bitmap downscaleVariant(VariantKey key, Variant variant, Bitmap source, boolean acquire) {
+		int width;
+		int height;
+		int sampleSize;
+		if (key.getThumbnailWidth() > 0) {
+			width = key.getThumbnailWidth();
+			height = Math.max(1, Math.round(source.getHeight() * ((float) width) / source.getWidth()));
+			sampleSize = variant.mSampleSize;
+		} else {
+			int scale = BitmapDecoder.calculateInSampleSize(source.getWidth(), source.getHeight(), key.getTargetWidth(), key.getTargetHeight());
+			width = Math.max(1, source.getWidth() / scale);
+			height = Math.max(1, source.getHeight() / scale);
+			sampleSize = variant.mSampleSize * scale;
+		}
+		if (width == source.getWidth() && height == source.getHeight())
+			return source;
+		if (LOG_ENABLED)
+			Log.d(TAG, "Downscaling " + variant.mKey + " to " + key);
+		Bitmap scaled = BitmapDecoder.createScaledCopy(source, width, height, mBitmapPool);
+		mDerivedCount.increment();
+		// acquire before caching, the cache may evict it right away
+		if (acquire)
+			acquireBitmap(scaled);
+		addVariantToMemCache(key, sampleSize, scaled);
+		return scaled;
+	}
+
+	/** Removes every variant of the image at {@code source} */
+	public void removeVariantsFromMemCache(String source) {
+		ArrayList<Variant> variants;
+		synchronized (mVariants) {
+			variants = mVariantsBySource.get(source);
+			if (variants == null)
+				return;
+			variants = new ArrayList<Variant>(variants);
+		}
+		for (Variant variant : variants) {
+			mMemCache.remove(variant.mKey.getKey());
+		}
+	}
+
+	/** Returns the variant that was cached under {@code key}, or null */
+	private Variant onVariantRemoved(String key) {
+		synchronized (mVariants) {
+			Variant variant = mVariants.remove(key);
+			if (variant == null)
+				return null;
+			ArrayList<Variant> variants = mVariantsBySource.get(variant.mKey.getSource());
+			if (variants != null && variants.remove(variant) && variants.isEmpty())
+				mVariantsBySource.remove(variant.mKey.getSource());
+			return variant;
+		}
+	}
+
+	private static final class Variant {
+		final VariantKey mKey;
+		final int mSampleSize;
+
+		Variant(VariantKey key, int sampleSize) {
+			mKey = key;
+			mSampleSize = sampleSize;
+		}
+
+		/**
+		 * Whether {@code bitmap} of this variant has enough pixels for the
+		 * variant {@code key}: it is at least as large, or it holds the whole
+		 * image and a decode couldn't do better
+		 */
+		boolean canServe(VariantKey key, Bitmap bitmap) {
+			if (mSampleSize == 1 && mKey.getThumbnailWidth() <= 0)
+				return true;
+			return (key.getTargetWidth() <= 0 || bitmap.getWidth() >= key.getTargetWidth()) && (key.getTargetHeight() <= 0 || bitmap.getHeight() >= key.getTargetHeight());
+		}
+	}
+
 	private Bitmap getBitmapFromMemCache(int resId) {
 		return getBitmapFromMemCache("res:" + resId);
 	}
@@ -78,10 +764,28 @@ public class BitmapCache {
 	}
 
 	public void clear() {
-		mMemCache.evictAll();
+		mRemovalCause.set(CacheStats.CAUSE_EXPLICIT);
+		try {
+			mMemCache.evictAll();
+		} finally {
+			mRemovalCause.remove();
+		}
+		synchronized (mDisplayRefs) {
+			for (EvictedRef evicted : mEvicted.values()) {
+				Bitmap bitmap = evicted.get();
+				DisplayRef ref = bitmap != null ? mDisplayRefs.get(bitmap) : null;
+				if (ref != null)
+					ref.mEvictedKey = null;
+			}
+			mEvicted.clear();
+		}
+		mBitmapPool.clear();
 	}
 
 	public void destroy() {
+		stopTrace();
+		if (mTrimCallbacks != null)
+			mAppContext.unregisterComponentCallbacks(mTrimCallbacks);
 		clear();
 		mInstance = null;
 	}
@@ -0,0 +1,305 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.os.Build;
+
+/**
+ * Decodes bitmaps at the size they are displayed at. The bounds of the image
+ * are read first, then the image is decoded with the largest power of two
+ * sample size that keeps it at least as large as the requested size. For an
+ * exact width the decoder also scales the sampled image through
+ * inDensity/inTargetDensity, in the same pass.
+ */
+public final class BitmapDecoder {
+
+	private BitmapDecoder() {
+	}
+
+	/**
+	 * Returns the largest power of two sample size that keeps an image of
+	 * {@code width} x {@code height} at least {@code reqWidth} x
+	 * {@code reqHeight}.
+	 *
+	 * @param reqWidth
+	 *            the requested width, 0 if only the height matters
+	 * @param reqHeight
+	 *            the requested height, 0 if only the width matters
+	 */
+	public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+		int inSampleSize = 1;
+		if (reqWidth <= 0 && reqHeight <= 0)
+			return inSampleSize;
+		while ((reqWidth <= 0 || width / (inSampleSize * 2) >= reqWidth) && (reqHeight <= 0 || height / (inSampleSize * 2) >= reqHeight)) {
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
+	}
+
+	/**
+	 * Decodes {@code data} at the smallest size not smaller than
+	 * {@code reqWidth} x {@code reqHeight}, reusing a bitmap of {@code pool}
+	 * if possible.
+	 *
+	 * @param opts
+	 *            the options used for both passes, keep a reference to call
+	 *            {@link BitmapFactory.Options#requestCancelDecode()}
+	 * @param pool
+	 *            the pool to take a reusable bitmap from, may be null
+	 */
+	public static Bitmap decodeByteArray(byte[] data, int reqWidth, int reqHeight, BitmapFactory.Options opts, BitmapPool pool) {
+		return decodeByteArray(data, reqWidth, reqHeight, 0, opts, pool);
+	}
+
+	/**
+	 * Decodes {@code data} at exactly {@code width}, keeping its aspect
+	 * ratio. The decoder subsamples then scales in the same pass, so the
+	 * image is never held at a larger size.
+	 *
+	 * @see #decodeByteArray(byte[], int, int, BitmapFactory.Options,
+	 *      BitmapPool)
+	 */
+	public static Bitmap decodeByteArrayToWidth(byte[] data, int width, BitmapFactory.Options opts, BitmapPool pool) {
+		return decodeByteArray(data, width, 0, width, opts, pool);
+	}
+
+	private static Bitmap decodeByteArray(byte[] data, int reqWidth, int reqHeight, int exactWidth, BitmapFactory.Options opts, BitmapPool pool) {
+		opts.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+		if (opts.outWidth <= 0 || opts.outHeight <= 0)
+			return null;
+		setScaling(opts, reqWidth, reqHeight, exactWidth);
+		Bitmap inBitmap = setInBitmap(opts, pool);
+		Bitmap bitmap;
+		try {
+			try {
+				bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+			} catch (IllegalArgumentException e) {
+				// the pooled bitmap doesn't fit this image after all
+				if (inBitmap == null)
+					throw e;
+				setPooledBitmap(opts, null);
+				pool.put(inBitmap);
+				inBitmap = null;
+				bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+			}
+		} catch (OutOfMemoryError e) {
+			prepareRetry(opts, exactWidth, pool, inBitmap);
+			inBitmap = null;
+			bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+		}
+		return onDecoded(bitmap, opts, pool, inBitmap);
+	}
+
+	/**
+	 * Decodes the file at {@code path} at the smallest size not smaller than
+	 * {@code reqWidth} x {@code reqHeight}, reusing a bitmap of {@code pool}
+	 * if possible.
+	 *
+	 * @param opts
+	 *            the options used for both passes, keep a reference to call
+	 *            {@link BitmapFactory.Options#requestCancelDecode()}
+	 * @param pool
+	 *            the pool to take a reusable bitmap from, may be null
+	 */
+	public static Bitmap decodeFile(String path, int reqWidth, int reqHeight, BitmapFactory.Options opts, BitmapPool pool) throws IOException {
+		return decodeFile(path, reqWidth, reqHeight, 0, opts, pool);
+	}
+
+	/**
+	 * Decodes the file at {@code path} at exactly {@code width}, keeping its
+	 * aspect ratio, in a single pass.
+	 *
+	 * @see #decodeByteArrayToWidth(byte[], int, BitmapFactory.Options,
+	 *      BitmapPool)
+	 */
+	public static Bitmap decodeFileToWidth(String path, int width, BitmapFactory.Options opts, BitmapPool pool) throws IOException {
+		return decodeFile(path, width, 0, width, opts, pool);
+	}
+
+	private static Bitmap decodeFile(String path, int reqWidth, int reqHeight, int exactWidth, BitmapFactory.Options opts, BitmapPool pool) throws IOException {
+		opts.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, opts);
+		if (opts.outWidth <= 0 || opts.outHeight <= 0)
+			return null;
+		setScaling(opts, reqWidth, reqHeight, exactWidth);
+		Bitmap inBitmap = setInBitmap(opts, pool);
+		Bitmap bitmap;
+		try {
+			try {
+				bitmap = decodeFileStream(path, opts);
+			} catch (IllegalArgumentException e) {
+				// the pooled bitmap doesn't fit this image after all
+				if (inBitmap == null)
+					throw e;
+				setPooledBitmap(opts, null);
+				pool.put(inBitmap);
+				inBitmap = null;
+				bitmap = decodeFileStream(path, opts);
+			}
+		} catch (OutOfMemoryError e) {
+			prepareRetry(opts, exactWidth, pool, inBitmap);
+			inBitmap = null;
+			bitmap = decodeFileStream(path, opts);
+		}
+		return onDecoded(bitmap, opts, pool, inBitmap);
+	}
+
+	private static Bitmap decodeFileStream(String path, BitmapFactory.Options opts) throws IOException {
+		FileInputStream fis = new FileInputStream(path);
+		try {
+			return BitmapFactory.decodeStream(fis, null, opts);
+		} finally {
+			DiskLruCache.closeQuietly(fis);
+		}
+	}
+
+	/**
+	 * Sets the sample size from the bounds read in {@code opts}, and if
+	 * {@code exactWidth} is set the densities that make the decoder scale the
+	 * sampled image to that width.
+	 */
+	private static void setScaling(BitmapFactory.Options opts, int reqWidth, int reqHeight, int exactWidth) {
+		opts.inJustDecodeBounds = false;
+		setSampleSize(opts, calculateInSampleSize(opts.outWidth, opts.outHeight, reqWidth, reqHeight), exactWidth);
+	}
+
+	/**
+	 * Prepares the single retry of a decode that ran out of memory: twice the
+	 * sample size, so a quarter of the pixels, and no pooled bitmap. The pool
+	 * is emptied to give its memory back.
+	 */
+	private static void prepareRetry(BitmapFactory.Options opts, int exactWidth, BitmapPool pool, Bitmap inBitmap) {
+		if (pool != null) {
+			if (inBitmap != null)
+				pool.put(inBitmap);
+			pool.clear();
+		}
+		setPooledBitmap(opts, null);
+		setSampleSize(opts, opts.inSampleSize * 2, exactWidth);
+	}
+
+	private static void setSampleSize(BitmapFactory.Options opts, int sampleSize, int exactWidth) {
+		opts.inSampleSize = sampleSize;
+		opts.inScaled = false;
+		opts.inDensity = 0;
+		opts.inTargetDensity = 0;
+		if (exactWidth > 0) {
+			int sampledWidth = (opts.outWidth + opts.inSampleSize - 1) / opts.inSampleSize;
+			if (sampledWidth != exactWidth) {
+				opts.inScaled = true;
+				opts.inDensity = sampledWidth;
+				opts.inTargetDensity = exactWidth;
+			}
+		}
+	}
+
+	/**
+	 * Gives the pooled bitmap {@code inBitmap} back if the decode failed,
+	 * resets the density
+	 */
+	private static Bitmap onDecoded(Bitmap bitmap, BitmapFactory.Options opts, BitmapPool pool, Bitmap inBitmap) {
+		if (bitmap == null) {
+			if (inBitmap != null)
+				pool.put(inBitmap);
+			return null;
+		}
+		// the densities were only a way to scale, draw the bitmap as is
+		if (opts.inScaled)
+			bitmap.setDensity(Bitmap.DENSITY_NONE);
+		return bitmap;
+	}
+
+	/**
+	 * Makes the decode produce a mutable bitmap, so it can be pooled later,
+	 * and reuse a pooled bitmap if one fits the bounds read in {@code opts}.
+	 *
+	 * @return the pooled bitmap set as inBitmap, or null
+	 */
+	private static Bitmap setInBitmap(BitmapFactory.Options opts, BitmapPool pool) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+			return null;
+		HoneycombOptions.setPooledBitmap(opts, null);
+		HoneycombOptions.setMutable(opts);
+		// before KitKat a reused bitmap can't receive a scaled decode
+		if (pool == null || (opts.inScaled && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT))
+			return null;
+		int width = (opts.outWidth + opts.inSampleSize - 1) / opts.inSampleSize;
+		int height = (opts.outHeight + opts.inSampleSize - 1) / opts.inSampleSize;
+		if (opts.inScaled) {
+			height = (int) (height * ((float) opts.inTargetDensity / opts.inDensity) + 0.5f);
+			width = opts.inTargetDensity;
+		}
+		Bitmap inBitmap = pool.getForDecode(width, height, opts.inPreferredConfig, opts.inSampleSize);
+		HoneycombOptions.setPooledBitmap(opts, inBitmap);
+		return inBitmap;
+	}
+
+	/** Sets the bitmap the decode reuses, only since Honeycomb */
+	private static void setPooledBitmap(BitmapFactory.Options opts, Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+			HoneycombOptions.setPooledBitmap(opts, bitmap);
+	}
+
+	/**
+	 * The options of API 11, in their own class so that the decoder still
+	 * loads on older devices
+	 */
+	private static final class HoneycombOptions {
+		static void setPooledBitmap(BitmapFactory.Options opts, Bitmap bitmap) {
+			opts.inBitmap = bitmap;
+		}
+
+		static void setMutable(BitmapFactory.Options opts) {
+			opts.inMutable = true;
+		}
+	}
+
+	/**
+	 * Scales {@code bitmap} to exactly {@code width}, keeping its aspect ratio.
+	 * The scaled bitmap is drawn into a bitmap of {@code pool} if possible,
+	 * the source bitmap is given to the pool (or recycled) if a new bitmap had
+	 * to be created, so it must not be shared.
+	 *
+	 * @param width
+	 *            the target width, if <= 0 the bitmap is returned as is
+	 * @param pool
+	 *            the pool to reuse bitmaps from and to, may be null
+	 */
+	public static Bitmap scaleToWidth(Bitmap bitmap, int width, BitmapPool pool) {
+		if (width <= 0 || bitmap.getWidth() == width)
+			return bitmap;
+		int height = Math.max(1, Math.round(bitmap.getHeight() * ((float) width) / bitmap.getWidth()));
+		Bitmap scaled = createScaledCopy(bitmap, width, height, pool);
+		if (scaled != bitmap && (pool == null || !pool.put(bitmap)))
+			bitmap.recycle();
+		return scaled;
+	}
+
+	/**
+	 * Returns a copy of {@code bitmap} scaled to {@code width} x
+	 * {@code height}, drawn into a bitmap of {@code pool} if possible. The
+	 * source bitmap is left untouched, it may be shared.
+	 *
+	 * @param pool
+	 *            the pool to reuse a bitmap from, may be null
+	 */
+	public static Bitmap createScaledCopy(Bitmap bitmap, int width, int height, BitmapPool pool) {
+		Bitmap scaled = pool != null ? pool.getForDrawing(width, height, Bitmap.Config.ARGB_8888) : null;
+		if (scaled == null)
+			return Bitmap.createScaledBitmap(bitmap, width, height, true);
+		Matrix matrix = new Matrix();
+		matrix.setScale(((float) width) / bitmap.getWidth(), ((float) height) / bitmap.getHeight());
+		scaled.eraseColor(Color.TRANSPARENT);
+		Canvas canvas = new Canvas(scaled);
+		canvas.drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+		return scaled;
+	}
+}
@@ -0,0 +1,276 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Pool of unused mutable bitmaps, reused by decodes through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} and as targets of
+ * scaling instead of allocating new bitmaps.
+ * <p>
+ * From KitKat any pooled bitmap with enough bytes can be reused, bitmaps are
+ * bucketed by byte count. Before KitKat a bitmap can only be reused for
+ * exactly the same size and config, and decodes can only reuse bitmaps when
+ * inSampleSize is 1. Before Honeycomb nothing is pooled.
+ * <p>
+ * Bitmaps given to the pool must not be referenced anymore: they are either
+ * handed out again or recycled when the pool exceeds its size.
+ */
+public class BitmapPool {
+	/** A pooled bitmap is not used for requests smaller than 1/4th of it */
+	private static final int MAX_SIZE_MULTIPLE = 4;
+
+	private final boolean mReuseAnySize = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+	private final boolean mEnabled = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	/** Bitmaps by byte count, used from KitKat */
+	private final TreeMap<Integer, LinkedList<Bitmap>> mBySize = new TreeMap<Integer, LinkedList<Bitmap>>();
+	/** Bitmaps by exact width, height and config, used before KitKat */
+	private final HashMap<String, LinkedList<Bitmap>> mByDimensions = new HashMap<String, LinkedList<Bitmap>>();
+	/** All pooled bitmaps, least recently pooled first */
+	private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+	private int mSize;
+	private int mMaxSize;
+
+	private int mPutCount;
+	private int mHitCount;
+	private int mMissCount;
+	private int mEvictionCount;
+
+	/**
+	 * @param maxSize
+	 *            the maximum sum of the byte counts of the pooled bitmaps
+	 */
+	public BitmapPool(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Offers {@code bitmap} to the pool.
+	 *
+	 * @return false if the bitmap can't be reused, the caller still owns it
+	 */
+	public synchronized boolean put(Bitmap bitmap) {
+		if (!mEnabled || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable())
+			return false;
+		int byteCount = getByteCount(bitmap);
+		if (byteCount > mMaxSize || mOrder.contains(bitmap))
+			return false;
+
+		LinkedList<Bitmap> bucket;
+		if (mReuseAnySize) {
+			bucket = mBySize.get(byteCount);
+			if (bucket == null) {
+				bucket = new LinkedList<Bitmap>();
+				mBySize.put(byteCount, bucket);
+			}
+		} else {
+			String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+			bucket = mByDimensions.get(key);
+			if (bucket == null) {
+				bucket = new LinkedList<Bitmap>();
+				mByDimensions.put(key, bucket);
+			}
+		}
+		bucket.addLast(bitmap);
+		mOrder.addLast(bitmap);
+		mSize += byteCount;
+		mPutCount++;
+		trimToSize(mMaxSize);
+		return true;
+	}
+
+	/**
+	 * Returns a pooled bitmap that a decode of {@code width} x {@code height}
+	 * with {@code inSampleSize} can reuse through inBitmap, or null. The
+	 * content of the returned bitmap is undefined.
+	 */
+	public Bitmap getForDecode(int width, int height, Bitmap.Config config, int inSampleSize) {
+		if (!mReuseAnySize && inSampleSize != 1) {
+			synchronized (this) {
+				mMissCount++;
+			}
+			return null;
+		}
+		return get(width, height, config);
+	}
+
+	/**
+	 * Returns a pooled bitmap of exactly {@code width} x {@code height} and
+	 * {@code config} to draw into, or null. The content of the returned bitmap
+	 * is undefined, erase it before drawing.
+	 */
+	public Bitmap getForDrawing(int width, int height, Bitmap.Config config) {
+		Bitmap bitmap = get(width, height, config);
+		if (bitmap != null && mReuseAnySize && (bitmap.getWidth() != width || bitmap.getHeight() != height || bitmap.getConfig() != config)) {
+			bitmap.reconfigure(width, height, config);
+		}
+		return bitmap;
+	}
+
+	private synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		if (!mEnabled)
+			return null;
+		if (config == null)
+			config = Bitmap.Config.ARGB_8888;
+		Bitmap bitmap = null;
+		if (mReuseAnySize) {
+			int byteCount = width * height * getBytesPerPixel(config);
+			Integer key = mBySize.ceilingKey(byteCount);
+			if (key != null && key <= byteCount * MAX_SIZE_MULTIPLE) {
+				bitmap = removeFromBucket(mBySize, key);
+			}
+		} else {
+			bitmap = removeFromBucket(mByDimensions, getKey(width, height, config));
+		}
+		if (bitmap == null) {
+			mMissCount++;
+			return null;
+		}
+		mOrder.remove(bitmap);
+		mSize -= getByteCount(bitmap);
+		mHitCount++;
+		return bitmap;
+	}
+
+	/**
+	 * Takes {@code bitmap} back out of the pool, for a bitmap that turned out
+	 * to be still in use.
+	 *
+	 * @return true if the bitmap was pooled
+	 */
+	public synchronized boolean remove(Bitmap bitmap) {
+		if (!mOrder.remove(bitmap))
+			return false;
+		if (mReuseAnySize) {
+			removeFromBucket(mBySize, getByteCount(bitmap), bitmap);
+		} else {
+			removeFromBucket(mByDimensions, getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), bitmap);
+		}
+		mSize -= getByteCount(bitmap);
+		return true;
+	}
+
+	private static <K> Bitmap removeFromBucket(Map<K, LinkedList<Bitmap>> buckets, K key) {
+		LinkedList<Bitmap> bucket = buckets.get(key);
+		if (bucket == null)
+			return null;
+		Bitmap bitmap = bucket.removeLast();
+		if (bucket.isEmpty())
+			buckets.remove(key);
+		return bitmap;
+	}
+
+	private static <K> void removeFromBucket(Map<K, LinkedList<Bitmap>> buckets, K key, Bitmap bitmap) {
+		LinkedList<Bitmap> bucket = buckets.get(key);
+		if (bucket != null) {
+			bucket.remove(bitmap);
+			if (bucket.isEmpty())
+				buckets.remove(key);
+		}
+	}
+
+	/**
+	 * Sets the size of the pool, recycling pooled bitmaps if it shrinks.
+	 *
+	 * @param maxSize
+	 *            the new maximum size, 0 to stop pooling
+	 */
+	public void resize(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+		synchronized (this) {
+			mMaxSize = maxSize;
+		}
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * Recycles the least recently pooled bitmaps until the pool is at or below
+	 * {@code maxSize}.
+	 */
+	public synchronized void trimToSize(int maxSize) {
+		Iterator<Bitmap> i = mOrder.iterator();
+		while (mSize > maxSize && i.hasNext()) {
+			Bitmap bitmap = i.next();
+			i.remove();
+			if (mReuseAnySize) {
+				removeFromBucket(mBySize, getByteCount(bitmap), bitmap);
+			} else {
+				removeFromBucket(mByDimensions, getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), bitmap);
+			}
+			mSize -= getByteCount(bitmap);
+			mEvictionCount++;
+			bitmap.recycle();
+		}
+	}
+
+	/** Recycles every pooled bitmap */
+	public void clear() {
+		trimToSize(0);
+	}
+
+	private static String getKey(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + ":" + config;
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.ALPHA_8)
+			return 1;
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+			return 2;
+		return 4;
+	}
+
+	/** Returns the number of bytes usable by a decode reusing {@code bitmap} */
+	static int getByteCount(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+			return bitmap.getAllocationByteCount();
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	public synchronized int size() {
+		return mSize;
+	}
+
+	public synchronized int maxSize() {
+		return mMaxSize;
+	}
+
+	/** Returns the number of requests served by a pooled bitmap */
+	public synchronized int hitCount() {
+		return mHitCount;
+	}
+
+	/** Returns the number of requests that had to allocate a new bitmap */
+	public synchronized int missCount() {
+		return mMissCount;
+	}
+
+	/** Returns the number of bitmaps accepted by {@link #put} */
+	public synchronized int putCount() {
+		return mPutCount;
+	}
+
+	/** Returns the number of pooled bitmaps recycled to respect the size */
+	public synchronized int evictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		int requests = mHitCount + mMissCount;
+		int hitPercent = requests != 0 ? (100 * mHitCount / requests) : 0;
+		return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%,evictions=%d]", mSize, mMaxSize, mHitCount, mMissCount, hitPercent, mEvictionCount);
+	}
+}
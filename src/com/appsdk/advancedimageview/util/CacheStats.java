@@ -0,0 +1,145 @@
+package com.appsdk.advancedimageview.util;
+
+/**
+ * Statistics of {@link BitmapCache} at a point in time, see
+ * {@link BitmapCache#getStats()}. Counts are totals since the cache was
+ * created, subtract two snapshots to get rates. Sizes are in bytes.
+ */
+public final class CacheStats {
+	/** Images loaded from a url */
+	public static final int SOURCE_NETWORK = 0;
+	/** Images loaded from a local file */
+	public static final int SOURCE_LOCAL = 1;
+	/** Images decoded from the resources of the app */
+	public static final int SOURCE_RESOURCE = 2;
+	static final int SOURCE_COUNT = 3;
+
+	/** Entries evicted to make room for new ones */
+	public static final int CAUSE_SIZE = 0;
+	/** Entries removed, replaced or cleared by the app */
+	public static final int CAUSE_EXPLICIT = 1;
+	/** Entries evicted because of memory pressure */
+	public static final int CAUSE_TRIM = 2;
+	static final int CAUSE_COUNT = 3;
+
+	private final long mTime;
+	private final long[] mHitCounts;
+	private final long[] mMissCounts;
+	private final long mPrimaryHitCount;
+	private final long mSecondaryHitCount;
+	private final long mDerivedCount;
+	private final long mInsertCount;
+	private final long mInsertedBytes;
+	private final long[] mEvictionCounts;
+	private final long[] mEvictedBytes;
+	private final long mSize;
+	private final long mMaxSize;
+	private final long mPeakSize;
+
+	CacheStats(long time, long[] hitCounts, long[] missCounts, long primaryHitCount, long secondaryHitCount, long derivedCount, long insertCount, long insertedBytes, long[] evictionCounts, long[] evictedBytes, long size, long maxSize, long peakSize) {
+		mTime = time;
+		mHitCounts = hitCounts;
+		mMissCounts = missCounts;
+		mPrimaryHitCount = primaryHitCount;
+		mSecondaryHitCount = secondaryHitCount;
+		mDerivedCount = derivedCount;
+		mInsertCount = insertCount;
+		mInsertedBytes = insertedBytes;
+		mEvictionCounts = evictionCounts;
+		mEvictedBytes = evictedBytes;
+		mSize = size;
+		mMaxSize = maxSize;
+		mPeakSize = peakSize;
+	}
+
+	/** Returns the uptime in ms at which the snapshot was taken */
+	public long getTime() {
+		return mTime;
+	}
+
+	/** Returns the number of lookups served, from either tier */
+	public long getHitCount() {
+		return sum(mHitCounts);
+	}
+
+	/** Returns the number of lookups served for images of {@code source} */
+	public long getHitCount(int source) {
+		return mHitCounts[source];
+	}
+
+	public long getMissCount() {
+		return sum(mMissCounts);
+	}
+
+	public long getMissCount(int source) {
+		return mMissCounts[source];
+	}
+
+	/** Returns the number of hits served by the cache itself */
+	public long getPrimaryHitCount() {
+		return mPrimaryHitCount;
+	}
+
+	/** Returns the number of hits served by evicted but displayed bitmaps */
+	public long getSecondaryHitCount() {
+		return mSecondaryHitCount;
+	}
+
+	/** Returns the number of misses served by downscaling a larger variant */
+	public long getDerivedCount() {
+		return mDerivedCount;
+	}
+
+	public long getInsertCount() {
+		return mInsertCount;
+	}
+
+	public long getInsertedBytes() {
+		return mInsertedBytes;
+	}
+
+	/** Returns the number of entries that left the cache for {@code cause} */
+	public long getEvictionCount(int cause) {
+		return mEvictionCounts[cause];
+	}
+
+	public long getEvictedBytes(int cause) {
+		return mEvictedBytes[cause];
+	}
+
+	/** Returns the bytes held by the cache */
+	public long getSize() {
+		return mSize;
+	}
+
+	/** Returns the current budget, lower than the full size under pressure */
+	public long getMaxSize() {
+		return mMaxSize;
+	}
+
+	/** Returns the most bytes the cache ever held */
+	public long getPeakSize() {
+		return mPeakSize;
+	}
+
+	/** Returns the share of lookups served, 0 if there was none */
+	public double getHitRate() {
+		long hits = getHitCount();
+		long requests = hits + getMissCount();
+		return requests > 0 ? (double) hits / requests : 0;
+	}
+
+	private static long sum(long[] counts) {
+		long sum = 0;
+		for (long count : counts) {
+			sum += count;
+		}
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CacheStats[size=%d,maxSize=%d,peak=%d,hits=%d,misses=%d,hitRate=%d%%,secondaryHits=%d,derived=%d,inserted=%d,evictedBySize=%d,evictedExplicitly=%d,evictedByTrim=%d]", mSize, mMaxSize, mPeakSize, getHitCount(), getMissCount(), (int) (getHitRate() * 100), mSecondaryHitCount, mDerivedCount, mInsertedBytes,
+				mEvictedBytes[CAUSE_SIZE], mEvictedBytes[CAUSE_EXPLICIT], mEvictedBytes[CAUSE_TRIM]);
+	}
+}
@@ -0,0 +1,132 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Trace of the requests to {@link BitmapCache}, recorded with
+ * {@link BitmapCache#startTrace(File)} and replayed by the CacheSimulator of
+ * tools/. Plain Java, so the simulator runs on a desktop JVM.
+ * <p>
+ * The file starts with {@link #MAGIC} and a version, then holds one record
+ * of 17 bytes per request: the operation, the time since the previous
+ * record in ms, a 64 bit hash of the key (urls and paths are not stored)
+ * and the size of the bitmap in bytes, 0 for a miss.
+ */
+public final class CacheTrace {
+	public static final int MAGIC = 0x41495654; // "AIVT"
+	public static final int VERSION = 1;
+	/** A lookup, its size is 0 if the bitmap wasn't in the cache */
+	public static final byte OP_GET = 0;
+	/** A bitmap added to the cache */
+	public static final byte OP_PUT = 1;
+
+	private CacheTrace() {
+	}
+
+	/** Returns the 64 bit FNV-1a hash of {@code key} */
+	public static long hashKey(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/** Writes records to a trace file, from any thread */
+	public static final class Recorder implements Closeable {
+		private final DataOutputStream mOut;
+		private long mLastTime;
+
+		public Recorder(File file) throws IOException {
+			mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+			mOut.writeInt(MAGIC);
+			mOut.writeInt(VERSION);
+			mLastTime = System.currentTimeMillis();
+		}
+
+		public synchronized void record(byte op, String key, int size) {
+			long now = System.currentTimeMillis();
+			try {
+				mOut.writeByte(op);
+				mOut.writeInt((int) Math.max(0, now - mLastTime));
+				mOut.writeLong(hashKey(key));
+				mOut.writeInt(size);
+			} catch (IOException e) {
+				// a broken trace is only a diagnostic lost
+			}
+			mLastTime = now;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			mOut.close();
+		}
+	}
+
+	/** Reads the records of a trace file one by one */
+	public static final class Reader implements Closeable {
+		private final DataInputStream mIn;
+		private byte mOp;
+		private int mDelay;
+		private long mKey;
+		private int mSize;
+
+		public Reader(File file) throws IOException {
+			mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+			if (mIn.readInt() != MAGIC)
+				throw new IOException("Not a cache trace: " + file);
+			int version = mIn.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported trace version " + version);
+		}
+
+		/**
+		 * Reads the next record
+		 *
+		 * @return false at the end of the trace
+		 */
+		public boolean next() throws IOException {
+			try {
+				mOp = mIn.readByte();
+			} catch (EOFException e) {
+				return false;
+			}
+			mDelay = mIn.readInt();
+			mKey = mIn.readLong();
+			mSize = mIn.readInt();
+			return true;
+		}
+
+		public byte getOp() {
+			return mOp;
+		}
+
+		/** Returns the time since the previous record, in ms */
+		public int getDelay() {
+			return mDelay;
+		}
+
+		public long getKey() {
+			return mKey;
+		}
+
+		public int getSize() {
+			return mSize;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mIn.close();
+		}
+	}
+}
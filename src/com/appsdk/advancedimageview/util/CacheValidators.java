@@ -0,0 +1,166 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLConnection;
+
+/**
+ * HTTP validators of a cached image, stored by {@link ImageDiskCache} next to
+ * its bytes: the ETag and Last-Modified headers to send a conditional
+ * request, and how long the copy is fresh according to Cache-Control max-age
+ * or Expires.
+ */
+public final class CacheValidators {
+	private static final String CHARSET = "UTF-8";
+	private static final String FIELD_ETAG = "ETag";
+	private static final String FIELD_LAST_MODIFIED = "Last-Modified";
+	private static final String FIELD_FETCHED_AT = "Fetched-At";
+	private static final String FIELD_MAX_AGE = "Max-Age";
+
+	private String mETag;
+	private String mLastModified;
+	/** When the copy was last fetched or revalidated, in ms since epoch */
+	private long mFetchedAt;
+	/** How long the copy is fresh after mFetchedAt, in ms */
+	private long mMaxAge;
+
+	private CacheValidators() {
+	}
+
+	/**
+	 * Reads the validators from the headers of a 200 or 304 response.
+	 *
+	 * @param now
+	 *            the time the response was received, in ms since epoch
+	 */
+	public static CacheValidators fromConnection(URLConnection conn, long now) {
+		CacheValidators validators = new CacheValidators();
+		validators.update(conn, now);
+		return validators;
+	}
+
+	/**
+	 * Updates the validators from the headers of a 304 response, headers
+	 * missing from it keep their previous value.
+	 */
+	public void update(URLConnection conn, long now) {
+		String eTag = conn.getHeaderField("ETag");
+		if (eTag != null)
+			mETag = eTag;
+		String lastModified = conn.getHeaderField("Last-Modified");
+		if (lastModified != null)
+			mLastModified = lastModified;
+		mFetchedAt = now;
+		mMaxAge = parseMaxAge(conn.getHeaderField("Cache-Control"));
+		if (mMaxAge < 0) {
+			long expiration = conn.getExpiration();
+			mMaxAge = expiration > now ? expiration - now : 0;
+		}
+	}
+
+	/**
+	 * Returns the max-age of a Cache-Control header in ms, 0 if it contains
+	 * no-cache or no-store, -1 if it says nothing about freshness.
+	 */
+	static long parseMaxAge(String cacheControl) {
+		if (cacheControl == null)
+			return -1;
+		for (String directive : cacheControl.split(",")) {
+			directive = directive.trim().toLowerCase();
+			if (directive.equals("no-cache") || directive.equals("no-store"))
+				return 0;
+			if (directive.startsWith("max-age=")) {
+				try {
+					return Math.max(0, Long.parseLong(directive.substring(8).trim())) * 1000;
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/** Adds the If-None-Match and If-Modified-Since headers to {@code conn} */
+	public void applyTo(URLConnection conn) {
+		if (mETag != null)
+			conn.setRequestProperty("If-None-Match", mETag);
+		if (mLastModified != null)
+			conn.setRequestProperty("If-Modified-Since", mLastModified);
+	}
+
+	/** Whether a conditional request can be sent for the cached copy */
+	public boolean canRevalidate() {
+		return mETag != null || mLastModified != null;
+	}
+
+	/** Whether the cached copy can still be used without asking the server */
+	public boolean isFresh(long now) {
+		return now >= mFetchedAt && now - mFetchedAt < mMaxAge;
+	}
+
+	public String getETag() {
+		return mETag;
+	}
+
+	public String getLastModified() {
+		return mLastModified;
+	}
+
+	public long getFetchedAt() {
+		return mFetchedAt;
+	}
+
+	public long getMaxAge() {
+		return mMaxAge;
+	}
+
+	/** Encodes the validators as "Name: value" lines */
+	byte[] encode() {
+		StringBuilder sb = new StringBuilder();
+		if (mETag != null)
+			sb.append(FIELD_ETAG).append(": ").append(mETag).append('\n');
+		if (mLastModified != null)
+			sb.append(FIELD_LAST_MODIFIED).append(": ").append(mLastModified).append('\n');
+		sb.append(FIELD_FETCHED_AT).append(": ").append(mFetchedAt).append('\n');
+		sb.append(FIELD_MAX_AGE).append(": ").append(mMaxAge).append('\n');
+		try {
+			return sb.toString().getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/** Decodes validators written by {@link #encode()}, unknown lines are skipped */
+	static CacheValidators decode(byte[] data) {
+		CacheValidators validators = new CacheValidators();
+		String text;
+		try {
+			text = new String(data, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		for (String line : text.split("\n")) {
+			int colon = line.indexOf(": ");
+			if (colon <= 0)
+				continue;
+			String name = line.substring(0, colon);
+			String value = line.substring(colon + 2);
+			try {
+				if (name.equals(FIELD_ETAG))
+					validators.mETag = value;
+				else if (name.equals(FIELD_LAST_MODIFIED))
+					validators.mLastModified = value;
+				else if (name.equals(FIELD_FETCHED_AT))
+					validators.mFetchedAt = Long.parseLong(value);
+				else if (name.equals(FIELD_MAX_AGE))
+					validators.mMaxAge = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+			}
+		}
+		return validators;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CacheValidators[eTag=%s,lastModified=%s,fetchedAt=%d,maxAge=%d]", mETag, mLastModified, mFetchedAt, mMaxAge);
+	}
+}
@@ -0,0 +1,515 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache with the same API as {@link MyLruCache} whose reads don't take a
+ * lock. Values are looked up in a ConcurrentHashMap, each hit is recorded in
+ * a small buffer picked by the reading thread, and the eviction order is only
+ * updated from these buffers by whichever thread holds the eviction lock: a
+ * write that may evict, or a read that finds its buffer half full and the
+ * lock free. A put evicts in the same hold of the lock as its write.
+ * <p>
+ * A read that finds its buffer full drops its access, so under heavy
+ * contention the order is an approximation. Writes, evictions and removals
+ * are serialized by the eviction lock. The order is kept by an
+ * {@link EvictionPolicy}, LRU by default.
+ */
+public class ConcurrentLruCache<K, V> {
+	private static final int BUFFER_SIZE = 32;
+	private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+	/** Pending accesses of a buffer after which a read tries to drain it */
+	private static final int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+	private static final int STRIPE_COUNT = getStripeCount();
+
+	private final ConcurrentHashMap<K, Node<K, V>> mMap;
+	private final ReentrantLock mEvictionLock = new ReentrantLock();
+	private final ReadBuffer[] mReadBuffers = new ReadBuffer[STRIPE_COUNT];
+	/** Guarded by mEvictionLock */
+	private final EvictionPolicy<K> mPolicy;
+
+	/** Size of this cache in units, guarded by mEvictionLock for writes */
+	private volatile int mSize;
+	private volatile int mMaxSize;
+
+	/** Guarded by mEvictionLock */
+	private int mPutCount;
+	private int mCreateCount;
+	private int mEvictionCount;
+
+	/**
+	 * @param maxSize
+	 *            for caches that do not override {@link #sizeOf}, this is the
+	 *            maximum number of entries in the cache. For all other caches,
+	 *            this is the maximum sum of the sizes of the entries in this
+	 *            cache.
+	 */
+	public ConcurrentLruCache(int maxSize) {
+		this(maxSize, new LruPolicy<K>());
+	}
+
+	/**
+	 * @param policy
+	 *            decides which entry is evicted, a new instance that no other
+	 *            cache uses
+	 */
+	public ConcurrentLruCache(int maxSize, EvictionPolicy<K> policy) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mMaxSize = maxSize;
+		mMap = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, STRIPE_COUNT);
+		mPolicy = policy;
+		mPolicy.setMaxSize(maxSize);
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			mReadBuffers[i] = new ReadBuffer();
+		}
+	}
+
+	private static int getStripeCount() {
+		int count = 1;
+		int target = Math.min(Runtime.getRuntime().availableProcessors() * 2, 16);
+		while (count < target) {
+			count <<= 1;
+		}
+		return count;
+	}
+
+	/**
+	 * Sets the size of the cache.
+	 *
+	 * @param maxSize
+	 *            The new maximum size.
+	 */
+	public void resize(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mEvictionLock.lock();
+		try {
+			mMaxSize = maxSize;
+			mPolicy.setMaxSize(maxSize);
+		} finally {
+			mEvictionLock.unlock();
+		}
+		trimToSize(maxSize);
+	}
+
+	/**
+	 * Returns the value for {@code key} if it is cached. Unlike
+	 * {@link #get(Object)} the policy isn't told, no hit or miss is counted
+	 * and no value is created.
+	 */
+	public final V peek(K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+
+		Node<K, V> node = mMap.get(key);
+		return node != null ? node.mValue : null;
+	}
+
+	/**
+	 * Returns the value for {@code key} if it exists in the cache or can be
+	 * created by {@code #create}. If a value was returned, the policy is told
+	 * once the access is drained from its buffer. This
+	 * returns null if a value is not cached and cannot be created.
+	 */
+	public final V get(K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+
+		ReadBuffer buffer = getReadBuffer();
+		Node<K, V> node = mMap.get(key);
+		if (node != null) {
+			buffer.mHitCount.incrementAndGet();
+			recordAccess(buffer, node);
+			return node.mValue;
+		}
+		buffer.mMissCount.incrementAndGet();
+
+		V createdValue = create(key);
+		if (createdValue == null) {
+			return null;
+		}
+
+		V mapValue = null;
+		mEvictionLock.lock();
+		try {
+			mCreateCount++;
+			Node<K, V> existing = mMap.get(key);
+			if (existing != null) {
+				// There was a conflict, keep the value in the map
+				mapValue = existing.mValue;
+			} else {
+				Node<K, V> created = new Node<K, V>(key, createdValue, safeSizeOf(key, createdValue));
+				mMap.put(key, created);
+				add(created);
+			}
+		} finally {
+			mEvictionLock.unlock();
+		}
+
+		if (mapValue != null) {
+			entryRemoved(false, key, createdValue, mapValue);
+			return mapValue;
+		} else {
+			trimToSize(mMaxSize);
+			return createdValue;
+		}
+	}
+
+	/**
+	 * Caches {@code value} for {@code key}, as a new entry for the policy.
+	 *
+	 * @return the previous value mapped by {@code key}.
+	 */
+	public final V put(K key, V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException("key == null || value == null");
+		}
+
+		Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+		Node<K, V> previous;
+		Node<K, V> evicted = null;
+		mEvictionLock.lock();
+		try {
+			mPutCount++;
+			// the hits only matter to select a victim, a put that may evict
+			// applies them before its entry becomes the most recent
+			if (mSize + node.mSize > mMaxSize)
+				drainReadBuffers();
+			previous = mMap.put(key, node);
+			if (previous != null)
+				remove(previous, false);
+			add(node);
+			// evict in the same hold of the lock
+			if (mSize > mMaxSize) {
+				Node<K, V> last = null;
+				while (mSize > mMaxSize && !mMap.isEmpty()) {
+					Node<K, V> eldest = evictLocked();
+					if (last != null)
+						last.mNextEvicted = eldest;
+					else
+						evicted = eldest;
+					last = eldest;
+				}
+			}
+		} finally {
+			mEvictionLock.unlock();
+		}
+
+		if (previous != null) {
+			entryRemoved(false, key, previous.mValue, value);
+		}
+		for (; evicted != null; evicted = evicted.mNextEvicted) {
+			entryRemoved(true, evicted.mKey, evicted.mValue, null);
+		}
+
+		return previous != null ? previous.mValue : null;
+	}
+
+	/**
+	 * Remove the eldest entries until the total of remaining entries is at or
+	 * below the requested size.
+	 *
+	 * @param maxSize
+	 *            the maximum size of the cache before returning. May be -1 to
+	 *            evict even 0-sized elements.
+	 */
+	public void trimToSize(int maxSize) {
+		while (true) {
+			Node<K, V> eldest;
+			mEvictionLock.lock();
+			try {
+				if (mSize < 0 || (mMap.isEmpty() && mSize != 0)) {
+					throw new IllegalStateException(getClass().getName() + ".sizeOf() is reporting inconsistent results!");
+				}
+
+				if (mSize <= maxSize || mMap.isEmpty()) {
+					break;
+				}
+
+				drainReadBuffers();
+				eldest = evictLocked();
+			} finally {
+				mEvictionLock.unlock();
+			}
+
+			entryRemoved(true, eldest.mKey, eldest.mValue, null);
+		}
+	}
+
+	/** Removes the victim of the policy, needs mEvictionLock */
+	private Node<K, V> evictLocked() {
+		K key = mPolicy.selectVictim();
+		Node<K, V> eldest = key != null ? mMap.remove(key) : null;
+		if (eldest == null) {
+			throw new IllegalStateException(mPolicy.getClass().getName() + " selected a key not in the cache: " + key);
+		}
+		remove(eldest, true);
+		mEvictionCount++;
+		return eldest;
+	}
+
+	/**
+	 * Removes the entry for {@code key} if it exists.
+	 *
+	 * @return the previous value mapped by {@code key}.
+	 */
+	public final V remove(K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+
+		Node<K, V> previous;
+		mEvictionLock.lock();
+		try {
+			previous = mMap.remove(key);
+			if (previous != null)
+				remove(previous, false);
+		} finally {
+			mEvictionLock.unlock();
+		}
+
+		if (previous != null) {
+			entryRemoved(false, key, previous.mValue, null);
+		}
+
+		return previous != null ? previous.mValue : null;
+	}
+
+	/**
+	 * Called for entries that have been evicted or removed, see
+	 * {@link MyLruCache#entryRemoved}. The method is called without holding
+	 * the eviction lock.
+	 */
+	protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+	}
+
+	/**
+	 * Called after a cache miss to compute a value for the corresponding key,
+	 * see {@link MyLruCache#create}. The default implementation returns null.
+	 */
+	protected V create(K key) {
+		return null;
+	}
+
+	private int safeSizeOf(K key, V value) {
+		int result = sizeOf(key, value);
+		if (result < 0) {
+			throw new IllegalStateException("Negative size: " + key + "=" + value);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the size of the entry for {@code key} and {@code value} in
+	 * user-defined units. The default implementation returns 1 so that size is
+	 * the number of entries and max size is the maximum number of entries.
+	 *
+	 * <p>
+	 * An entry's size must not change while it is in the cache.
+	 */
+	protected int sizeOf(K key, V value) {
+		return 1;
+	}
+
+	/**
+	 * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+	 */
+	public final void evictAll() {
+		trimToSize(-1); // -1 will evict 0-sized elements
+	}
+
+	private ReadBuffer getReadBuffer() {
+		return mReadBuffers[(int) Thread.currentThread().getId() & (STRIPE_COUNT - 1)];
+	}
+
+	/** Records a hit on {@code node}, dropped if the buffer is full */
+	private void recordAccess(ReadBuffer buffer, Node<K, V> node) {
+		int write = buffer.mWriteCount.get();
+		int pending = write - buffer.mReadCount;
+		if (pending < BUFFER_SIZE && buffer.mWriteCount.compareAndSet(write, write + 1)) {
+			buffer.mSlots.set(write & BUFFER_MASK, node);
+			pending++;
+		}
+		if (pending >= DRAIN_THRESHOLD && mEvictionLock.tryLock()) {
+			try {
+				drainReadBuffers();
+			} finally {
+				mEvictionLock.unlock();
+			}
+		}
+	}
+
+	/** Applies the recorded hits to the LRU order, needs mEvictionLock */
+	@SuppressWarnings("unchecked")
+	private void drainReadBuffers() {
+		for (ReadBuffer buffer : mReadBuffers) {
+			int read = buffer.mReadCount;
+			int write = buffer.mWriteCount.get();
+			while (read != write) {
+				int index = read & BUFFER_MASK;
+				Node<K, V> node = (Node<K, V>) buffer.mSlots.get(index);
+				// the reader took the slot but didn't publish its node yet
+				if (node == null)
+					break;
+				buffer.mSlots.set(index, null);
+				// skip hits on a value replaced or removed since
+				if (mMap.get(node.mKey) == node)
+					mPolicy.onAccess(node.mKey);
+				read++;
+			}
+			buffer.mReadCount = read;
+		}
+	}
+
+	/** Accounts for a node just put in the map, needs mEvictionLock */
+	private void add(Node<K, V> node) {
+		mPolicy.onAdd(node.mKey, node.mSize);
+		mSize += node.mSize;
+	}
+
+	/** Accounts for a node just removed from the map, needs mEvictionLock */
+	private void remove(Node<K, V> node, boolean evicted) {
+		mPolicy.onRemove(node.mKey, evicted);
+		mSize -= node.mSize;
+	}
+
+	/**
+	 * For caches that do not override {@link #sizeOf}, this returns the number
+	 * of entries in the cache. For all other caches, this returns the sum of
+	 * the sizes of the entries in this cache.
+	 */
+	public final int size() {
+		return mSize;
+	}
+
+	/**
+	 * For caches that do not override {@link #sizeOf}, this returns the maximum
+	 * number of entries in the cache. For all other caches, this returns the
+	 * maximum sum of the sizes of the entries in this cache.
+	 */
+	public final int maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned a value that was
+	 * already present in the cache.
+	 */
+	public final int hitCount() {
+		int count = 0;
+		for (ReadBuffer buffer : mReadBuffers) {
+			count += buffer.mHitCount.get();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned null or required a new
+	 * value to be created.
+	 */
+	public final int missCount() {
+		int count = 0;
+		for (ReadBuffer buffer : mReadBuffers) {
+			count += buffer.mMissCount.get();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of times {@link #create(Object)} returned a value.
+	 */
+	public final int createCount() {
+		mEvictionLock.lock();
+		try {
+			return mCreateCount;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of times {@link #put} was called.
+	 */
+	public final int putCount() {
+		mEvictionLock.lock();
+		try {
+			return mPutCount;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of values that have been evicted.
+	 */
+	public final int evictionCount() {
+		mEvictionLock.lock();
+		try {
+			return mEvictionCount;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of the current contents of the cache, ordered from the
+	 * next entry to be evicted to the last one.
+	 */
+	public final Map<K, V> snapshot() {
+		mEvictionLock.lock();
+		try {
+			drainReadBuffers();
+			Map<K, V> snapshot = new LinkedHashMap<K, V>();
+			for (K key : mPolicy.keys()) {
+				Node<K, V> node = mMap.get(key);
+				if (node != null)
+					snapshot.put(key, node.mValue);
+			}
+			return snapshot;
+		} finally {
+			mEvictionLock.unlock();
+		}
+	}
+
+	@Override
+	public final String toString() {
+		int hitCount = hitCount();
+		int accesses = hitCount + missCount();
+		int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+		return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]", mMaxSize, hitCount, accesses - hitCount, hitPercent);
+	}
+
+	private static final class Node<K, V> {
+		final K mKey;
+		final V mValue;
+		final int mSize;
+		/** Chains the nodes evicted by a put, guarded by mEvictionLock */
+		Node<K, V> mNextEvicted;
+
+		Node(K key, V value, int size) {
+			mKey = key;
+			mValue = value;
+			mSize = size;
+		}
+	}
+
+	/** Accesses recorded by the threads of one stripe */
+	private static final class ReadBuffer {
+		final AtomicReferenceArray<Node<?, ?>> mSlots = new AtomicReferenceArray<Node<?, ?>>(BUFFER_SIZE);
+		final AtomicInteger mWriteCount = new AtomicInteger();
+		/** Written under mEvictionLock, read by recording threads */
+		volatile int mReadCount;
+		final AtomicInteger mHitCount = new AtomicInteger();
+		final AtomicInteger mMissCount = new AtomicInteger();
+	}
+}
@@ -0,0 +1,717 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded cache of files on the file system, persisted through a
+ * journal so it survives process restarts. Each entry is identified by a key
+ * and holds {@code valueCount} files; entries are evicted in least recently
+ * used order once the total size exceeds {@code maxSize}.
+ *
+ * <p>
+ * The journal is a text file in the cache directory. Its header holds a magic
+ * string, the cache version, the app version and the value count, followed by
+ * one line per operation:
+ * <ul>
+ * <li>DIRTY key: an entry is being created or updated.</li>
+ * <li>CLEAN key size...: an edit was committed, followed by the length of
+ * each value.</li>
+ * <li>REMOVE key: the entry was removed or its edit was aborted.</li>
+ * <li>READ key: the entry was accessed, used to keep the LRU order.</li>
+ * </ul>
+ * The journal is compacted once it holds too many redundant operations.
+ *
+ * <p>
+ * Keys must match {@code [a-z0-9_-]{1,64}}; use {@link #hashKey(String)} to
+ * turn an arbitrary string like an url into a valid key.
+ */
+public final class DiskLruCache implements Closeable {
+	static final String JOURNAL_FILE = "journal";
+	static final String JOURNAL_FILE_TMP = "journal.tmp";
+	static final String MAGIC = "appsdk.advancedimageview.DiskLruCache";
+	static final String VERSION_1 = "1";
+
+	private static final String CLEAN = "CLEAN";
+	private static final String DIRTY = "DIRTY";
+	private static final String REMOVE = "REMOVE";
+	private static final String READ = "READ";
+
+	private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+	private final File mDirectory;
+	private final File mJournalFile;
+	private final File mJournalFileTmp;
+	private final int mAppVersion;
+	private final int mValueCount;
+	private long mMaxSize;
+	private long mSize = 0;
+	private Writer mJournalWriter;
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+	private int mRedundantOpCount;
+
+	private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+		mDirectory = directory;
+		mAppVersion = appVersion;
+		mJournalFile = new File(directory, JOURNAL_FILE);
+		mJournalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+		mValueCount = valueCount;
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Opens the cache in {@code directory}, creating a new cache if none
+	 * exists there or if the existing journal is unreadable or was written
+	 * for another app version or value count.
+	 *
+	 * @param directory
+	 *            a writable directory used only by this cache
+	 * @param appVersion
+	 *            bump this to drop all the data written by older versions
+	 * @param valueCount
+	 *            the number of files per entry, must be positive
+	 * @param maxSize
+	 *            the maximum number of bytes this cache should use
+	 * @throws IOException
+	 *             if reading or writing the cache directory fails
+	 */
+	public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize) throws IOException {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		if (valueCount <= 0) {
+			throw new IllegalArgumentException("valueCount <= 0");
+		}
+
+		DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+		if (cache.mJournalFile.exists()) {
+			try {
+				cache.readJournal();
+				cache.processJournal();
+				cache.mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cache.mJournalFile, true), "US-ASCII"));
+				return cache;
+			} catch (IOException journalIsCorrupt) {
+				cache.delete();
+			}
+		}
+
+		directory.mkdirs();
+		cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+		cache.rebuildJournal();
+		return cache;
+	}
+
+	private void readJournal() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), "US-ASCII"), 8192);
+		try {
+			String magic = reader.readLine();
+			String version = reader.readLine();
+			String appVersionString = reader.readLine();
+			String valueCountString = reader.readLine();
+			String blank = reader.readLine();
+			if (!MAGIC.equals(magic) || !VERSION_1.equals(version) || !Integer.toString(mAppVersion).equals(appVersionString) || !Integer.toString(mValueCount).equals(valueCountString) || !"".equals(blank)) {
+				throw new IOException("unexpected journal header: [" + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
+			}
+
+			int lineCount = 0;
+			while (true) {
+				String line = reader.readLine();
+				if (line == null)
+					break;
+				readJournalLine(line);
+				lineCount++;
+			}
+			mRedundantOpCount = lineCount - mEntries.size();
+		} finally {
+			closeQuietly(reader);
+		}
+	}
+
+	private void readJournalLine(String line) throws IOException {
+		String[] parts = line.split(" ");
+		if (parts.length < 2) {
+			throw new IOException("unexpected journal line: " + line);
+		}
+
+		String key = parts[1];
+		if (parts[0].equals(REMOVE) && parts.length == 2) {
+			mEntries.remove(key);
+			return;
+		}
+
+		Entry entry = mEntries.get(key);
+		if (entry == null) {
+			entry = new Entry(key);
+			mEntries.put(key, entry);
+		}
+
+		if (parts[0].equals(CLEAN) && parts.length == 2 + mValueCount) {
+			entry.mReadable = true;
+			entry.mCurrentEditor = null;
+			entry.setLengths(parts, 2);
+		} else if (parts[0].equals(DIRTY) && parts.length == 2) {
+			entry.mCurrentEditor = new Editor(entry);
+		} else if (parts[0].equals(READ) && parts.length == 2) {
+			// this work was already done by calling mEntries.get()
+		} else {
+			throw new IOException("unexpected journal line: " + line);
+		}
+	}
+
+	/**
+	 * Computes the initial size and collects garbage as a part of opening the
+	 * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+	 */
+	private void processJournal() throws IOException {
+		deleteIfExists(mJournalFileTmp);
+		for (Iterator<Entry> i = mEntries.values().iterator(); i.hasNext();) {
+			Entry entry = i.next();
+			if (entry.mCurrentEditor == null) {
+				for (int t = 0; t < mValueCount; t++) {
+					mSize += entry.mLengths[t];
+				}
+			} else {
+				entry.mCurrentEditor = null;
+				for (int t = 0; t < mValueCount; t++) {
+					deleteIfExists(entry.getCleanFile(t));
+					deleteIfExists(entry.getDirtyFile(t));
+				}
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Creates a new journal that omits redundant information. This replaces
+	 * the current journal if it exists.
+	 */
+	private synchronized void rebuildJournal() throws IOException {
+		if (mJournalWriter != null) {
+			mJournalWriter.close();
+		}
+
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFileTmp), "US-ASCII"));
+		try {
+			writer.write(MAGIC);
+			writer.write("\n");
+			writer.write(VERSION_1);
+			writer.write("\n");
+			writer.write(Integer.toString(mAppVersion));
+			writer.write("\n");
+			writer.write(Integer.toString(mValueCount));
+			writer.write("\n");
+			writer.write("\n");
+
+			for (Entry entry : mEntries.values()) {
+				if (entry.mCurrentEditor != null) {
+					writer.write(DIRTY + ' ' + entry.mKey + '\n');
+				} else {
+					writer.write(CLEAN + ' ' + entry.mKey + entry.getLengths() + '\n');
+				}
+			}
+		} finally {
+			writer.close();
+		}
+
+		if (!mJournalFileTmp.renameTo(mJournalFile)) {
+			throw new IOException("failed to rename " + mJournalFileTmp + " to " + mJournalFile);
+		}
+		mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, true), "US-ASCII"));
+		mRedundantOpCount = 0;
+	}
+
+	/**
+	 * Returns the files of the entry named {@code key}, or null if it doesn't
+	 * exist or is not currently readable. If a value is returned, it is moved
+	 * to the head of the LRU queue.
+	 */
+	public synchronized Snapshot get(String key) throws IOException {
+		checkNotClosed();
+		validateKey(key);
+		Entry entry = mEntries.get(key);
+		if (entry == null || !entry.mReadable) {
+			return null;
+		}
+
+		File[] files = new File[mValueCount];
+		for (int i = 0; i < mValueCount; i++) {
+			files[i] = entry.getCleanFile(i);
+			if (!files[i].exists()) {
+				// a file was deleted behind our back, drop the whole entry
+				remove(key);
+				return null;
+			}
+		}
+
+		mRedundantOpCount++;
+		mJournalWriter.append(READ + ' ' + key + '\n');
+		if (journalRebuildRequired()) {
+			rebuildJournal();
+		}
+		return new Snapshot(key, files, entry.mLengths.clone());
+	}
+
+	/**
+	 * Returns an editor for the entry named {@code key}, or null if another
+	 * edit is in progress.
+	 */
+	public synchronized Editor edit(String key) throws IOException {
+		checkNotClosed();
+		validateKey(key);
+		Entry entry = mEntries.get(key);
+		if (entry == null) {
+			entry = new Entry(key);
+			mEntries.put(key, entry);
+		} else if (entry.mCurrentEditor != null) {
+			return null;
+		}
+
+		Editor editor = new Editor(entry);
+		entry.mCurrentEditor = editor;
+
+		// flush the journal before creating files to prevent file leaks
+		mJournalWriter.write(DIRTY + ' ' + key + '\n');
+		mJournalWriter.flush();
+		return editor;
+	}
+
+	/** Returns the directory where this cache stores its data. */
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/** Returns the maximum number of bytes that this cache should use. */
+	public synchronized long maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * Changes the maximum number of bytes the cache can store and trims the
+	 * cache if the new size is smaller.
+	 */
+	public synchronized void setMaxSize(long maxSize) throws IOException {
+		mMaxSize = maxSize;
+		trimToSize();
+	}
+
+	/**
+	 * Returns the number of bytes currently being used to store the values in
+	 * this cache. This may be greater than the max size while an edit is
+	 * committed.
+	 */
+	public synchronized long size() {
+		return mSize;
+	}
+
+	private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+		Entry entry = editor.mEntry;
+		if (entry.mCurrentEditor != editor) {
+			throw new IllegalStateException();
+		}
+
+		// if this edit is creating the entry for the first time, every index
+		// must have a value
+		if (success && !entry.mReadable) {
+			for (int i = 0; i < mValueCount; i++) {
+				if (!entry.getDirtyFile(i).exists()) {
+					editor.abort();
+					throw new IllegalStateException("edit didn't create file " + i);
+				}
+			}
+		}
+
+		for (int i = 0; i < mValueCount; i++) {
+			File dirty = entry.getDirtyFile(i);
+			if (success) {
+				if (dirty.exists()) {
+					File clean = entry.getCleanFile(i);
+					deleteIfExists(clean);
+					dirty.renameTo(clean);
+					long oldLength = entry.mLengths[i];
+					long newLength = clean.length();
+					entry.mLengths[i] = newLength;
+					mSize = mSize - oldLength + newLength;
+				}
+			} else {
+				deleteIfExists(dirty);
+			}
+		}
+
+		mRedundantOpCount++;
+		entry.mCurrentEditor = null;
+		if (entry.mReadable | success) {
+			entry.mReadable = true;
+			mJournalWriter.write(CLEAN + ' ' + entry.mKey + entry.getLengths() + '\n');
+		} else {
+			mEntries.remove(entry.mKey);
+			mJournalWriter.write(REMOVE + ' ' + entry.mKey + '\n');
+		}
+		mJournalWriter.flush();
+
+		trimToSize();
+		if (journalRebuildRequired()) {
+			rebuildJournal();
+		}
+	}
+
+	/**
+	 * We only rebuild the journal when it will halve the size of the journal
+	 * and eliminate at least 2000 ops.
+	 */
+	private boolean journalRebuildRequired() {
+		return mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOpCount >= mEntries.size();
+	}
+
+	/**
+	 * Drops the entry for {@code key} if it exists and can be removed. Entries
+	 * actively being edited cannot be removed.
+	 *
+	 * @return true if an entry was removed.
+	 */
+	public synchronized boolean remove(String key) throws IOException {
+		checkNotClosed();
+		validateKey(key);
+		Entry entry = mEntries.get(key);
+		if (entry == null || entry.mCurrentEditor != null) {
+			return false;
+		}
+
+		for (int i = 0; i < mValueCount; i++) {
+			File file = entry.getCleanFile(i);
+			if (file.exists() && !file.delete()) {
+				throw new IOException("failed to delete " + file);
+			}
+			mSize -= entry.mLengths[i];
+			entry.mLengths[i] = 0;
+		}
+
+		mRedundantOpCount++;
+		mJournalWriter.append(REMOVE + ' ' + key + '\n');
+		mEntries.remove(key);
+
+		if (journalRebuildRequired()) {
+			rebuildJournal();
+		}
+		return true;
+	}
+
+	/** Returns true if this cache has been closed. */
+	public synchronized boolean isClosed() {
+		return mJournalWriter == null;
+	}
+
+	private void checkNotClosed() {
+		if (mJournalWriter == null) {
+			throw new IllegalStateException("cache is closed");
+		}
+	}
+
+	/** Forces buffered operations to the filesystem. */
+	public synchronized void flush() throws IOException {
+		checkNotClosed();
+		trimToSize();
+		mJournalWriter.flush();
+	}
+
+	/** Closes this cache. Stored values will remain on the filesystem. */
+	public synchronized void close() throws IOException {
+		if (mJournalWriter == null) {
+			return;
+		}
+		for (Entry entry : new ArrayList<Entry>(mEntries.values())) {
+			if (entry.mCurrentEditor != null) {
+				entry.mCurrentEditor.abort();
+			}
+		}
+		trimToSize();
+		mJournalWriter.close();
+		mJournalWriter = null;
+	}
+
+	private void trimToSize() throws IOException {
+		while (mSize > mMaxSize) {
+			Map.Entry<String, Entry> toEvict = null;
+			for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+				if (e.getValue().mCurrentEditor == null) {
+					toEvict = e;
+					break;
+				}
+			}
+			if (toEvict == null)
+				break;
+			remove(toEvict.getKey());
+		}
+	}
+
+	/**
+	 * Closes the cache and deletes all of its stored values. This will delete
+	 * all files in the cache directory including files that weren't created
+	 * by the cache.
+	 */
+	public void delete() throws IOException {
+		close();
+		deleteContents(mDirectory);
+	}
+
+	private void validateKey(String key) {
+		if (key == null || key.length() == 0 || key.length() > 64) {
+			throw new IllegalArgumentException("keys must match [a-z0-9_-]{1,64}: \"" + key + "\"");
+		}
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-')) {
+				throw new IllegalArgumentException("keys must match [a-z0-9_-]{1,64}: \"" + key + "\"");
+			}
+		}
+	}
+
+	/**
+	 * Turns an arbitrary string like an url or a file path into a valid cache
+	 * key, the lowercase hex of its MD5 digest.
+	 */
+	public static String hashKey(String str) {
+		return KeyHasher.get().hashKey(str);
+	}
+
+	static void deleteIfExists(File file) throws IOException {
+		if (file.exists() && !file.delete()) {
+			throw new IOException("failed to delete " + file);
+		}
+	}
+
+	static void deleteContents(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.isDirectory()) {
+				deleteContents(file);
+			}
+			if (!file.delete()) {
+				throw new IOException("failed to delete " + file);
+			}
+		}
+	}
+
+	static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Reads the whole content of {@code is} into a byte array, the stream is
+	 * not closed.
+	 */
+	static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] cache = new byte[1024 * 10];
+		int len = 0;
+		while ((len = is.read(cache)) != -1) {
+			baos.write(cache, 0, len);
+		}
+		return baos.toByteArray();
+	}
+
+	/** A snapshot of the files of an entry. */
+	public final class Snapshot {
+		private final String mKey;
+		private final File[] mFiles;
+		private final long[] mLengths;
+
+		private Snapshot(String key, File[] files, long[] lengths) {
+			mKey = key;
+			mFiles = files;
+			mLengths = lengths;
+		}
+
+		public String getKey() {
+			return mKey;
+		}
+
+		/** Returns the file holding the value for {@code index}. */
+		public File getFile(int index) {
+			return mFiles[index];
+		}
+
+		/** Returns an unbuffered stream with the value for {@code index}. */
+		public InputStream getInputStream(int index) throws FileNotFoundException {
+			return new FileInputStream(mFiles[index]);
+		}
+
+		/** Returns the whole value for {@code index}. */
+		public byte[] getBytes(int index) throws IOException {
+			InputStream is = getInputStream(index);
+			try {
+				return readFully(is);
+			} finally {
+				closeQuietly(is);
+			}
+		}
+
+		/** Returns the byte length of the value for {@code index}. */
+		public long getLength(int index) {
+			return mLengths[index];
+		}
+	}
+
+	/** Edits the values for an entry. */
+	public final class Editor {
+		private final Entry mEntry;
+		private boolean mHasErrors;
+
+		private Editor(Entry entry) {
+			mEntry = entry;
+		}
+
+		/**
+		 * Returns a new unbuffered output stream to write the value at
+		 * {@code index}. Errors while writing are remembered and turn
+		 * {@link #commit} into an {@link #abort}.
+		 */
+		public OutputStream newOutputStream(int index) throws IOException {
+			synchronized (DiskLruCache.this) {
+				if (mEntry.mCurrentEditor != this) {
+					throw new IllegalStateException();
+				}
+				return new FaultHidingOutputStream(new FileOutputStream(mEntry.getDirtyFile(index)));
+			}
+		}
+
+		/** Writes {@code value} as the value at {@code index}. */
+		public void set(int index, byte[] value) throws IOException {
+			OutputStream os = newOutputStream(index);
+			try {
+				os.write(value);
+			} finally {
+				closeQuietly(os);
+			}
+		}
+
+		/**
+		 * Commits this edit so it is visible to readers. This releases the
+		 * edit lock so another edit may be started on the same key.
+		 */
+		public void commit() throws IOException {
+			if (mHasErrors) {
+				completeEdit(this, false);
+				remove(mEntry.mKey); // the previous entry is stale
+			} else {
+				completeEdit(this, true);
+			}
+		}
+
+		/**
+		 * Aborts this edit. This releases the edit lock so another edit may be
+		 * started on the same key.
+		 */
+		public void abort() throws IOException {
+			completeEdit(this, false);
+		}
+
+		private class FaultHidingOutputStream extends OutputStream {
+			private final OutputStream mOut;
+
+			private FaultHidingOutputStream(OutputStream out) {
+				mOut = out;
+			}
+
+			@Override
+			public void write(int oneByte) {
+				try {
+					mOut.write(oneByte);
+				} catch (IOException e) {
+					mHasErrors = true;
+				}
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) {
+				try {
+					mOut.write(buffer, offset, length);
+				} catch (IOException e) {
+					mHasErrors = true;
+				}
+			}
+
+			@Override
+			public void close() {
+				try {
+					mOut.close();
+				} catch (IOException e) {
+					mHasErrors = true;
+				}
+			}
+
+			@Override
+			public void flush() {
+				try {
+					mOut.flush();
+				} catch (IOException e) {
+					mHasErrors = true;
+				}
+			}
+		}
+	}
+
+	private final class Entry {
+		private final String mKey;
+		/** Lengths of this entry's files. */
+		private final long[] mLengths;
+		/** True if this entry has ever been published. */
+		private boolean mReadable;
+		/** The ongoing edit or null if this entry is not being edited. */
+		private Editor mCurrentEditor;
+
+		private Entry(String key) {
+			mKey = key;
+			mLengths = new long[mValueCount];
+		}
+
+		private String getLengths() {
+			StringBuilder result = new StringBuilder();
+			for (long size : mLengths) {
+				result.append(' ').append(size);
+			}
+			return result.toString();
+		}
+
+		private void setLengths(String[] parts, int offset) throws IOException {
+			try {
+				for (int i = 0; i < mValueCount; i++) {
+					mLengths[i] = Long.parseLong(parts[offset + i]);
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("unexpected journal line for key: " + mKey);
+			}
+		}
+
+		private File getCleanFile(int i) {
+			return new File(mDirectory, mKey + "." + i);
+		}
+
+		private File getDirtyFile(int i) {
+			return new File(mDirectory, mKey + "." + i + ".tmp");
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.List;
+
+/**
+ * Decides which entry of a {@link ConcurrentLruCache} is evicted next. The
+ * cache keeps the values and the total size, the policy only orders the
+ * keys. Every method is called under the eviction lock of the cache, a
+ * policy needs no synchronization of its own and belongs to a single cache.
+ */
+public interface EvictionPolicy<K> {
+
+	/**
+	 * Called when the cache is created and when its maximum size changes, in
+	 * the units of {@link ConcurrentLruCache#sizeOf}
+	 */
+	void setMaxSize(int maxSize);
+
+	/** Called when an entry of {@code size} is added to the cache */
+	void onAdd(K key, int size);
+
+	/** Called for the hits of a key, possibly late and not for every hit */
+	void onAccess(K key);
+
+	/**
+	 * Called when an entry leaves the cache
+	 *
+	 * @param evicted
+	 *            true if it was returned by {@link #selectVictim()}, false if
+	 *            it was removed or replaced
+	 */
+	void onRemove(K key, boolean evicted);
+
+	/**
+	 * Returns the key to evict to make room, the cache then evicts it and
+	 * calls {@link #onRemove(Object, boolean)}. Null only if no key is
+	 * tracked.
+	 */
+	K selectVictim();
+
+	/** Returns the tracked keys, those evicted first first */
+	List<K> keys();
+}
@@ -0,0 +1,155 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Detects the format of a local file from its first bytes, so that images
+ * go to BitmapFactory and videos to ThumbnailUtils whatever their path looks
+ * like. Results are cached per path as long as the file is not modified.
+ */
+public final class FormatDetector {
+
+	public static enum Format {
+		JPEG(false), PNG(false), GIF(false), WEBP(false), BMP(false), HEIF(false), MP4(true), THREE_GP(true), AVI(true), WMV(true), UNKNOWN(false);
+
+		private final boolean mVideo;
+
+		private Format(boolean video) {
+			mVideo = video;
+		}
+
+		/** Whether a thumbnail must be extracted instead of decoding the file */
+		public boolean isVideo() {
+			return mVideo;
+		}
+	}
+
+	private static final int HEADER_SIZE = 16;
+	private static final int CACHE_SIZE = 256;
+	private static final byte[] ASF_GUID = { 0x30, 0x26, (byte) 0xB2, 0x75, (byte) 0x8E, 0x66, (byte) 0xCF, 0x11, (byte) 0xA6, (byte) 0xD9, 0x00, (byte) 0xAA, 0x00, 0x62, (byte) 0xCE, 0x6C };
+	/** Major brands of the ftyp box of mp4 video files */
+	private static final String[] MP4_BRANDS = { "isom", "iso2", "iso3", "iso4", "iso5", "iso6", "mp41", "mp42", "avc1", "M4V ", "M4VH", "M4VP", "mmp4", "dash", "f4v " };
+	private static final String[] VIDEO_EXTENSIONS = { ".mp4", ".m4v", ".3gp", ".3g2", ".avi", ".wmv", ".asf", ".mkv", ".webm", ".mov", ".ts" };
+
+	private static final MyLruCache<String, Entry> mCache = new MyLruCache<String, Entry>(CACHE_SIZE);
+
+	private static final class Entry {
+		final Format mFormat;
+		final long mLastModified;
+		final long mLength;
+
+		Entry(Format format, long lastModified, long length) {
+			mFormat = format;
+			mLastModified = lastModified;
+			mLength = length;
+		}
+	}
+
+	private FormatDetector() {
+	}
+
+	/**
+	 * Returns the format of the file at {@code path}, from the cache if the
+	 * file didn't change since it was last read.
+	 */
+	public static Format detect(String path) {
+		File file = new File(path);
+		long lastModified = file.lastModified();
+		long length = file.length();
+		Entry entry = mCache.get(path);
+		if (entry != null && entry.mLastModified == lastModified && entry.mLength == length)
+			return entry.mFormat;
+		Format format = sniff(file);
+		if (format == Format.UNKNOWN && hasVideoExtension(path)) {
+			// a container without a known signature, like mkv or ts
+			format = Format.MP4;
+		}
+		if (lastModified != 0)
+			mCache.put(path, new Entry(format, lastModified, length));
+		return format;
+	}
+
+	/** Whether the file at {@code path} is a video, see {@link #detect} */
+	public static boolean isVideo(String path) {
+		return detect(path).isVideo();
+	}
+
+	private static Format sniff(File file) {
+		byte[] header = new byte[HEADER_SIZE];
+		int count = 0;
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			int read;
+			while (count < HEADER_SIZE && (read = is.read(header, count, HEADER_SIZE - count)) != -1) {
+				count += read;
+			}
+		} catch (IOException e) {
+			return Format.UNKNOWN;
+		} finally {
+			DiskLruCache.closeQuietly(is);
+		}
+		return detect(header, count);
+	}
+
+	/** Returns the format of a file starting with {@code count} bytes of {@code header} */
+	public static Format detect(byte[] header, int count) {
+		if (count >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 && (header[2] & 0xFF) == 0xFF)
+			return Format.JPEG;
+		if (count >= 8 && (header[0] & 0xFF) == 0x89 && matches(header, 1, "PNG") && header[4] == 0x0D && header[5] == 0x0A && header[6] == 0x1A && header[7] == 0x0A)
+			return Format.PNG;
+		if (count >= 6 && (matches(header, 0, "GIF87a") || matches(header, 0, "GIF89a")))
+			return Format.GIF;
+		if (count >= 12 && matches(header, 0, "RIFF")) {
+			if (matches(header, 8, "WEBP"))
+				return Format.WEBP;
+			if (matches(header, 8, "AVI "))
+				return Format.AVI;
+		}
+		if (count >= 12 && matches(header, 4, "ftyp")) {
+			if (matches(header, 8, "3gp") || matches(header, 8, "3g2"))
+				return Format.THREE_GP;
+			if (matches(header, 8, "heic") || matches(header, 8, "heix") || matches(header, 8, "mif1") || matches(header, 8, "msf1"))
+				return Format.HEIF;
+			for (String brand : MP4_BRANDS) {
+				if (matches(header, 8, brand))
+					return Format.MP4;
+			}
+			// another ISO media file, like an avif image or m4a audio
+			return Format.UNKNOWN;
+		}
+		if (count >= ASF_GUID.length) {
+			boolean asf = true;
+			for (int i = 0; i < ASF_GUID.length && asf; i++) {
+				asf = header[i] == ASF_GUID[i];
+			}
+			if (asf)
+				return Format.WMV;
+		}
+		if (count >= 2 && matches(header, 0, "BM"))
+			return Format.BMP;
+		return Format.UNKNOWN;
+	}
+
+	private static boolean matches(byte[] header, int offset, String signature) {
+		if (offset + signature.length() > header.length)
+			return false;
+		for (int i = 0; i < signature.length(); i++) {
+			if (header[offset + i] != (byte) signature.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean hasVideoExtension(String path) {
+		String lower = path.toLowerCase();
+		for (String extension : VIDEO_EXTENSIONS) {
+			if (lower.endsWith(extension))
+				return true;
+		}
+		return false;
+	}
+}
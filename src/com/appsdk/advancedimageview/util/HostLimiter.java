@@ -0,0 +1,122 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Limits the number of concurrent fetches per host, so that a slow or dead
+ * host can't hold every I/O thread. A fetch that finds its host busy is
+ * parked instead of blocking its thread, and is executed again when a fetch
+ * of the same host finishes, best priority first.
+ * <p>
+ * The host is only a key: a limiter of one permit per url lets a single
+ * fetch of a url run at once, the others park until it ends.
+ */
+final class HostLimiter {
+
+	/** A fetch that can be parked and executed again later */
+	interface Fetch extends Runnable {
+		/**
+		 * Called once a permit is free, the fetch must execute itself again.
+		 * Runs on the thread releasing the permit and must not throw, a fetch
+		 * that can't be executed anymore fails itself.
+		 */
+		void resume();
+	}
+
+	private static final class Host {
+		int mActive;
+		final ArrayList<Fetch> mParked = new ArrayList<Fetch>(2);
+	}
+
+	private final HashMap<String, Host> mHosts = new HashMap<String, Host>();
+	private volatile int mMaxPerHost;
+
+	HostLimiter(int maxPerHost) {
+		setMaxPerHost(maxPerHost);
+	}
+
+	void setMaxPerHost(int maxPerHost) {
+		if (maxPerHost <= 0) {
+			throw new IllegalArgumentException("maxPerHost <= 0");
+		}
+		mMaxPerHost = maxPerHost;
+	}
+
+	int getMaxPerHost() {
+		return mMaxPerHost;
+	}
+
+	/**
+	 * Takes a permit for {@code host}, or parks {@code fetch} if the host
+	 * already runs the maximum number of fetches.
+	 *
+	 * @return true if the fetch can run, false if it was parked and its thread
+	 *         must move on
+	 */
+	synchronized boolean acquire(String host, Fetch fetch) {
+		Host state = mHosts.get(host);
+		if (state == null) {
+			state = new Host();
+			mHosts.put(host, state);
+		}
+		if (state.mActive < mMaxPerHost) {
+			state.mActive++;
+			return true;
+		}
+		state.mParked.add(fetch);
+		return false;
+	}
+
+	/** Returns the permit taken for {@code host} and resumes a parked fetch */
+	void release(String host) {
+		Fetch next = null;
+		synchronized (this) {
+			Host state = mHosts.get(host);
+			if (state == null)
+				return;
+			state.mActive--;
+			if (!state.mParked.isEmpty() && state.mActive < mMaxPerHost) {
+				int best = 0;
+				for (int i = 1; i < state.mParked.size(); i++) {
+					if (LoadQueue.COMPARATOR.compare(state.mParked.get(i), state.mParked.get(best)) < 0)
+						best = i;
+				}
+				next = state.mParked.remove(best);
+			}
+			if (state.mActive <= 0 && state.mParked.isEmpty())
+				mHosts.remove(host);
+		}
+		if (next != null)
+			next.resume();
+	}
+
+	/**
+	 * Forgets {@code fetch} if it is parked.
+	 *
+	 * @return true if it was parked
+	 */
+	synchronized boolean remove(String host, Fetch fetch) {
+		Host state = mHosts.get(host);
+		if (state == null || !state.mParked.remove(fetch))
+			return false;
+		if (state.mActive <= 0 && state.mParked.isEmpty())
+			mHosts.remove(host);
+		return true;
+	}
+
+	/** Returns the number of fetches running for {@code host} */
+	synchronized int getActiveCount(String host) {
+		Host state = mHosts.get(host);
+		return state != null ? state.mActive : 0;
+	}
+
+	/** Returns the number of fetches waiting for a permit, for every host */
+	synchronized int getParkedCount() {
+		int count = 0;
+		for (Host state : mHosts.values()) {
+			count += state.mParked.size();
+		}
+		return count;
+	}
+}
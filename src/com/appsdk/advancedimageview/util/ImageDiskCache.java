@@ -0,0 +1,249 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Environment;
+import android.os.StatFs;
+import android.util.Log;
+
+/**
+ * Disk tier of the image cache, sits between {@link BitmapCache} and the
+ * network. It keeps the raw downloaded bytes keyed by the MD5 of the url, in
+ * the {@code /image/} directory cleaned by AdvancedImageView.destory(). The
+ * HTTP {@link CacheValidators} of each image are stored next to its bytes.
+ */
+public class ImageDiskCache {
+	public static final String TAG = "ImageDiskCache";
+	private static final boolean LOG_ENABLED = false;
+
+	private static final int APP_VERSION = 2;
+	private static final int VALUE_COUNT = 2;
+	private static final int INDEX_DATA = 0;
+	private static final int INDEX_VALIDATORS = 1;
+	private static final long MAX_DISK_CACHE_SIZE = 50 * 1024 * 1024;
+	private static final long MIN_DISK_CACHE_SIZE = 5 * 1024 * 1024;
+	/** Part of the disk budget kept for partial downloads, 1/8th */
+	private static final int PARTIAL_DOWNLOAD_SHARE = 8;
+
+	private static ImageDiskCache mInstance;
+	private volatile DiskLruCache mDiskCache;
+	/** Bytes the partial downloads may take next to the cache */
+	private volatile long mPartialMaxBytes;
+
+	public static synchronized ImageDiskCache getInstance(Context context) {
+		if (mInstance == null)
+			mInstance = new ImageDiskCache(context);
+		return mInstance;
+	}
+
+	private ImageDiskCache(Context context) {
+		File dir = getCacheDir(context);
+		try {
+			mDiskCache = open(dir);
+			if (LOG_ENABLED)
+				Log.d(TAG, "Disk cache opened in " + dir + ", size " + mDiskCache.size() + "/" + mDiskCache.maxSize());
+		} catch (IOException e) {
+			// without a disk cache every load simply goes to the network
+			Log.w(TAG, "Unable to open disk cache in " + dir, e);
+			mDiskCache = null;
+		}
+	}
+
+	/**
+	 * Returns the directory for cached images, the external
+	 * /android/data/[package]/image/ directory if the storage is mounted, or
+	 * the /image/ directory of the internal cache otherwise.
+	 */
+	public static File getCacheDir(Context context) {
+		if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+			try {
+				PackageManager pm = context.getPackageManager();
+				PackageInfo info = pm.getPackageInfo(context.getPackageName(), 0);
+				String external = Environment.getExternalStorageDirectory().getAbsolutePath();
+				external += "/android/data/";
+				external += info.packageName;
+				external += "/image/";
+				File dir = new File(external);
+				if (dir.exists() || dir.mkdirs())
+					return dir;
+			} catch (Exception e) {
+			}
+		}
+		return new File(context.getCacheDir(), "image");
+	}
+
+	/**
+	 * Opens the cache in {@code dir} with the budget left once the share of
+	 * the partial downloads is taken
+	 */
+	private DiskLruCache open(File dir) throws IOException {
+		long size = getCacheSize(dir);
+		mPartialMaxBytes = size / PARTIAL_DOWNLOAD_SHARE;
+		return DiskLruCache.open(dir, APP_VERSION, VALUE_COUNT, size - mPartialMaxBytes);
+	}
+
+	private static long getCacheSize(File dir) {
+		long size = MAX_DISK_CACHE_SIZE;
+		try {
+			File parent = dir.exists() ? dir : dir.getParentFile();
+			StatFs statFs = new StatFs(parent.getAbsolutePath());
+			long available = ((long) statFs.getAvailableBlocks()) * statFs.getBlockSize();
+			// Use at most 1/10th of the free space
+			size = Math.min(size, available / 10);
+		} catch (IllegalArgumentException e) {
+		}
+		return Math.max(size, MIN_DISK_CACHE_SIZE);
+	}
+
+	/**
+	 * Returns the cached bytes of {@code url}, or null if they are not on the
+	 * disk.
+	 */
+	public byte[] get(String url) {
+		DiskLruCache diskCache = mDiskCache;
+		if (diskCache == null || url == null)
+			return null;
+		try {
+			DiskLruCache.Snapshot snapshot = diskCache.get(DiskLruCache.hashKey(url));
+			if (LOG_ENABLED)
+				Log.d(TAG, (snapshot == null) ? "Disk cache miss" : "Disk cache found");
+			if (snapshot != null)
+				return snapshot.getBytes(INDEX_DATA);
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to read " + url + " from disk cache", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the validators stored with the cached bytes of {@code url}, or
+	 * null if they are not on the disk.
+	 */
+	public CacheValidators getValidators(String url) {
+		DiskLruCache diskCache = mDiskCache;
+		if (diskCache == null || url == null)
+			return null;
+		try {
+			DiskLruCache.Snapshot snapshot = diskCache.get(DiskLruCache.hashKey(url));
+			if (snapshot != null)
+				return CacheValidators.decode(snapshot.getBytes(INDEX_VALIDATORS));
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to read validators of " + url + " from disk cache", e);
+		}
+		return null;
+	}
+
+	public void put(String url, byte[] data) {
+		put(url, data, null);
+	}
+
+	/**
+	 * Stores the downloaded bytes of {@code url} with their validators,
+	 * failures are only logged since the disk cache is just an optimization.
+	 *
+	 * @param validators
+	 *            the validators of the response, null if unknown
+	 */
+	public void put(String url, byte[] data, CacheValidators validators) {
+		DiskLruCache diskCache = mDiskCache;
+		if (diskCache == null || url == null || data == null)
+			return;
+		DiskLruCache.Editor editor = null;
+		try {
+			editor = diskCache.edit(DiskLruCache.hashKey(url));
+			if (editor == null)
+				return;
+			editor.set(INDEX_DATA, data);
+			editor.set(INDEX_VALIDATORS, validators != null ? validators.encode() : new byte[0]);
+			editor.commit();
+			diskCache.flush();
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to write " + url + " to disk cache", e);
+			abortQuietly(editor);
+		}
+	}
+
+	/**
+	 * Replaces the validators of the cached bytes of {@code url}, after a 304
+	 * response. Does nothing if the bytes are not on the disk.
+	 */
+	public void putValidators(String url, CacheValidators validators) {
+		DiskLruCache diskCache = mDiskCache;
+		if (diskCache == null || url == null || validators == null)
+			return;
+		DiskLruCache.Editor editor = null;
+		try {
+			String key = DiskLruCache.hashKey(url);
+			if (diskCache.get(key) == null)
+				return;
+			editor = diskCache.edit(key);
+			if (editor == null)
+				return;
+			editor.set(INDEX_VALIDATORS, validators.encode());
+			editor.commit();
+			diskCache.flush();
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to write validators of " + url + " to disk cache", e);
+			abortQuietly(editor);
+		}
+	}
+
+	public void remove(String url) {
+		DiskLruCache diskCache = mDiskCache;
+		if (diskCache == null || url == null)
+			return;
+		try {
+			diskCache.remove(DiskLruCache.hashKey(url));
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to remove " + url + " from disk cache", e);
+		}
+	}
+
+	/**
+	 * Returns the partial download of {@code url} kept next to the cache, or
+	 * null if there is no disk cache.
+	 */
+	PartialDownload getPartialDownload(String url) {
+		DiskLruCache diskCache = mDiskCache;
+		if (diskCache == null || url == null)
+			return null;
+		return PartialDownload.get(diskCache.getDirectory(), url, mPartialMaxBytes);
+	}
+
+	private static void abortQuietly(DiskLruCache.Editor editor) {
+		if (editor != null) {
+			try {
+				editor.abort();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		if (mDiskCache == null)
+			return;
+		File dir = mDiskCache.getDirectory();
+		try {
+			mDiskCache.delete();
+			mDiskCache = open(dir);
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to clear disk cache", e);
+			mDiskCache = null;
+		}
+	}
+
+	public static synchronized void destroy() {
+		if (mInstance != null) {
+			try {
+				if (mInstance.mDiskCache != null)
+					mInstance.mDiskCache.delete();
+			} catch (IOException e) {
+			}
+			mInstance = null;
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.appsdk.advancedimageview.util;
+
+/**
+ * Handle on a load started by AsyncNetImageLoader or AsyncLocalImageLoader
+ */
+public interface ImageLoadRequest {
+	/** Priority of a load for a view that isn't on screen yet */
+	int PRIORITY_PREFETCH = 0;
+	/** Priority of a load for a view on screen, the default */
+	int PRIORITY_VISIBLE = 10;
+
+	/**
+	 * Cancels the load, its callback will not be called anymore. The fetch and
+	 * decode are stopped once no other request waits for the same image.
+	 */
+	void cancel();
+
+	/** Whether {@link #cancel()} has been called */
+	boolean isCancelled();
+
+	/**
+	 * Changes the priority of the load if it hasn't started yet. Loads of
+	 * higher priority run first, among loads of the same priority the most
+	 * recently requested or reprioritized runs first.
+	 */
+	void setPriority(int priority);
+
+	int getPriority();
+}
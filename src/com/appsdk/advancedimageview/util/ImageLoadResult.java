@@ -0,0 +1,103 @@
+package com.appsdk.advancedimageview.util;
+
+/**
+ * How an image load went: where the image came from, how many bytes were
+ * read, the size it was decoded at and the time spent in each stage, see
+ * {@link AsyncNetImageLoader.ImageResultCallback} and
+ * {@link AsyncLocalImageLoader.LocalImageResultCallback}.
+ */
+public final class ImageLoadResult {
+	/** Served from the memory cache, nothing was read or decoded */
+	public static final int DATA_SOURCE_MEMORY = 0;
+	/** Decoded from the disk cache */
+	public static final int DATA_SOURCE_DISK = 1;
+	/** Downloaded, then decoded */
+	public static final int DATA_SOURCE_NETWORK = 2;
+	/** Decoded from a local file */
+	public static final int DATA_SOURCE_LOCAL = 3;
+
+	private static final String[] DATA_SOURCE_NAMES = { "memory", "disk", "network", "local" };
+
+	private final String mKey;
+	private final int mDataSource;
+	private final Exception mError;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mSampleSize;
+	private final long mByteCount;
+	private final LoadTimings mTimings;
+
+	ImageLoadResult(String key, int dataSource, Exception error, int width, int height, int sampleSize, long byteCount, LoadTimings timings) {
+		mKey = key;
+		mDataSource = dataSource;
+		mError = error;
+		mWidth = width;
+		mHeight = height;
+		mSampleSize = sampleSize;
+		mByteCount = byteCount;
+		mTimings = timings;
+	}
+
+	/** Returns the url or the path of the image */
+	public String getKey() {
+		return mKey;
+	}
+
+	/**
+	 * Returns where the image came from, the last source tried if the load
+	 * failed
+	 */
+	public int getDataSource() {
+		return mDataSource;
+	}
+
+	public static String getDataSourceName(int dataSource) {
+		return DATA_SOURCE_NAMES[dataSource];
+	}
+
+	public boolean isSuccess() {
+		return mError == null;
+	}
+
+	/** Returns why the load failed, null if it succeeded */
+	public Exception getError() {
+		return mError;
+	}
+
+	/** Returns the width of the delivered bitmap, 0 if the load failed */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/** Returns the sample size of the decode, 0 if nothing was decoded */
+	public int getSampleSize() {
+		return mSampleSize;
+	}
+
+	/**
+	 * Returns the size of the encoded image read from the disk, the network
+	 * or the file, 0 for a memory cache hit
+	 */
+	public long getByteCount() {
+		return mByteCount;
+	}
+
+	/** Returns the stages of the load, see {@link LoadTimings} */
+	public LoadTimings getTimings() {
+		return mTimings;
+	}
+
+	/** Returns the time from the request to the delivery, in microseconds */
+	public long getTotalDuration() {
+		return mTimings.getTotalDuration();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ImageLoadResult[%s,source=%s,%dx%d,sampleSize=%d,bytes=%d,error=%s,%s]", mKey, DATA_SOURCE_NAMES[mDataSource], mWidth, mHeight, mSampleSize, mByteCount, mError, mTimings);
+	}
+}
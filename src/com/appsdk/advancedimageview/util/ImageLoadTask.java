@@ -0,0 +1,425 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.util.DisplayMetrics;
+
+/**
+ * Common part of the load tasks of AsyncNetImageLoader and
+ * AsyncLocalImageLoader: the in flight key and the cancellation of a load.
+ * <p>
+ * A cancelled task only stops receiving callbacks. When every task waiting
+ * for the same key is cancelled the leader is aborted: it is removed from its
+ * queue if it hasn't started yet, otherwise its thread is interrupted, its
+ * connection closed and its decode cancelled.
+ */
+abstract class ImageLoadTask implements InFlightTasks.Task, ImageLoadRequest, LoadQueue.Prioritized, HostLimiter.Fetch {
+	protected final String mKey;
+	protected final long mImageFlag;
+	protected final Handler mHandler;
+	/** Exact width of the delivered bitmap, 0 to keep the decoded width */
+	protected int mThumbnailWidth;
+	/** Minimal size of the decoded bitmap, 0 if a dimension doesn't matter */
+	protected int mTargetWidth;
+	protected int mTargetHeight;
+	/** Key of the bitmap in the memory cache, set with the target size */
+	protected VariantKey mVariantKey;
+	/** Stages of this load, the request is its first */
+	protected final LoadTimings mTimings = new LoadTimings();
+	/** Where the image came from, see ImageLoadResult */
+	protected int mDataSource = ImageLoadResult.DATA_SOURCE_MEMORY;
+	/** Size of the encoded image read, 0 if served from memory */
+	protected long mByteCount;
+	/** Sample size of the decode, 0 if nothing was decoded */
+	protected int mSampleSize;
+	private volatile int mPriority;
+	private volatile long mSequence = LoadQueue.nextSequence();
+	private volatile boolean mStarted;
+	private volatile boolean mCancelled;
+	private volatile boolean mAborted;
+	private ThreadPoolExecutor mExecutor;
+	private Thread mRunner;
+	private URLConnection mConnection;
+	private Closeable mStream;
+	private BitmapFactory.Options mDecodeOptions;
+	/** Limiter this task is parked on, waiting for a permit for mParkedKey */
+	private HostLimiter mParkedLimiter;
+	private String mParkedKey;
+
+	ImageLoadTask(String key, long imageFlag, int priority, Handler handler) {
+		mKey = key;
+		mImageFlag = imageFlag;
+		mPriority = priority;
+		mHandler = handler;
+	}
+
+	/** Loads of different variants of the same image don't share a decode */
+	@Override
+	public String getKey() {
+		return mVariantKey != null ? mVariantKey.getKey() : mKey;
+	}
+
+	@Override
+	public boolean isStarted() {
+		return mStarted;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	@Override
+	public void cancel() {
+		if (mCancelled)
+			return;
+		mCancelled = true;
+		ImageLoadTask leader = cancelInFlight();
+		if (leader != null)
+			leader.abort();
+	}
+
+	@Override
+	public int getPriority() {
+		return mPriority;
+	}
+
+	@Override
+	public long getSequence() {
+		return mSequence;
+	}
+
+	@Override
+	public void setPriority(int priority) {
+		reschedule(priority);
+		// the leader runs for every waiter, it takes the highest priority
+		ImageLoadTask leader = getInFlightLeader();
+		if (leader != null && leader != this && leader.mPriority <= priority)
+			leader.reschedule(priority);
+	}
+
+	/**
+	 * Sets the priority and makes this task the newest of its priority. A
+	 * queued task is queued again, its position must not change in place.
+	 */
+	private synchronized void reschedule(int priority) {
+		ThreadPoolExecutor executor = mExecutor;
+		boolean requeue = !mStarted && executor != null && executor.remove(this);
+		mPriority = priority;
+		mSequence = LoadQueue.nextSequence();
+		if (requeue)
+			executor.execute(this);
+	}
+
+	/**
+	 * Returns the leader of the load this task waits for, null if the load
+	 * isn't in flight anymore
+	 */
+	protected abstract ImageLoadTask getInFlightLeader();
+
+	/**
+	 * Removes this cancelled task from the in flight registry.
+	 *
+	 * @return the leader to abort if no task waits for the key anymore, null
+	 *         otherwise
+	 */
+	protected abstract ImageLoadTask cancelInFlight();
+
+	/**
+	 * Completes the load of this leader in the in flight registry.
+	 *
+	 * @return this task and the tasks that joined it
+	 */
+	protected abstract List<? extends ImageLoadTask> completeInFlight();
+
+	/** Returns the memory cache the bitmaps of this load are acquired from */
+	protected abstract BitmapCache getBitmapCache();
+
+	/**
+	 * Passes the bitmap to the callback of this task, on the main thread.
+	 * {@code leader} creates the result if the callback takes one, see
+	 * {@link #createResult(ImageLoadTask, Bitmap, Exception)}.
+	 */
+	protected abstract void dispatchLoaded(ImageLoadTask leader, Bitmap bitmap);
+
+	/** Passes the error to the callback of this task, like dispatchLoaded */
+	protected abstract void dispatchError(ImageLoadTask leader, Exception e);
+
+	/**
+	 * Sets the size the image is decoded at: the thumbnail width if set,
+	 * otherwise the requested size of the view, otherwise a square of the
+	 * shortest side of the screen. Must be called before the task is
+	 * registered, the size is part of its key.
+	 */
+	void setTargetSize(Context context, int thumbnailWidth, int reqWidth, int reqHeight) {
+		mThumbnailWidth = thumbnailWidth;
+		if (thumbnailWidth > 0) {
+			mTargetWidth = thumbnailWidth;
+			mTargetHeight = 0;
+		} else if (reqWidth > 0 || reqHeight > 0) {
+			mTargetWidth = reqWidth;
+			mTargetHeight = reqHeight;
+		} else {
+			DisplayMetrics dm = context.getResources().getDisplayMetrics();
+			mTargetWidth = Math.min(dm.widthPixels, dm.heightPixels);
+			mTargetHeight = mTargetWidth;
+		}
+		mVariantKey = new VariantKey(mKey, thumbnailWidth, mTargetWidth, mTargetHeight, null);
+	}
+
+	/** Executes this task on {@code executor} */
+	void execute(ThreadPoolExecutor executor) {
+		mExecutor = executor;
+		executor.execute(this);
+	}
+
+	/**
+	 * A later stage of the load, like the decode of fetched bytes, queued with
+	 * the priority the load had when the stage was created
+	 */
+	protected abstract class Stage implements Runnable, LoadQueue.Prioritized {
+		private final int mStagePriority = mPriority;
+		private final long mStageSequence = mSequence;
+
+		@Override
+		public int getPriority() {
+			return mStagePriority;
+		}
+
+		@Override
+		public long getSequence() {
+			return mStageSequence;
+		}
+	}
+
+	/**
+	 * Called on the main thread when the bitmap or the error is delivered to
+	 * the callback of this task, reports the timings of the load once the
+	 * callback returned
+	 */
+	protected void onDelivering() {
+		mTimings.mark(LoadTimings.STAGE_DELIVERY);
+	}
+
+	protected void onDelivered() {
+		ImageLoaderEngine.onLoadDelivered(mKey, mTimings);
+	}
+
+	/**
+	 * Returns the result of this load for {@code receiver}, this task or a
+	 * task that joined it
+	 */
+	protected ImageLoadResult createResult(ImageLoadTask receiver, Bitmap bitmap, Exception error) {
+		int width = bitmap != null ? bitmap.getWidth() : 0;
+		int height = bitmap != null ? bitmap.getHeight() : 0;
+		return new ImageLoadResult(receiver.mKey, mDataSource, error, width, height, mSampleSize, mByteCount, receiver.mTimings);
+	}
+
+	/**
+	 * Posts the bitmap to this task and to every task that joined it while
+	 * it was in flight, cancelled tasks are skipped. The bitmap is acquired
+	 * once per receiver so it isn't reused while displayed, then the
+	 * reference the cache lookup took for this task is released.
+	 */
+	protected void deliverLoaded(Bitmap bitmap) {
+		List<ImageLoadTask> receivers = acquireReceivers(bitmap);
+		getBitmapCache().releaseBitmap(bitmap);
+		postLoaded(receivers, bitmap);
+	}
+
+	/** Completes the load and acquires the bitmap for each receiver */
+	protected List<ImageLoadTask> acquireReceivers(Bitmap bitmap) {
+		BitmapCache bitmapCache = getBitmapCache();
+		List<ImageLoadTask> receivers = new ArrayList<ImageLoadTask>();
+		for (ImageLoadTask task : completeInFlight()) {
+			if (task.isCancelled())
+				continue;
+			bitmapCache.acquireBitmap(bitmap);
+			receivers.add(task);
+		}
+		return receivers;
+	}
+
+	/** Posts the bitmap acquired by {@link #acquireReceivers(Bitmap)} */
+	protected void postLoaded(List<ImageLoadTask> receivers, final Bitmap bitmap) {
+		final BitmapCache bitmapCache = getBitmapCache();
+		for (final ImageLoadTask task : receivers) {
+			if (task != this)
+				task.mTimings.join(mTimings);
+			task.mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (!task.isCancelled()) {
+						task.onDelivering();
+						task.dispatchLoaded(ImageLoadTask.this, bitmap);
+						task.onDelivered();
+					} else {
+						bitmapCache.releaseBitmap(bitmap);
+					}
+				}
+			});
+		}
+	}
+
+	/** Posts the error to this task and to every task that joined it */
+	protected void deliverError(final Exception e) {
+		for (final ImageLoadTask task : completeInFlight()) {
+			if (task.isCancelled())
+				continue;
+			if (task != this)
+				task.mTimings.join(mTimings);
+			task.mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (task.isCancelled())
+						return;
+					task.onDelivering();
+					task.dispatchError(ImageLoadTask.this, e);
+					task.onDelivered();
+				}
+			});
+		}
+	}
+
+	/** Whether the load was aborted, the result must then be thrown away */
+	protected boolean isAborted() {
+		return mAborted;
+	}
+
+	private void abort() {
+		mAborted = true;
+		if (!mStarted && mExecutor != null && mExecutor.remove(this))
+			return;
+		synchronized (this) {
+			if (mParkedLimiter != null && mParkedLimiter.remove(mParkedKey, this)) {
+				mParkedLimiter = null;
+				mParkedKey = null;
+				return;
+			}
+			if (mDecodeOptions != null)
+				mDecodeOptions.requestCancelDecode();
+			closeConnection();
+			if (mRunner != null)
+				mRunner.interrupt();
+		}
+	}
+
+	/**
+	 * Called by each stage of the load when it starts on a thread.
+	 *
+	 * @return false if the load has been aborted and must stop
+	 */
+	protected synchronized boolean enterStage() {
+		mStarted = true;
+		if (mAborted)
+			return false;
+		mRunner = Thread.currentThread();
+		return true;
+	}
+
+	/** Called by each stage of the load in a finally block */
+	protected void exitStage() {
+		synchronized (this) {
+			// the next stage may already run on another thread
+			if (mRunner == Thread.currentThread()) {
+				mRunner = null;
+				mConnection = null;
+				mStream = null;
+				mDecodeOptions = null;
+			}
+		}
+		// an abort may have interrupted this pool thread, don't leak that to
+		// the next task
+		Thread.interrupted();
+	}
+
+	/**
+	 * Takes a permit to fetch from {@code host}. If the host already runs as
+	 * many fetches as allowed, this task is parked and executed again once
+	 * one of them finishes, the current stage must then return.
+	 *
+	 * @return true if the fetch can start, call {@link #releaseHost(String)}
+	 *         once it is done
+	 */
+	protected boolean acquireHost(String host) {
+		return acquire(ImageLoaderEngine.getHostLimiter(), host);
+	}
+
+	protected void releaseHost(String host) {
+		ImageLoaderEngine.getHostLimiter().release(host);
+	}
+
+	/**
+	 * Takes a permit of {@code limiter} for {@code key}, or parks this task
+	 * like {@link #acquireHost(String)}
+	 *
+	 * @return true if the task can go on, call
+	 *         {@link HostLimiter#release(String)} once it is done
+	 */
+	protected boolean acquire(HostLimiter limiter, String key) {
+		synchronized (this) {
+			if (limiter.acquire(key, this))
+				return true;
+			mParkedLimiter = limiter;
+			mParkedKey = key;
+			mStarted = false;
+			return false;
+		}
+	}
+
+	@Override
+	public void resume() {
+		ThreadPoolExecutor executor;
+		synchronized (this) {
+			mParkedLimiter = null;
+			mParkedKey = null;
+			executor = mExecutor;
+		}
+		if (mAborted || executor == null)
+			return;
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			// the engine was reconfigured and its executor shut down while
+			// this task was parked, it would never run
+			onDropped();
+		}
+	}
+
+	/** Registers the connection and its stream to close them on abort */
+	protected synchronized void setConnection(URLConnection connection, Closeable stream) {
+		mConnection = connection;
+		mStream = stream;
+		if (mAborted)
+			closeConnection();
+	}
+
+	/** Registers the options of the running decode to cancel it on abort */
+	protected synchronized void setDecodeOptions(BitmapFactory.Options opts) {
+		mDecodeOptions = opts;
+		if (mAborted && opts != null)
+			opts.requestCancelDecode();
+	}
+
+	private void closeConnection() {
+		if (mConnection instanceof HttpURLConnection)
+			((HttpURLConnection) mConnection).disconnect();
+		if (mStream != null) {
+			try {
+				mStream.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Process-wide executors shared by every AsyncNetImageLoader and
+ * AsyncLocalImageLoader, so that views don't each create their own thread
+ * pool.
+ * <ul>
+ * <li>The I/O pool fetches network images. Its queue is bounded, when full
+ * the request of lowest priority is dropped.</li>
+ * <li>The decode pool decodes the fetched bytes and loads local files.</li>
+ * </ul>
+ * Both queues run visible loads before prefetches and the newest requests
+ * first, see {@link LoadQueue}.
+ * <p>
+ * Network fetches use the timeouts set by
+ * {@link #setTimeouts(int, int, int)} and at most
+ * {@link #setMaxRequestsPerHost(int)} of them run against the same host, the
+ * others wait without holding a thread.
+ * Call {@link #configure(int, int, int)} before the first load to change the
+ * pool sizes.
+ * <p>
+ * The time spent in each stage of the loads delivered to a callback is
+ * aggregated in {@link #getLatencyHistogram(int)}, and reported per load to
+ * the listener set by {@link #setLoadTimingsListener(LoadTimings.Listener)}.
+ */
+public final class ImageLoaderEngine {
+	public static final String TAG = "ImageLoaderEngine";
+	private static final boolean LOG_ENABLED = false;
+
+	public static final int DEFAULT_IO_POOL_SIZE = 5;
+	public static final int DEFAULT_DECODE_POOL_SIZE = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+	public static final int DEFAULT_IO_QUEUE_SIZE = 64;
+	private static final long KEEP_ALIVE_SECONDS = 3;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+	public static final int DEFAULT_READ_TIMEOUT = 20 * 1000;
+	public static final int DEFAULT_REQUEST_DEADLINE = 60 * 1000;
+	/** Leaves an I/O thread to the other hosts when one host hangs */
+	public static final int DEFAULT_MAX_REQUESTS_PER_HOST = DEFAULT_IO_POOL_SIZE - 1;
+
+	private static int mIoPoolSize = DEFAULT_IO_POOL_SIZE;
+	private static int mDecodePoolSize = DEFAULT_DECODE_POOL_SIZE;
+	private static int mIoQueueSize = DEFAULT_IO_QUEUE_SIZE;
+	private static ImageLoaderEngine mInstance;
+	private static volatile int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private static volatile int mReadTimeout = DEFAULT_READ_TIMEOUT;
+	private static volatile int mRequestDeadline = DEFAULT_REQUEST_DEADLINE;
+	private static final HostLimiter mHostLimiter = new HostLimiter(DEFAULT_MAX_REQUESTS_PER_HOST);
+	private static volatile LoadTimings.Listener mTimingsListener;
+	private static final LatencyHistogram[] mStageHistograms = new LatencyHistogram[LoadTimings.STAGE_COUNT];
+	private static final LatencyHistogram mTotalHistogram = new LatencyHistogram();
+
+	static {
+		for (int i = 0; i < LoadTimings.STAGE_COUNT; i++) {
+			mStageHistograms[i] = new LatencyHistogram();
+		}
+	}
+
+	private final ThreadPoolExecutor mIoExecutor;
+	private final ThreadPoolExecutor mDecodeExecutor;
+	private final Handler mMainThreadHandler;
+
+	public static synchronized ImageLoaderEngine getInstance() {
+		if (mInstance == null)
+			mInstance = new ImageLoaderEngine(mIoPoolSize, mDecodePoolSize, mIoQueueSize);
+		return mInstance;
+	}
+
+	/**
+	 * Sets the sizes of the shared pools. If the engine is already running it
+	 * is replaced, loads already queued on the old pools still complete.
+	 *
+	 * @param ioPoolSize
+	 *            maximum number of concurrent network fetches
+	 * @param decodePoolSize
+	 *            maximum number of concurrent decodes
+	 * @param ioQueueSize
+	 *            maximum number of pending network fetches, the one of lowest
+	 *            priority is dropped when this is exceeded
+	 */
+	public static synchronized void configure(int ioPoolSize, int decodePoolSize, int ioQueueSize) {
+		if (ioPoolSize <= 0 || decodePoolSize <= 0 || ioQueueSize <= 0) {
+			throw new IllegalArgumentException("pool and queue sizes must be > 0");
+		}
+		mIoPoolSize = ioPoolSize;
+		mDecodePoolSize = decodePoolSize;
+		mIoQueueSize = ioQueueSize;
+		if (mInstance != null) {
+			mInstance.shutdown();
+			mInstance = null;
+		}
+	}
+
+	/**
+	 * Sets the timeouts of network fetches, in ms. They apply to the fetches
+	 * starting after this call.
+	 *
+	 * @param connectTimeout
+	 *            maximum time to establish the connection
+	 * @param readTimeout
+	 *            maximum time to wait for data once connected
+	 * @param requestDeadline
+	 *            maximum time for the whole download, checked between reads
+	 */
+	public static void setTimeouts(int connectTimeout, int readTimeout, int requestDeadline) {
+		if (connectTimeout <= 0 || readTimeout <= 0 || requestDeadline <= 0) {
+			throw new IllegalArgumentException("timeouts must be > 0");
+		}
+		mConnectTimeout = connectTimeout;
+		mReadTimeout = readTimeout;
+		mRequestDeadline = requestDeadline;
+	}
+
+	/**
+	 * Sets the maximum number of concurrent fetches from the same host, the
+	 * default leaves one I/O thread free for the other hosts.
+	 */
+	public static void setMaxRequestsPerHost(int maxRequestsPerHost) {
+		mHostLimiter.setMaxPerHost(maxRequestsPerHost);
+	}
+
+	static int getConnectTimeout() {
+		return mConnectTimeout;
+	}
+
+	static int getReadTimeout() {
+		return mReadTimeout;
+	}
+
+	static int getRequestDeadline() {
+		return mRequestDeadline;
+	}
+
+	static HostLimiter getHostLimiter() {
+		return mHostLimiter;
+	}
+
+	/**
+	 * Sets the listener receiving the timings of each load delivered to a
+	 * callback, null to remove it
+	 */
+	public static void setLoadTimingsListener(LoadTimings.Listener listener) {
+		mTimingsListener = listener;
+	}
+
+	/**
+	 * Returns the durations of {@code stage} over the loads delivered so far,
+	 * see {@link LoadTimings}. Loads that skipped the stage aren't counted,
+	 * the histogram of {@link LoadTimings#STAGE_ENQUEUE} stays empty.
+	 */
+	public static LatencyHistogram getLatencyHistogram(int stage) {
+		return mStageHistograms[stage];
+	}
+
+	/** Returns the durations from request to delivery of the loads */
+	public static LatencyHistogram getTotalLatencyHistogram() {
+		return mTotalHistogram;
+	}
+
+	/** Forgets the durations aggregated so far */
+	public static void resetLatencyHistograms() {
+		for (LatencyHistogram histogram : mStageHistograms) {
+			histogram.reset();
+		}
+		mTotalHistogram.reset();
+	}
+
+	/** Called on the main thread once a load was delivered to its callback */
+	static void onLoadDelivered(String key, LoadTimings timings) {
+		for (int i = LoadTimings.STAGE_DEQUEUE; i < LoadTimings.STAGE_COUNT; i++) {
+			if (timings.hasStage(i))
+				mStageHistograms[i].record(timings.getDuration(i));
+		}
+		mTotalHistogram.record(timings.getTotalDuration());
+		if (LOG_ENABLED)
+			Log.d(TAG, key + ": " + timings);
+		LoadTimings.Listener listener = mTimingsListener;
+		if (listener != null)
+			listener.onLoadTimings(key, timings);
+	}
+
+	/** Returns the number of fetches waiting for their host to be free */
+	public int getParkedFetchCount() {
+		return mHostLimiter.getParkedCount();
+	}
+
+	private ImageLoaderEngine(int ioPoolSize, int decodePoolSize, int ioQueueSize) {
+		// LoadQueue makes room for a better request itself, the rejected
+		// request is the one that ranks below everything queued
+		mIoExecutor = new ThreadPoolExecutor(ioPoolSize, ioPoolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LoadQueue(ioQueueSize), new LoaderThreadFactory("io"),
+				InFlightTasks.wrap(new ThreadPoolExecutor.DiscardPolicy()));
+		mDecodeExecutor = new ThreadPoolExecutor(decodePoolSize, decodePoolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LoadQueue(0), new LoaderThreadFactory("decode"));
+		allowCoreThreadTimeOut(mIoExecutor);
+		allowCoreThreadTimeOut(mDecodeExecutor);
+		mMainThreadHandler = new Handler(Looper.getMainLooper());
+		if (LOG_ENABLED)
+			Log.d(TAG, "Engine started with io pool " + ioPoolSize + ", decode pool " + decodePoolSize + ", io queue " + ioQueueSize);
+	}
+
+	private static void allowCoreThreadTimeOut(ThreadPoolExecutor executor) {
+		// Available since API 9, idle threads are kept alive on older devices
+		try {
+			executor.allowCoreThreadTimeOut(true);
+		} catch (Throwable e) {
+		}
+	}
+
+	ThreadPoolExecutor getIoExecutor() {
+		return mIoExecutor;
+	}
+
+	ThreadPoolExecutor getDecodeExecutor() {
+		return mDecodeExecutor;
+	}
+
+	Handler getMainThreadHandler() {
+		return mMainThreadHandler;
+	}
+
+	/** Returns the number of threads currently alive in both pools */
+	public int getThreadCount() {
+		return mIoExecutor.getPoolSize() + mDecodeExecutor.getPoolSize();
+	}
+
+	/** Returns the number of threads currently running a load */
+	public int getActiveCount() {
+		return mIoExecutor.getActiveCount() + mDecodeExecutor.getActiveCount();
+	}
+
+	/** Returns the number of loads waiting in both queues */
+	public int getQueueDepth() {
+		return getIoQueueDepth() + getDecodeQueueDepth();
+	}
+
+	/** Returns the number of network fetches waiting for an I/O thread */
+	public int getIoQueueDepth() {
+		return mIoExecutor.getQueue().size();
+	}
+
+	/** Returns the number of decodes waiting for a decode thread */
+	public int getDecodeQueueDepth() {
+		return mDecodeExecutor.getQueue().size();
+	}
+
+	/** Returns the approximate number of loads completed by both pools */
+	public long getCompletedTaskCount() {
+		return mIoExecutor.getCompletedTaskCount() + mDecodeExecutor.getCompletedTaskCount();
+	}
+
+	private void shutdown() {
+		mIoExecutor.shutdown();
+		mDecodeExecutor.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ImageLoaderEngine[threads=%d,active=%d,ioQueue=%d,decodeQueue=%d,parked=%d,completed=%d]", getThreadCount(), getActiveCount(), getIoQueueDepth(), getDecodeQueueDepth(), getParkedFetchCount(),
+				getCompletedTaskCount());
+	}
+
+	private static final class LoaderThreadFactory implements ThreadFactory {
+		private final AtomicInteger mCount = new AtomicInteger(1);
+		private final String mName;
+
+		public LoaderThreadFactory(String name) {
+			mName = name;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					// keep loads from competing with the UI thread
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, "ImageLoader-" + mName + "-" + mCount.getAndIncrement());
+		}
+	}
+}
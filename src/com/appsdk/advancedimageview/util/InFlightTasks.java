@@ -0,0 +1,126 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Registry of the loads currently running or queued, so concurrent requests
+ * for the same variant of an image share one fetch and one decode. The first
+ * task registered for a key is the leader and is the only one executed, the
+ * following ones just wait for its result.
+ */
+final class InFlightTasks<T extends InFlightTasks.Task> {
+
+	interface Task extends Runnable {
+		/** The url or path this task loads, with the variant it decodes */
+		String getKey();
+
+		/** Whether run() has been called on this task */
+		boolean isStarted();
+
+		/** Whether the caller is no longer interested in the result */
+		boolean isCancelled();
+
+		/**
+		 * Called when the executor dropped this task before it started, the
+		 * task must unregister itself.
+		 */
+		void onDropped();
+	}
+
+	private final HashMap<String, ArrayList<T>> mTasks = new HashMap<String, ArrayList<T>>();
+
+	/**
+	 * Registers {@code task} for its key.
+	 *
+	 * @return true if {@code task} is the leader and must be executed, false
+	 *         if it joined a load already in flight.
+	 */
+	public synchronized boolean register(T task) {
+		ArrayList<T> waiters = mTasks.get(task.getKey());
+		if (waiters == null) {
+			waiters = new ArrayList<T>(2);
+			waiters.add(task);
+			mTasks.put(task.getKey(), waiters);
+			return true;
+		}
+		waiters.add(task);
+		return false;
+	}
+
+	/**
+	 * Unregisters the load led by {@code leader} and returns every task
+	 * waiting for its result, the leader included.
+	 */
+	public synchronized List<T> complete(T leader) {
+		ArrayList<T> waiters = mTasks.get(leader.getKey());
+		if (waiters == null || waiters.get(0) != leader) {
+			return Collections.singletonList(leader);
+		}
+		mTasks.remove(leader.getKey());
+		return waiters;
+	}
+
+	/**
+	 * Called once {@code task} is cancelled. If every task waiting for its key
+	 * is cancelled too, the key is unregistered and the leader is returned so
+	 * it can be aborted.
+	 *
+	 * @return the leader to abort, or null if the load is still needed
+	 */
+	public synchronized T cancel(T task) {
+		ArrayList<T> waiters = mTasks.get(task.getKey());
+		if (waiters == null || !waiters.contains(task))
+			return null;
+		for (T waiter : waiters) {
+			if (!waiter.isCancelled())
+				return null;
+		}
+		mTasks.remove(task.getKey());
+		return waiters.get(0);
+	}
+
+	/**
+	 * Returns the leader of the load {@code task} waits for, or null if
+	 * {@code task} isn't registered anymore.
+	 */
+	public synchronized T getLeader(T task) {
+		ArrayList<T> waiters = mTasks.get(task.getKey());
+		if (waiters == null || !waiters.contains(task))
+			return null;
+		return waiters.get(0);
+	}
+
+	/** Returns the number of distinct keys currently in flight */
+	public synchronized int size() {
+		return mTasks.size();
+	}
+
+	/**
+	 * Wraps {@code handler} so that tasks dropped by it, like the oldest task
+	 * discarded by {@link ThreadPoolExecutor.DiscardOldestPolicy}, are
+	 * unregistered instead of blocking their key forever.
+	 */
+	public static RejectedExecutionHandler wrap(final RejectedExecutionHandler handler) {
+		return new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+				BlockingQueue<Runnable> queue = executor.getQueue();
+				Runnable head = queue.peek();
+				try {
+					handler.rejectedExecution(r, executor);
+				} finally {
+					if (head instanceof Task && !((Task) head).isStarted() && !queue.contains(head))
+						((Task) head).onDropped();
+					if (r instanceof Task && !((Task) r).isStarted() && !queue.contains(r))
+						((Task) r).onDropped();
+				}
+			}
+		};
+	}
+}
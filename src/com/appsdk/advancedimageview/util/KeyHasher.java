@@ -0,0 +1,92 @@
+package com.appsdk.advancedimageview.util;
+
+/**
+ * Derives cache keys from urls and paths: the MD5 digest of the string, as
+ * 32 lowercase hex chars like {@link DiskLruCache#hashKey(String)}, or in a
+ * compact binary form. The digest, the bytes of the string and the hex chars
+ * go through buffers kept by the hasher, so deriving a key into a caller's
+ * buffer allocates nothing.
+ * <p>
+ * A hasher is not thread safe, use the one of the current thread returned by
+ * {@link #get()}.
+ */
+public final class KeyHasher {
+	/** Length of a key in hex chars */
+	public static final int HEX_LENGTH = 32;
+	/** Length of a key in bytes, its binary form */
+	public static final int DIGEST_LENGTH = 16;
+
+	private static final ThreadLocal<KeyHasher> mHashers = new ThreadLocal<KeyHasher>() {
+		@Override
+		protected KeyHasher initialValue() {
+			return new KeyHasher();
+		}
+	};
+
+	private final MD5 mMd5 = new MD5();
+	private final byte[] mDigest = new byte[DIGEST_LENGTH];
+	private final char[] mHex = new char[HEX_LENGTH];
+	/** The bytes of the string hashed, grown to the longest one */
+	private byte[] mBytes = new byte[256];
+
+	/** Returns the hasher of the current thread */
+	public static KeyHasher get() {
+		return mHashers.get();
+	}
+
+	/** Returns the key of {@code str} in hex, only the string is allocated */
+	public String hashKey(String str) {
+		hashKey(str, mHex, 0);
+		return new String(mHex);
+	}
+
+	/** Writes the key of {@code str} in hex into {@code out} at {@code offset} */
+	public void hashKey(String str, char[] out, int offset) {
+		digest(str, mDigest, 0);
+		MessageDigest.asHex(mDigest, 0, DIGEST_LENGTH, out, offset);
+	}
+
+	/**
+	 * Writes the binary key of {@code str}, its 16 bytes MD5 digest, into
+	 * {@code out} at {@code offset}
+	 */
+	public void digest(String str, byte[] out, int offset) {
+		mMd5.reset();
+		int length = str.length();
+		if (!isAscii(str, length)) {
+			// same bytes as String.getBytes(), like MD5.digest(String)
+			byte[] bytes = str.getBytes();
+			mMd5.update(bytes, 0, bytes.length);
+		} else {
+			if (mBytes.length < length)
+				mBytes = new byte[Math.max(length, mBytes.length * 2)];
+			for (int i = 0; i < length; i++) {
+				mBytes[i] = (byte) str.charAt(i);
+			}
+			mMd5.update(mBytes, 0, length);
+		}
+		mMd5.doFinal(out, offset);
+	}
+
+	/**
+	 * Returns the first 64 bits of the binary key of {@code str}, a key for
+	 * maps of primitives where rare collisions are acceptable
+	 */
+	public long hash64(String str) {
+		digest(str, mDigest, 0);
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (mDigest[i] & 0xff);
+		}
+		return hash;
+	}
+
+	/** Whether every char of {@code str} encodes to the same single byte */
+	private static boolean isAscii(String str, int length) {
+		for (int i = 0; i < length; i++) {
+			if (str.charAt(i) >= 0x80)
+				return false;
+		}
+		return true;
+	}
+}
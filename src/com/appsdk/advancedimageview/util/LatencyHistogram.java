@@ -0,0 +1,99 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in microseconds, recorded from any thread without
+ * locking. Each power of two range is split in 8 buckets, so a percentile is
+ * reported with an error of at most 12.5%.
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Values below SUB_BUCKETS have a bucket each, then 8 per power of two */
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mMax = new AtomicLong();
+
+	/** Records a duration of {@code micros}, negative values count as 0 */
+	public void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		mCounts.incrementAndGet(indexOf(micros));
+		long max;
+		while (micros > (max = mMax.get()) && !mMax.compareAndSet(max, micros)) {
+		}
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	/** Returns the largest value of the bucket at {@code index} */
+	private static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			count += mCounts.get(i);
+		}
+		return count;
+	}
+
+	/** Returns the longest recorded duration, 0 if none was */
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * Returns the duration that {@code percentile} percent of the recorded
+	 * ones don't exceed, 0 if none was recorded
+	 *
+	 * @param percentile
+	 *            between 0 and 100, 50 for the median
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = mCounts.get(i);
+			total += counts[i];
+		}
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(upperBoundOf(i), getMax());
+		}
+		return getMax();
+	}
+
+	/** Forgets every recorded duration */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			mCounts.set(i, 0);
+		}
+		mMax.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d,p50=%dus,p90=%dus,p99=%dus,max=%dus", getCount(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+	}
+}
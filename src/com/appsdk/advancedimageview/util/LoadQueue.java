@@ -0,0 +1,94 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Work queue of the {@link ImageLoaderEngine} pools. Loads are ordered by
+ * priority, then newest first, so that while scrolling the images now on
+ * screen are loaded before the ones scrolled past.
+ * <p>
+ * If the queue has a capacity and is full, the new load replaces the queued
+ * load of lowest priority and oldest request if it ranks above it, otherwise
+ * it is refused. Loads pushed out of the queue are told through
+ * {@link InFlightTasks.Task#onDropped()}.
+ */
+final class LoadQueue extends PriorityBlockingQueue<Runnable> {
+	private static final long serialVersionUID = 1L;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final AtomicLong mSequence = new AtomicLong();
+
+	/** Something ordered by the queue */
+	interface Prioritized {
+		int getPriority();
+
+		/** Increasing number of the request, higher is newer */
+		long getSequence();
+	}
+
+	static final Comparator<Runnable> COMPARATOR = new Comparator<Runnable>() {
+		@Override
+		public int compare(Runnable lhs, Runnable rhs) {
+			int lhsPriority = getPriority(lhs);
+			int rhsPriority = getPriority(rhs);
+			if (lhsPriority != rhsPriority)
+				return lhsPriority > rhsPriority ? -1 : 1;
+			long lhsSequence = getSequence(lhs);
+			long rhsSequence = getSequence(rhs);
+			if (lhsSequence != rhsSequence)
+				return lhsSequence > rhsSequence ? -1 : 1;
+			return 0;
+		}
+	};
+
+	private final int mCapacity;
+
+	/**
+	 * @param capacity
+	 *            maximum number of queued loads, 0 for no limit
+	 */
+	LoadQueue(int capacity) {
+		super(INITIAL_CAPACITY, COMPARATOR);
+		mCapacity = capacity;
+	}
+
+	/** Returns the next request sequence number */
+	static long nextSequence() {
+		return mSequence.incrementAndGet();
+	}
+
+	private static int getPriority(Runnable r) {
+		return r instanceof Prioritized ? ((Prioritized) r).getPriority() : ImageLoadRequest.PRIORITY_VISIBLE;
+	}
+
+	private static long getSequence(Runnable r) {
+		return r instanceof Prioritized ? ((Prioritized) r).getSequence() : 0;
+	}
+
+	@Override
+	public boolean offer(Runnable r) {
+		if (mCapacity <= 0)
+			return super.offer(r);
+		Runnable dropped = null;
+		synchronized (this) {
+			if (size() >= mCapacity) {
+				Runnable worst = null;
+				for (Iterator<Runnable> i = iterator(); i.hasNext();) {
+					Runnable queued = i.next();
+					if (worst == null || COMPARATOR.compare(queued, worst) > 0)
+						worst = queued;
+				}
+				// refused, the executor hands it to its rejection handler
+				if (worst == null || COMPARATOR.compare(r, worst) >= 0 || !remove(worst))
+					return false;
+				dropped = worst;
+			}
+			super.offer(r);
+		}
+		if (dropped instanceof InFlightTasks.Task)
+			((InFlightTasks.Task) dropped).onDropped();
+		return true;
+	}
+}
@@ -0,0 +1,122 @@
+package com.appsdk.advancedimageview.util;
+
+/**
+ * When each stage of an image load ended, see
+ * {@link ImageLoaderEngine#setLoadTimingsListener(Listener)}. A load skips
+ * the stages it doesn't need: a memory cache hit has no network or decode
+ * stage, a local file has no network stage.
+ * <p>
+ * The duration of a stage is the time since the end of the previous stage
+ * the load went through. It includes waiting: the dequeue stage is the time
+ * spent in the queue, or parked for a busy host, the decode stage includes
+ * the wait for a decode thread and the delivery stage the hop to the main
+ * thread.
+ */
+public final class LoadTimings {
+	/** The load was requested */
+	public static final int STAGE_ENQUEUE = 0;
+	/** A thread started running the load */
+	public static final int STAGE_DEQUEUE = 1;
+	/** The memory and disk caches were looked up */
+	public static final int STAGE_CACHE_LOOKUP = 2;
+	/** The connection to the server was established */
+	public static final int STAGE_CONNECT = 3;
+	/** The response headers were received */
+	public static final int STAGE_FIRST_BYTE = 4;
+	/** The whole image was downloaded */
+	public static final int STAGE_DOWNLOAD_END = 5;
+	public static final int STAGE_DECODE = 6;
+	/** The decoded bitmap was scaled to its final size */
+	public static final int STAGE_TRANSFORM = 7;
+	/** The bitmap was added to the memory cache, and the bytes to the disk */
+	public static final int STAGE_CACHE_PUT = 8;
+	/** The callback started on the main thread */
+	public static final int STAGE_DELIVERY = 9;
+	public static final int STAGE_COUNT = 10;
+
+	private static final String[] STAGE_NAMES = { "enqueue", "dequeue", "cacheLookup", "connect", "firstByte", "downloadEnd", "decode", "transform", "cachePut", "delivery" };
+
+	/** Receives the timings of every load delivered to a callback */
+	public static interface Listener {
+		/** Called on the main thread, right after the callback of the load */
+		public void onLoadTimings(String key, LoadTimings timings);
+	}
+
+	/** System.nanoTime() at the end of each stage, 0 if skipped */
+	private final long[] mTimes = new long[STAGE_COUNT];
+	private boolean mJoined;
+
+	LoadTimings() {
+		mark(STAGE_ENQUEUE);
+	}
+
+	/** Records that {@code stage} ends now, a stage run again ends later */
+	void mark(int stage) {
+		mTimes[stage] = System.nanoTime();
+	}
+
+	/**
+	 * Takes the stages run by {@code leader} for this load, which joined the
+	 * load of {@code leader} instead of running its own
+	 */
+	void join(LoadTimings leader) {
+		for (int i = STAGE_DEQUEUE; i < STAGE_DELIVERY; i++) {
+			mTimes[i] = leader.mTimes[i];
+		}
+		mJoined = true;
+	}
+
+	public static String getStageName(int stage) {
+		return STAGE_NAMES[stage];
+	}
+
+	/** Whether the load went through {@code stage} */
+	public boolean hasStage(int stage) {
+		return mTimes[stage] != 0;
+	}
+
+	/** Returns System.nanoTime() at the end of {@code stage}, 0 if skipped */
+	public long getTime(int stage) {
+		return mTimes[stage];
+	}
+
+	/**
+	 * Returns the duration of {@code stage} in microseconds, 0 if skipped
+	 * and for {@link #STAGE_ENQUEUE}
+	 */
+	public long getDuration(int stage) {
+		if (mTimes[stage] == 0)
+			return 0;
+		for (int i = stage - 1; i >= 0; i--) {
+			if (mTimes[i] != 0)
+				// a joined load may have been requested after the leader
+				// started
+				return Math.max(0, (mTimes[stage] - mTimes[i]) / 1000);
+		}
+		return 0;
+	}
+
+	/** Returns the time from the request to the delivery, in microseconds */
+	public long getTotalDuration() {
+		if (mTimes[STAGE_DELIVERY] == 0)
+			return 0;
+		return Math.max(0, (mTimes[STAGE_DELIVERY] - mTimes[STAGE_ENQUEUE]) / 1000);
+	}
+
+	/** Whether this load was served by a load of the same image in flight */
+	public boolean isJoined() {
+		return mJoined;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("LoadTimings[total=").append(getTotalDuration()).append("us");
+		for (int i = STAGE_DEQUEUE; i < STAGE_COUNT; i++) {
+			if (hasStage(i))
+				sb.append(',').append(STAGE_NAMES[i]).append('=').append(getDuration(i)).append("us");
+		}
+		if (mJoined)
+			sb.append(",joined");
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,40 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/** Evicts the least recently used entry */
+public final class LruPolicy<K> implements EvictionPolicy<K> {
+	private final LinkedHashMap<K, Integer> mEntries = new LinkedHashMap<K, Integer>(16, 0.75f, true);
+
+	@Override
+	public void setMaxSize(int maxSize) {
+	}
+
+	@Override
+	public void onAdd(K key, int size) {
+		mEntries.put(key, size);
+	}
+
+	@Override
+	public void onAccess(K key) {
+		// moves it to the end in access order
+		mEntries.get(key);
+	}
+
+	@Override
+	public void onRemove(K key, boolean evicted) {
+		mEntries.remove(key);
+	}
+
+	@Override
+	public K selectVictim() {
+		return mEntries.isEmpty() ? null : mEntries.keySet().iterator().next();
+	}
+
+	@Override
+	public List<K> keys() {
+		return new ArrayList<K>(mEntries.keySet());
+	}
+}
@@ -112,6 +112,12 @@ public class MD5 extends MessageDigest {
 	/** Number of bytes remained into the chunk */
 	int block_offset;
 
+	/** Words of the chunk being transformed, kept to be reused */
+	int x[] = new int[16];
+
+	/** Length field of the padding, kept to be reused */
+	byte len_field[] = new byte[8];
+
 	/** Padding */
 	static byte zeropadding[] = { (byte) 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
 			0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
@@ -152,14 +158,24 @@ public class MD5 extends MessageDigest {
 		update(str);
 	}
 
+	/**
+	 * Starts a new message-digest operation, reusing the buffers of this
+	 * one
+	 */
+	public void reset() {
+		init();
+	}
+
 	/** Inits the MD5 */
 	private void init() {
 		count = 0;
 		// init the first block
-		block = new byte[64];
+		if (block == null)
+			block = new byte[64];
 		block_offset = 0;
 		// load magic initialization constants
-		state = new int[4];
+		if (state == null)
+			state = new int[4];
 		state[0] = 0x67452301;
 		state[1] = 0xefcdab89;
 		state[2] = 0x98badcfe;
@@ -204,7 +220,7 @@ public class MD5 extends MessageDigest {
 				block[block_offset + i] = buffer[offset + i];
 
 			// process the block
-			transform(state, block);
+			transform(state, block, x);
 
 			// update offset, len, etc.
 			offset += size;
@@ -234,12 +250,23 @@ public class MD5 extends MessageDigest {
 			return message_digest;
 		// else
 
+		// the padding updates are ignored once message_digest is set
+		byte[] digest = new byte[16];
+		doFinal(digest, 0);
+		message_digest = digest;
+		return message_digest;
+	}
+
+	/**
+	 * MessageDigest finalization into {@code out} at {@code offset}, without
+	 * allocating. Call {@link #reset()} before the next operation.
+	 */
+	public void doFinal(byte[] out, int offset) {
 		// num of padding zeros (node: block_offset is at most 64)
 		int npad = 64 - ((block_offset + 8) % 64);
 
 		// set total bit length into the last 8 bytes
 		long len = count * 8;
-		byte[] len_field = new byte[8];
 		for (int i = 0; i < 8; i++) {
 			len_field[i] = (byte) (len % 256);
 			len >>= 8;
@@ -250,28 +277,25 @@ public class MD5 extends MessageDigest {
 		update(zeropadding, 0, npad);
 		update(len_field, 0, 8);
 
-		message_digest = new byte[16];
 		// convert 4 words to 16 bytes
 		// for (int i=0; i<4; i++) {
 		// copyBytes(wordToBytes(state[i]),message_digest,i*4); }
-		int k = 0;
+		int k = offset;
 		for (int i = 0; i < 4; i++) {
-			message_digest[k++] = (byte) ((state[i]) & 0xff);
-			message_digest[k++] = (byte) ((state[i] >>> 8) & 0xff);
-			message_digest[k++] = (byte) ((state[i] >>> 16) & 0xff);
-			message_digest[k++] = (byte) ((state[i] >>> 24) & 0xff);
+			out[k++] = (byte) ((state[i]) & 0xff);
+			out[k++] = (byte) ((state[i] >>> 8) & 0xff);
+			out[k++] = (byte) ((state[i] >>> 16) & 0xff);
+			out[k++] = (byte) ((state[i] >>> 24) & 0xff);
 		}
-		return message_digest;
 	}
 
 	/** MD5 basic transformation. Transforms state based on block. */
-	private static void transform(int[] state, byte[] block) {
+	private static void transform(int[] state, byte[] block, int[] x) {
 		int a = state[0];
 		int b = state[1];
 		int c = state[2];
 		int d = state[3];
 
-		int[] x = new int[16];
 		x[0] = ((int) (block[0] & 0xff)) | (((int) (block[1] & 0xff)) << 8)
 				| (((int) (block[2] & 0xff)) << 16)
 				| (((int) (block[3])) << 24);
@@ -580,11 +604,6 @@ public class MD5 extends MessageDigest {
 	}
 	
 	public static String asHex(byte[] buf) { 
-		String str=new String(); 
-		for (int i=0; i<buf.length; i++) {
-			str += Integer.toHexString((buf[i] >>> 4) & 0x0F);
-			str += Integer.toHexString(buf[i] & 0x0F); 
-		} 
-		return str; 
+		return MessageDigest.asHex(buf);
 	}
 }
@@ -0,0 +1,30 @@
+package com.appsdk.advancedimageview.util;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+/**
+ * Forwards the memory trim levels of the system to {@link BitmapCache}. Kept
+ * out of BitmapCache since ComponentCallbacks2 only exists from API 14.
+ */
+final class MemoryTrimCallbacks implements ComponentCallbacks2 {
+	private final BitmapCache mCache;
+
+	MemoryTrimCallbacks(BitmapCache cache) {
+		mCache = cache;
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		mCache.trimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		mCache.trimMemory(TRIM_MEMORY_COMPLETE);
+	}
+
+	@Override
+	public void onConfigurationChanged(Configuration newConfig) {
+	}
+}
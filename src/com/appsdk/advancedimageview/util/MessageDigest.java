@@ -27,6 +27,8 @@ package com.appsdk.advancedimageview.util;
  * Generic hash/message-digest algorithm.
  */
 public abstract class MessageDigest {
+	private static final char[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
 	/**
 	 * MessageDigest block update operation. Continues a message-digest
 	 * operation, processing another message block, and updating the context.
@@ -68,12 +70,20 @@ public abstract class MessageDigest {
 
 	/** Transforms an array of bytes into a string of hex values. */
 	public static String asHex(byte[] buf) {
-		String str = new String();
-		for (int i = 0; i < buf.length; i++) {
-			str += Integer.toHexString((buf[i] >>> 4) & 0x0F);
-			str += Integer.toHexString(buf[i] & 0x0F);
+		char[] hex = new char[buf.length * 2];
+		asHex(buf, 0, buf.length, hex, 0);
+		return new String(hex);
+	}
+
+	/**
+	 * Writes the lowercase hex values of {@code len} bytes of {@code buf}
+	 * into {@code out} at {@code outOffset}, two chars per byte.
+	 */
+	public static void asHex(byte[] buf, int offset, int len, char[] out, int outOffset) {
+		for (int i = offset; i < offset + len; i++) {
+			out[outOffset++] = HEX_DIGITS[(buf[i] >>> 4) & 0x0F];
+			out[outOffset++] = HEX_DIGITS[buf[i] & 0x0F];
 		}
-		return str;
 	}
 
 }
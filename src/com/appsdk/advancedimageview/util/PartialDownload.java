@@ -0,0 +1,170 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The bytes of a large download received so far, kept in the
+ * {@code partial/} directory of the disk cache so that a download broken
+ * midway resumes with a Range request instead of starting over. The strong
+ * ETag of the response is stored with them, a resumed response must carry
+ * the same ETag.
+ * <p>
+ * The partial downloads share the budget of the disk cache: the cache is
+ * opened with the rest, see {@link ImageDiskCache}, and the oldest partial
+ * downloads are deleted to keep their total size within their share.
+ * <p>
+ * Only one fetch per url runs at a time, see {@link AsyncNetImageLoader}, so
+ * a partial download is never written concurrently.
+ */
+final class PartialDownload {
+	private static final String DIRECTORY = "partial";
+	private static final String DATA_SUFFIX = ".part";
+	private static final String ETAG_SUFFIX = ".etag";
+	/** Smaller responses are simply downloaded again */
+	static final long MIN_LENGTH = 256 * 1024;
+
+	private final File mDataFile;
+	private final File mETagFile;
+	/** Total size of the partial downloads of the directory */
+	private final long mMaxBytes;
+	private String mETag;
+
+	private PartialDownload(File dir, String url, long maxBytes) {
+		mMaxBytes = maxBytes;
+		String name = DiskLruCache.hashKey(url);
+		mDataFile = new File(dir, name + DATA_SUFFIX);
+		mETagFile = new File(dir, name + ETAG_SUFFIX);
+	}
+
+	/**
+	 * Returns the partial download of {@code url} in the cache directory
+	 * {@code cacheDir}, it may hold no bytes yet.
+	 *
+	 * @param maxBytes
+	 *            the total size the partial downloads of the cache may take
+	 */
+	static PartialDownload get(File cacheDir, String url, long maxBytes) {
+		PartialDownload partial = new PartialDownload(new File(cacheDir, DIRECTORY), url, maxBytes);
+		if (partial.mDataFile.exists() && partial.mETagFile.exists()) {
+			try {
+				partial.mETag = new String(readFile(partial.mETagFile), "UTF-8");
+			} catch (IOException e) {
+				partial.delete();
+			}
+		}
+		return partial;
+	}
+
+	/** Whether the response of this ETag can be resumed later */
+	static boolean isStrongETag(String eTag) {
+		return eTag != null && eTag.length() > 0 && !eTag.startsWith("W/");
+	}
+
+	/** Returns the number of bytes received so far, 0 if nothing to resume */
+	long getLength() {
+		return mETag != null ? mDataFile.length() : 0;
+	}
+
+	/** Returns the ETag the resumed response must match */
+	String getETag() {
+		return mETag;
+	}
+
+	/**
+	 * Starts the partial download over for a response of {@code eTag} and
+	 * {@code length} bytes, deleting the oldest ones to make room for it
+	 *
+	 * @return the stream to write the response body to, or null if the
+	 *         response is too large to be kept
+	 */
+	OutputStream restart(String eTag, long length) throws IOException {
+		delete();
+		byte[] eTagBytes = eTag.getBytes("UTF-8");
+		if (length + eTagBytes.length > mMaxBytes)
+			return null;
+		File dir = mDataFile.getParentFile();
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("Unable to create " + dir);
+		trimDirectory(dir, mMaxBytes - length - eTagBytes.length);
+		OutputStream os = new FileOutputStream(mETagFile);
+		try {
+			os.write(eTagBytes);
+		} finally {
+			os.close();
+		}
+		mETag = eTag;
+		return new FileOutputStream(mDataFile);
+	}
+
+	/** Returns the stream to append the rest of the body to */
+	OutputStream append() throws IOException {
+		return new FileOutputStream(mDataFile, true);
+	}
+
+	/** Returns the complete download */
+	byte[] readAll() throws IOException {
+		return readFile(mDataFile);
+	}
+
+	void delete() {
+		mETag = null;
+		mDataFile.delete();
+		mETagFile.delete();
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			return DiskLruCache.readFully(is);
+		} finally {
+			DiskLruCache.closeQuietly(is);
+		}
+	}
+
+	/**
+	 * Deletes the oldest partial downloads until the directory holds at most
+	 * {@code maxBytes}
+	 */
+	private static void trimDirectory(File dir, long maxBytes) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		long size = 0;
+		for (File file : files) {
+			size += file.length();
+		}
+		if (size <= maxBytes)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long lhsModified = lhs.lastModified();
+				long rhsModified = rhs.lastModified();
+				return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < files.length && size > maxBytes; i++) {
+			// the data and the ETag of a download go together
+			String name = files[i].getName();
+			int dot = name.lastIndexOf('.');
+			String base = dot > 0 ? name.substring(0, dot) : name;
+			size -= deleteFile(new File(dir, base + DATA_SUFFIX));
+			size -= deleteFile(new File(dir, base + ETAG_SUFFIX));
+			if (!name.endsWith(DATA_SUFFIX) && !name.endsWith(ETAG_SUFFIX))
+				size -= deleteFile(files[i]);
+		}
+	}
+
+	/** Returns the number of bytes freed by deleting {@code file} */
+	private static long deleteFile(File file) {
+		long length = file.length();
+		return file.delete() ? length : 0;
+	}
+}
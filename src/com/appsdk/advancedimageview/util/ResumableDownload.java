@@ -0,0 +1,199 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URLConnection;
+
+/**
+ * Downloads a response body, resuming the bytes a {@link PartialDownload}
+ * kept from a broken download with a Range request. The resumed response
+ * must be a 206 of the same strong ETag, starting where the kept bytes end;
+ * otherwise the kept bytes are dropped and the image is downloaded again. A
+ * large response with a strong ETag is kept on the disk while it arrives,
+ * and a body shorter than its Content-Length fails the download, so its
+ * bytes are resumed next time.
+ * <p>
+ * Plain Java, the caller opens and configures the connections.
+ */
+final class ResumableDownload {
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	/** The caller of a download */
+	interface Listener {
+		/**
+		 * Returns a new connection to the image, configured but not
+		 * connected. The download adds the Range headers.
+		 */
+		URLConnection openConnection() throws IOException;
+
+		/**
+		 * Called with the connection before it connects, then with its body
+		 * stream, closing them aborts the download
+		 */
+		void onConnection(URLConnection conn, Closeable stream);
+
+		/** Called when a stage of {@link LoadTimings} ends */
+		void onStage(int stage);
+
+		/** Whether the download must stop, it then returns an empty body */
+		boolean isAborted();
+	}
+
+	private final Listener mListener;
+	private final PartialDownload mPartial;
+	private final long mDeadline;
+	private URLConnection mConnection;
+	private long mReceivedCount;
+
+	/**
+	 * @param partial
+	 *            the bytes kept for the image, null to neither resume nor
+	 *            keep them, for a conditional request
+	 * @param deadline
+	 *            System.currentTimeMillis() after which the download fails
+	 */
+	ResumableDownload(Listener listener, PartialDownload partial, long deadline) {
+		mListener = listener;
+		mPartial = partial;
+		mDeadline = deadline;
+	}
+
+	/** Returns the connection of the last response */
+	URLConnection getConnection() {
+		return mConnection;
+	}
+
+	/** Returns the number of body bytes received, even if the download failed */
+	long getReceivedCount() {
+		return mReceivedCount;
+	}
+
+	/**
+	 * Downloads the body of the image
+	 *
+	 * @return the body, or null if the server answered 304 Not Modified to a
+	 *         conditional request
+	 */
+	byte[] run() throws IOException {
+		long resumeFrom = mPartial != null ? mPartial.getLength() : 0;
+		URLConnection conn = mListener.openConnection();
+		mConnection = conn;
+		if (resumeFrom > 0) {
+			// If-Range makes the server send the whole image if it changed
+			conn.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+			conn.setRequestProperty("If-Range", mPartial.getETag());
+		}
+		mListener.onConnection(conn, null);
+		conn.connect();
+		mListener.onStage(LoadTimings.STAGE_CONNECT);
+		boolean resumed = false;
+		if (conn instanceof HttpURLConnection) {
+			HttpURLConnection http = (HttpURLConnection) conn;
+			int code = http.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				// close the empty body so the connection is kept alive
+				DiskLruCache.closeQuietly(http.getInputStream());
+				return null;
+			}
+			if (resumeFrom > 0 && (code == HttpURLConnection.HTTP_PARTIAL || code == HTTP_RANGE_NOT_SATISFIABLE)) {
+				resumed = code == HttpURLConnection.HTTP_PARTIAL && mPartial.getETag().equals(conn.getHeaderField("ETag")) && getRangeStart(conn) == resumeFrom;
+				if (!resumed) {
+					// the kept bytes can't be completed, start over
+					drainQuietly(code == HttpURLConnection.HTTP_PARTIAL ? http.getInputStream() : http.getErrorStream());
+					mPartial.delete();
+					return run();
+				}
+			}
+			if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+				drainQuietly(http.getErrorStream());
+				throw new IOException("HTTP " + code + " for " + conn.getURL());
+			}
+		}
+		InputStream is = conn.getInputStream();
+		mListener.onStage(LoadTimings.STAGE_FIRST_BYTE);
+		mListener.onConnection(conn, is);
+		OutputStream partialOut = null;
+		try {
+			if (resumed) {
+				partialOut = mPartial.append();
+			} else if (mPartial != null) {
+				// the server ignored the range, or this is a new download
+				mPartial.delete();
+				String eTag = conn.getHeaderField("ETag");
+				if (PartialDownload.isStrongETag(eTag) && "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges")) && conn.getContentLength() >= PartialDownload.MIN_LENGTH)
+					partialOut = mPartial.restart(eTag, conn.getContentLength());
+			}
+			ByteArrayOutputStream baos = partialOut == null ? new ByteArrayOutputStream() : null;
+			byte[] cache = new byte[1024 * 10];
+			int len = 0;
+			long received = 0;
+			while ((len = is.read(cache)) != -1) {
+				if (mListener.isAborted())
+					return new byte[0];
+				if (System.currentTimeMillis() > mDeadline)
+					throw new SocketTimeoutException("Deadline exceeded for " + conn.getURL());
+				if (partialOut != null)
+					partialOut.write(cache, 0, len);
+				else
+					baos.write(cache, 0, len);
+				received += len;
+				mReceivedCount += len;
+			}
+			// some connections end a body cut by the server like a
+			// complete one, keep the bytes to resume instead
+			int contentLength = conn.getContentLength();
+			if (contentLength >= 0 && received != contentLength)
+				throw new IOException("Truncated at " + received + "/" + contentLength + " bytes: " + conn.getURL());
+			byte[] data;
+			if (partialOut != null) {
+				partialOut.close();
+				data = mPartial.readAll();
+				mPartial.delete();
+			} else {
+				data = baos.toByteArray();
+			}
+			mListener.onStage(LoadTimings.STAGE_DOWNLOAD_END);
+			return data;
+		} finally {
+			// a stream read to the end and closed returns its connection
+			// to the keep-alive pool, the bytes kept so far stay on the
+			// disk to resume later
+			DiskLruCache.closeQuietly(partialOut);
+			DiskLruCache.closeQuietly(is);
+		}
+	}
+
+	/** Returns the first byte of a Content-Range header, -1 if unknown */
+	static long getRangeStart(URLConnection conn) {
+		String contentRange = conn.getHeaderField("Content-Range");
+		if (contentRange == null || !contentRange.startsWith("bytes "))
+			return -1;
+		int dash = contentRange.indexOf('-');
+		if (dash < 0)
+			return -1;
+		try {
+			return Long.parseLong(contentRange.substring(6, dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** Reads an error body to the end so its connection can be reused */
+	static void drainQuietly(InputStream is) {
+		if (is == null)
+			return;
+		try {
+			byte[] buffer = new byte[1024];
+			while (is.read(buffer) != -1) {
+			}
+		} catch (IOException e) {
+		} finally {
+			DiskLruCache.closeQuietly(is);
+		}
+	}
+}
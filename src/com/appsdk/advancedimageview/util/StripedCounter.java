@@ -0,0 +1,42 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter incremented from many threads without contention: each thread
+ * adds to the cell of its stripe, cells a cache line apart, and reading sums
+ * the cells without locking. A read concurrent with updates may miss the
+ * latest of them.
+ */
+final class StripedCounter {
+	/** Longs between two cells, so that they don't share a cache line */
+	private static final int PADDING = 8;
+	private static final int STRIPE_COUNT = getStripeCount();
+
+	private final AtomicLongArray mCells = new AtomicLongArray(STRIPE_COUNT * PADDING);
+
+	private static int getStripeCount() {
+		int count = 1;
+		int target = Math.min(Runtime.getRuntime().availableProcessors() * 2, 16);
+		while (count < target) {
+			count <<= 1;
+		}
+		return count;
+	}
+
+	void increment() {
+		add(1);
+	}
+
+	void add(long delta) {
+		mCells.getAndAdd(((int) Thread.currentThread().getId() & (STRIPE_COUNT - 1)) * PADDING, delta);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			sum += mCells.get(i * PADDING);
+		}
+		return sum;
+	}
+}
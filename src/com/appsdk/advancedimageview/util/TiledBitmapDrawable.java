@@ -0,0 +1,41 @@
+package com.appsdk.advancedimageview.util;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * Drawable of a {@link TiledImageDecoder}: the preview stretched to the
+ * bounds, with the tiles decoded for the current zoom drawn over it. The
+ * zoom and visible area are read from the canvas, so the image follows the
+ * scale type or image matrix of the ImageView displaying it.
+ */
+public class TiledBitmapDrawable extends BitmapDrawable {
+	private final TiledImageDecoder mDecoder;
+
+	TiledBitmapDrawable(Resources res, Bitmap preview, TiledImageDecoder decoder) {
+		super(res, preview);
+		mDecoder = decoder;
+	}
+
+	public TiledImageDecoder getDecoder() {
+		return mDecoder;
+	}
+
+	@Override
+	public int getIntrinsicWidth() {
+		return mDecoder.getImageWidth();
+	}
+
+	@Override
+	public int getIntrinsicHeight() {
+		return mDecoder.getImageHeight();
+	}
+
+	@Override
+	public void draw(Canvas canvas) {
+		super.draw(canvas);
+		mDecoder.drawTiles(canvas, getBounds());
+	}
+}
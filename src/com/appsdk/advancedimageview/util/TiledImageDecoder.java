@@ -0,0 +1,363 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+/**
+ * Decodes a very large local image by tiles with {@link BitmapRegionDecoder},
+ * so that it never has to be decoded whole. A preview of the whole image is
+ * decoded first at about the size of the screen, then only the tiles visible
+ * at the current zoom are decoded, at the sample size matching the zoom.
+ * <p>
+ * Tiles are decoded in parallel on the decode pool of
+ * {@link ImageLoaderEngine}, each thread with its own region decoder, and
+ * kept in a small LRU cache. Must be used from the main thread, see
+ * {@link TiledBitmapDrawable}. Requires API 10.
+ */
+public class TiledImageDecoder {
+	public static final String TAG = "TiledImageDecoder";
+	private static final boolean LOG_ENABLED = false;
+
+	/** Width and height of a tile, in pixels of the decoded tile */
+	private static final int TILE_SIZE = 256;
+	/** The tile cache holds this many screens of pixels */
+	private static final int TILE_CACHE_SCREENS = 5;
+	private static final int MAX_DECODERS = Math.min(ImageLoaderEngine.DEFAULT_DECODE_POOL_SIZE, 4);
+
+	public static interface Callback {
+		/** The preview is decoded, the image can be displayed */
+		public void onPreviewLoaded(TiledBitmapDrawable drawable);
+
+		/** The image can't be decoded by tiles */
+		public void onError(Exception e);
+	}
+
+	private final Context mContext;
+	private final String mPath;
+	private final Handler mHandler;
+	private final MyLruCache<String, Bitmap> mTiles;
+	/** Tile decodes queued or running, by tile key */
+	private final HashMap<String, TileTask> mPending = new HashMap<String, TileTask>();
+	private final HashSet<String> mVisible = new HashSet<String>();
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Matrix mMatrix = new Matrix();
+	private final float[] mMatrixValues = new float[9];
+	private final Rect mClip = new Rect();
+	private final Rect mDst = new Rect();
+
+	/** Region decoders not used by a decode */
+	private final LinkedList<BitmapRegionDecoder> mIdleDecoders = new LinkedList<BitmapRegionDecoder>();
+	private int mDecoderCount;
+	private volatile boolean mRecycled;
+
+	private int mImageWidth;
+	private int mImageHeight;
+	private int mPreviewSampleSize;
+	private TiledBitmapDrawable mDrawable;
+
+	public TiledImageDecoder(Context context, String path) {
+		mContext = context;
+		mPath = path;
+		mHandler = ImageLoaderEngine.getInstance().getMainThreadHandler();
+		DisplayMetrics dm = context.getResources().getDisplayMetrics();
+		mTiles = new MyLruCache<String, Bitmap>(Math.max(1, TILE_CACHE_SCREENS * dm.widthPixels * dm.heightPixels * 4)) {
+			@Override
+			protected int sizeOf(String key, Bitmap value) {
+				return value.getRowBytes() * value.getHeight();
+			}
+		};
+	}
+
+	/**
+	 * Opens the image and decodes its preview on the decode pool, so that it
+	 * fits in {@code maxWidth} x {@code maxHeight}, or the screen if 0.
+	 */
+	public void open(final int maxWidth, final int maxHeight, final Callback callback) {
+		Runnable openTask = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BitmapRegionDecoder decoder = obtainDecoder();
+					final Bitmap preview;
+					try {
+						mImageWidth = decoder.getWidth();
+						mImageHeight = decoder.getHeight();
+						DisplayMetrics dm = mContext.getResources().getDisplayMetrics();
+						int width = maxWidth > 0 ? maxWidth : dm.widthPixels;
+						int height = maxHeight > 0 ? maxHeight : dm.heightPixels;
+						int sampleSize = 1;
+						while (mImageWidth / sampleSize > width || mImageHeight / sampleSize > height) {
+							sampleSize *= 2;
+						}
+						mPreviewSampleSize = sampleSize;
+						BitmapFactory.Options opts = new BitmapFactory.Options();
+						opts.inSampleSize = sampleSize;
+						preview = decoder.decodeRegion(new Rect(0, 0, mImageWidth, mImageHeight), opts);
+					} finally {
+						releaseDecoder(decoder);
+					}
+					if (preview == null)
+						throw new IOException("Unable to decode " + mPath);
+					if (LOG_ENABLED)
+						Log.d(TAG, "Opened " + mPath + " " + mImageWidth + "x" + mImageHeight + ", preview sample " + mPreviewSampleSize);
+					mHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							if (mRecycled)
+								return;
+							mDrawable = new TiledBitmapDrawable(mContext.getResources(), preview, TiledImageDecoder.this);
+							callback.onPreviewLoaded(mDrawable);
+						}
+					});
+				} catch (final Exception e) {
+					postError(callback, e);
+				} catch (OutOfMemoryError e) {
+					postError(callback, new Exception("OutOfMemoryError"));
+				}
+			}
+		};
+		try {
+			ImageLoaderEngine.getInstance().getDecodeExecutor().execute(openTask);
+		} catch (RejectedExecutionException e) {
+			postError(callback, e);
+		}
+	}
+
+	private void postError(final Callback callback, final Exception e) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (!mRecycled)
+					callback.onError(e);
+			}
+		});
+	}
+
+	public int getImageWidth() {
+		return mImageWidth;
+	}
+
+	public int getImageHeight() {
+		return mImageHeight;
+	}
+
+	/**
+	 * Draws the tiles covering the visible part of {@code bounds}, the area
+	 * the whole image is drawn to, and requests the missing ones. Tiles are
+	 * only needed once the zoom shows more detail than the preview has.
+	 */
+	void drawTiles(Canvas canvas, Rect bounds) {
+		if (mRecycled || mImageWidth <= 0 || bounds.width() <= 0 || bounds.height() <= 0)
+			return;
+		// screen pixels per image pixel, from the transform of the view
+		canvas.getMatrix(mMatrix);
+		mMatrix.getValues(mMatrixValues);
+		float canvasScale = (float) Math.sqrt(mMatrixValues[Matrix.MSCALE_X] * mMatrixValues[Matrix.MSCALE_X] + mMatrixValues[Matrix.MSKEW_Y] * mMatrixValues[Matrix.MSKEW_Y]);
+		float scale = (float) bounds.width() / mImageWidth;
+		float screenScale = canvasScale * scale;
+		int sampleSize = 1;
+		while (screenScale > 0 && sampleSize * 2 * screenScale <= 1) {
+			sampleSize *= 2;
+		}
+		mVisible.clear();
+		if (sampleSize < mPreviewSampleSize && canvas.getClipBounds(mClip) && mClip.intersect(bounds)) {
+			int tileSize = TILE_SIZE * sampleSize;
+			int left = (int) ((mClip.left - bounds.left) / scale);
+			int top = (int) ((mClip.top - bounds.top) / scale);
+			int right = (int) Math.ceil((mClip.right - bounds.left) / scale);
+			int bottom = (int) Math.ceil((mClip.bottom - bounds.top) / scale);
+			int firstColumn = Math.max(0, left / tileSize);
+			int lastColumn = Math.min((mImageWidth - 1) / tileSize, right / tileSize);
+			int firstRow = Math.max(0, top / tileSize);
+			int lastRow = Math.min((mImageHeight - 1) / tileSize, bottom / tileSize);
+			for (int row = firstRow; row <= lastRow; row++) {
+				for (int column = firstColumn; column <= lastColumn; column++) {
+					String key = sampleSize + ":" + column + ":" + row;
+					mVisible.add(key);
+					Bitmap tile = mTiles.get(key);
+					if (tile != null) {
+						int tileLeft = column * tileSize;
+						int tileTop = row * tileSize;
+						int tileRight = Math.min(tileLeft + tileSize, mImageWidth);
+						int tileBottom = Math.min(tileTop + tileSize, mImageHeight);
+						mDst.set(bounds.left + Math.round(tileLeft * scale), bounds.top + Math.round(tileTop * scale), bounds.left + Math.round(tileRight * scale), bounds.top + Math.round(tileBottom * scale));
+						canvas.drawBitmap(tile, null, mDst, mPaint);
+					} else if (!mPending.containsKey(key)) {
+						requestTile(key, sampleSize, column, row);
+					}
+				}
+			}
+		}
+		cancelInvisibleTiles();
+	}
+
+	private void requestTile(String key, int sampleSize, int column, int row) {
+		int tileSize = TILE_SIZE * sampleSize;
+		Rect region = new Rect(column * tileSize, row * tileSize, Math.min((column + 1) * tileSize, mImageWidth), Math.min((row + 1) * tileSize, mImageHeight));
+		TileTask task = new TileTask(key, region, sampleSize);
+		mPending.put(key, task);
+		try {
+			task.mExecutor = ImageLoaderEngine.getInstance().getDecodeExecutor();
+			task.mExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			mPending.remove(key);
+		}
+	}
+
+	/** Takes the tiles scrolled or zoomed away out of the decode queue */
+	private void cancelInvisibleTiles() {
+		for (Iterator<Map.Entry<String, TileTask>> i = mPending.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, TileTask> entry = i.next();
+			if (!mVisible.contains(entry.getKey()) && entry.getValue().mExecutor.remove(entry.getValue()))
+				i.remove();
+		}
+	}
+
+	/** Drops every decoded tile, the preview is kept */
+	public void evictTiles() {
+		mTiles.evictAll();
+		cancelInvisibleTiles();
+	}
+
+	/**
+	 * Stops decoding, drops the tiles and closes the region decoders. The
+	 * decoder can't be used anymore.
+	 */
+	public void recycle() {
+		mRecycled = true;
+		mVisible.clear();
+		evictTiles();
+		synchronized (mIdleDecoders) {
+			for (BitmapRegionDecoder decoder : mIdleDecoders) {
+				decoder.recycle();
+			}
+			mIdleDecoders.clear();
+			mIdleDecoders.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns a region decoder for the current thread, a new one if every
+	 * decoder is busy and the limit is not reached.
+	 */
+	private BitmapRegionDecoder obtainDecoder() throws IOException {
+		synchronized (mIdleDecoders) {
+			while (true) {
+				if (mRecycled)
+					throw new IOException("Decoder recycled");
+				if (!mIdleDecoders.isEmpty())
+					return mIdleDecoders.removeFirst();
+				if (mDecoderCount < MAX_DECODERS)
+					break;
+				try {
+					mIdleDecoders.wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+			}
+			mDecoderCount++;
+		}
+		try {
+			return BitmapRegionDecoder.newInstance(mPath, false);
+		} catch (IOException e) {
+			synchronized (mIdleDecoders) {
+				mDecoderCount--;
+			}
+			throw e;
+		}
+	}
+
+	private void releaseDecoder(BitmapRegionDecoder decoder) {
+		synchronized (mIdleDecoders) {
+			if (mRecycled) {
+				decoder.recycle();
+				mDecoderCount--;
+			} else {
+				mIdleDecoders.addLast(decoder);
+			}
+			mIdleDecoders.notify();
+		}
+	}
+
+	private final class TileTask implements Runnable, LoadQueue.Prioritized {
+		private final String mKey;
+		private final Rect mRegion;
+		private final int mSampleSize;
+		/** Newest tiles first, they are the ones scrolled into view */
+		private final long mSequence = LoadQueue.nextSequence();
+		private ThreadPoolExecutor mExecutor;
+
+		TileTask(String key, Rect region, int sampleSize) {
+			mKey = key;
+			mRegion = region;
+			mSampleSize = sampleSize;
+		}
+
+		@Override
+		public int getPriority() {
+			return ImageLoadRequest.PRIORITY_VISIBLE;
+		}
+
+		@Override
+		public long getSequence() {
+			return mSequence;
+		}
+
+		@Override
+		public void run() {
+			Bitmap tile = null;
+			boolean outOfMemory = false;
+			try {
+				BitmapRegionDecoder decoder = obtainDecoder();
+				try {
+					BitmapFactory.Options opts = new BitmapFactory.Options();
+					opts.inSampleSize = mSampleSize;
+					tile = decoder.decodeRegion(mRegion, opts);
+				} finally {
+					releaseDecoder(decoder);
+				}
+			} catch (Exception e) {
+				if (LOG_ENABLED)
+					Log.d(TAG, "Unable to decode tile " + mKey + " of " + mPath);
+			} catch (OutOfMemoryError e) {
+				outOfMemory = true;
+			}
+			final Bitmap result = tile;
+			final boolean trim = outOfMemory;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					mPending.remove(mKey);
+					if (mRecycled)
+						return;
+					if (trim) {
+						// give back tile memory only, the image cache is kept
+						mTiles.trimToSize(mTiles.size() / 2);
+					} else if (result != null) {
+						mTiles.put(mKey, result);
+						if (mDrawable != null)
+							mDrawable.invalidateSelf();
+					}
+				}
+			});
+		}
+	}
+}
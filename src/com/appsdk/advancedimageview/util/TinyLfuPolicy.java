@@ -0,0 +1,207 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The W-TinyLFU policy: a new entry goes to a small LRU window. An entry
+ * pushed out of the window while the cache is full becomes a candidate for
+ * the main cache: it is only admitted if it was requested more often than
+ * the entry the main cache would evict, otherwise the candidate is evicted.
+ * Once the cache fits again the remaining candidates are admitted. Request
+ * frequencies are estimated by a small count-min sketch that is halved
+ * periodically, so old popularity fades.
+ * <p>
+ * The main cache is a segmented LRU: entries hit while on probation are
+ * protected, the protected segment takes up to 80% of the main cache.
+ */
+public final class TinyLfuPolicy<K> implements EvictionPolicy<K> {
+	private static final int WINDOW_PERCENT = 1;
+	private static final int PROTECTED_PERCENT = 80;
+
+	private final FrequencySketch mSketch = new FrequencySketch();
+	/** Least recently used first in each segment */
+	private final LinkedHashMap<K, Integer> mWindow = new LinkedHashMap<K, Integer>(16, 0.75f, true);
+	private final LinkedHashMap<K, Integer> mProbation = new LinkedHashMap<K, Integer>(16, 0.75f, true);
+	private final LinkedHashMap<K, Integer> mProtected = new LinkedHashMap<K, Integer>(16, 0.75f, true);
+	/** Entries moved out of the window and not admitted yet, oldest first */
+	private final LinkedHashMap<K, Integer> mCandidates = new LinkedHashMap<K, Integer>();
+	/** Size of every entry tracked, the size of the cache */
+	private int mSize;
+	private int mMaxSize;
+	private int mWindowSize;
+	private int mProtectedSize;
+	private int mMaxWindowSize;
+	private int mMaxProtectedSize;
+
+	@Override
+	public void setMaxSize(int maxSize) {
+		mMaxSize = maxSize;
+		// the window holds at least a large bitmap or two
+		mMaxWindowSize = Math.max((int) ((long) maxSize * WINDOW_PERCENT / 100), maxSize / 16);
+		mMaxProtectedSize = (int) ((long) (maxSize - mMaxWindowSize) * PROTECTED_PERCENT / 100);
+		trimWindow();
+		trimProtected();
+		admitCandidates();
+	}
+
+	@Override
+	public void onAdd(K key, int size) {
+		mSketch.increment(key);
+		mWindow.put(key, size);
+		mWindowSize += size;
+		mSize += size;
+		trimWindow();
+	}
+
+	@Override
+	public void onAccess(K key) {
+		mSketch.increment(key);
+		if (mWindow.get(key) != null)
+			return;
+		Integer size = mProbation.remove(key);
+		if (size != null) {
+			// requested again, it earned its place
+			mCandidates.remove(key);
+			mProtected.put(key, size);
+			mProtectedSize += size;
+			trimProtected();
+			return;
+		}
+		mProtected.get(key);
+	}
+
+	@Override
+	public void onRemove(K key, boolean evicted) {
+		Integer size = mWindow.remove(key);
+		if (size != null) {
+			mWindowSize -= size;
+		} else if ((size = mProtected.remove(key)) != null) {
+			mProtectedSize -= size;
+		} else {
+			size = mProbation.remove(key);
+			mCandidates.remove(key);
+		}
+		if (size != null)
+			mSize -= size;
+		admitCandidates();
+	}
+
+	@Override
+	public K selectVictim() {
+		K victim = getMainVictim();
+		if (!mCandidates.isEmpty()) {
+			K candidate = mCandidates.keySet().iterator().next();
+			mCandidates.remove(candidate);
+			if (victim == null || mSketch.frequency(candidate) <= mSketch.frequency(victim))
+				return candidate;
+			// the candidate is admitted and the main victim goes
+			return victim;
+		}
+		if (victim != null)
+			return victim;
+		return mWindow.isEmpty() ? null : mWindow.keySet().iterator().next();
+	}
+
+	/** Returns the entry the main cache would evict, not a candidate */
+	private K getMainVictim() {
+		for (K key : mProbation.keySet()) {
+			if (!mCandidates.containsKey(key))
+				return key;
+		}
+		return mProtected.isEmpty() ? null : mProtected.keySet().iterator().next();
+	}
+
+	@Override
+	public List<K> keys() {
+		List<K> keys = new ArrayList<K>(mProbation.size() + mProtected.size() + mWindow.size());
+		keys.addAll(mProbation.keySet());
+		keys.addAll(mProtected.keySet());
+		keys.addAll(mWindow.keySet());
+		return keys;
+	}
+
+	/** Moves the entries that don't fit the window to probation as candidates */
+	private void trimWindow() {
+		while (mWindowSize > mMaxWindowSize && mWindow.size() > 1) {
+			K key = mWindow.keySet().iterator().next();
+			Integer size = mWindow.remove(key);
+			mWindowSize -= size;
+			mProbation.put(key, size);
+			// no contest if nothing has to be evicted to keep it
+			if (mSize > mMaxSize)
+				mCandidates.put(key, size);
+		}
+	}
+
+	/**
+	 * Admits the candidates that didn't have to contest an entry of the main
+	 * cache, once the cache fits its maximum size
+	 */
+	private void admitCandidates() {
+		if (mSize <= mMaxSize)
+			mCandidates.clear();
+	}
+
+	/** Moves the least recently used protected entries back to probation */
+	private void trimProtected() {
+		while (mProtectedSize > mMaxProtectedSize && mProtected.size() > 1) {
+			K key = mProtected.keySet().iterator().next();
+			Integer size = mProtected.remove(key);
+			mProtectedSize -= size;
+			mProbation.put(key, size);
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4 bit counters: 4 rows, the estimate of a key is
+	 * its smallest counter. Every counter is halved after a sample of
+	 * increments, so the estimates follow recent requests.
+	 */
+	private static final class FrequencySketch {
+		private static final int WIDTH = 1024;
+		private static final int MAX_COUNT = 15;
+		private static final int SAMPLE_SIZE = 10 * WIDTH;
+		private static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+		private final byte[][] mRows = new byte[SEEDS.length][WIDTH];
+		private int mIncrements;
+
+		void increment(Object key) {
+			int hash = key.hashCode();
+			for (int i = 0; i < SEEDS.length; i++) {
+				byte[] row = mRows[i];
+				int index = indexOf(hash, i);
+				if (row[index] < MAX_COUNT)
+					row[index]++;
+			}
+			if (++mIncrements >= SAMPLE_SIZE)
+				age();
+		}
+
+		int frequency(Object key) {
+			int hash = key.hashCode();
+			int frequency = MAX_COUNT;
+			for (int i = 0; i < SEEDS.length; i++) {
+				frequency = Math.min(frequency, mRows[i][indexOf(hash, i)]);
+			}
+			return frequency;
+		}
+
+		private static int indexOf(int hash, int row) {
+			int h = (hash + SEEDS[row]) * SEEDS[row];
+			h ^= h >>> 16;
+			return h & (WIDTH - 1);
+		}
+
+		private void age() {
+			for (byte[] row : mRows) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = (byte) (row[i] >> 1);
+				}
+			}
+			mIncrements /= 2;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.appsdk.advancedimageview.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The 2Q policy, resistant to scans: a new entry goes to a FIFO queue that
+ * takes a quarter of the cache and is evicted first. Only an entry requested
+ * again after leaving it, which its key is remembered for, goes to the main
+ * LRU queue. A scroll through many images seen once only churns the FIFO
+ * queue, the images requested over and over stay in the main queue.
+ */
+public final class TwoQueuePolicy<K> implements EvictionPolicy<K> {
+	/** Share of the cache for the entries seen once, in percent */
+	private static final int IN_PERCENT = 25;
+	/** Total size of the remembered evicted entries, in percent of the cache */
+	private static final int OUT_PERCENT = 50;
+
+	/** Entries seen once, oldest first */
+	private final LinkedHashMap<K, Integer> mIn = new LinkedHashMap<K, Integer>();
+	/** Keys evicted from mIn, oldest first, with their size */
+	private final LinkedHashMap<K, Integer> mOut = new LinkedHashMap<K, Integer>();
+	/** Entries requested again, least recently used first */
+	private final LinkedHashMap<K, Integer> mMain = new LinkedHashMap<K, Integer>(16, 0.75f, true);
+	private int mInSize;
+	private int mOutSize;
+	private int mMaxInSize;
+	private int mMaxOutSize;
+
+	@Override
+	public void setMaxSize(int maxSize) {
+		mMaxInSize = (int) ((long) maxSize * IN_PERCENT / 100);
+		mMaxOutSize = (int) ((long) maxSize * OUT_PERCENT / 100);
+		trimOut();
+	}
+
+	@Override
+	public void onAdd(K key, int size) {
+		Integer outSize = mOut.remove(key);
+		if (outSize != null) {
+			// requested again after it left the FIFO queue
+			mOutSize -= outSize;
+			mMain.put(key, size);
+		} else {
+			mIn.put(key, size);
+			mInSize += size;
+		}
+	}
+
+	@Override
+	public void onAccess(K key) {
+		// hits in the FIFO queue are not counted, they are often
+		// correlated: the same view drawn again
+		mMain.get(key);
+	}
+
+	@Override
+	public void onRemove(K key, boolean evicted) {
+		Integer size = mIn.remove(key);
+		if (size != null) {
+			mInSize -= size;
+			if (evicted) {
+				mOut.put(key, size);
+				mOutSize += size;
+				trimOut();
+			}
+		} else {
+			mMain.remove(key);
+		}
+	}
+
+	@Override
+	public K selectVictim() {
+		if (!mIn.isEmpty() && (mInSize > mMaxInSize || mMain.isEmpty()))
+			return mIn.keySet().iterator().next();
+		if (!mMain.isEmpty())
+			return mMain.keySet().iterator().next();
+		return null;
+	}
+
+	@Override
+	public List<K> keys() {
+		List<K> keys = new ArrayList<K>(mIn.size() + mMain.size());
+		keys.addAll(mIn.keySet());
+		keys.addAll(mMain.keySet());
+		return keys;
+	}
+
+	private void trimOut() {
+		Iterator<Map.Entry<K, Integer>> i = mOut.entrySet().iterator();
+		while (mOutSize > mMaxOutSize && i.hasNext()) {
+			mOutSize -= i.next().getValue();
+			i.remove();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.appsdk.advancedimageview.util;
+
+/**
+ * Key of a variant of an image in {@link BitmapCache}: the url or path of the
+ * image, the size it was requested at and the transformation applied to it.
+ * Views showing the same image at different sizes get different variants
+ * instead of replacing each other's bitmap.
+ * <p>
+ * The sample size isn't part of the key, it follows from the requested size
+ * and the image and isn't known before the image is read. It is recorded
+ * with each cached variant, see
+ * {@link BitmapCache#addVariantToMemCache}.
+ */
+public final class VariantKey {
+	private final String mSource;
+	private final int mThumbnailWidth;
+	private final int mTargetWidth;
+	private final int mTargetHeight;
+	private final String mTransformation;
+	private final String mKey;
+
+	/**
+	 * @param source
+	 *            url or path of the image
+	 * @param thumbnailWidth
+	 *            exact width of the bitmap, 0 if it's decoded at the target
+	 *            size
+	 * @param targetWidth
+	 *            minimal width of the bitmap, 0 if it doesn't matter
+	 * @param targetHeight
+	 *            minimal height of the bitmap, 0 if it doesn't matter
+	 * @param transformation
+	 *            name and parameters of the transformation applied to the
+	 *            decoded bitmap, null if none
+	 */
+	public VariantKey(String source, int thumbnailWidth, int targetWidth, int targetHeight, String transformation) {
+		if (source == null)
+			throw new NullPointerException("source == null");
+		mSource = source;
+		mThumbnailWidth = thumbnailWidth;
+		mTargetWidth = thumbnailWidth > 0 ? thumbnailWidth : targetWidth;
+		mTargetHeight = thumbnailWidth > 0 ? 0 : targetHeight;
+		mTransformation = transformation;
+		StringBuilder key = new StringBuilder(source.length() + 24);
+		key.append(source).append('#');
+		if (thumbnailWidth > 0)
+			key.append('w').append(thumbnailWidth);
+		else
+			key.append(mTargetWidth).append('x').append(mTargetHeight);
+		if (transformation != null)
+			key.append('#').append(transformation);
+		mKey = key.toString();
+	}
+
+	/** Returns the url or path of the image */
+	public String getSource() {
+		return mSource;
+	}
+
+	public int getThumbnailWidth() {
+		return mThumbnailWidth;
+	}
+
+	public int getTargetWidth() {
+		return mTargetWidth;
+	}
+
+	public int getTargetHeight() {
+		return mTargetHeight;
+	}
+
+	public String getTransformation() {
+		return mTransformation;
+	}
+
+	/** Returns the key of the variant in the memory cache */
+	public String getKey() {
+		return mKey;
+	}
+
+	/** Whether both variants went through the same transformation */
+	boolean isSameTransformation(VariantKey other) {
+		return mTransformation == null ? other.mTransformation == null : mTransformation.equals(other.mTransformation);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof VariantKey && mKey.equals(((VariantKey) o).mKey);
+	}
+
+	@Override
+	public int hashCode() {
+		return mKey.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return mKey;
+	}
+}
@@ -0,0 +1,430 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Micro-benchmarks of the pure Java parts of the library: the memory caches
+ * under 1 to 16 threads, the hashing of urls, the derivation and building
+ * of cache keys and the load queue, and a model of the peak memory of
+ * decoding a thumbnail. Plain Java like {@link CacheSimulator} and kept
+ * under tools/, out of the library; run it on a desktop JVM with the
+ * classes of the library and of tools/:
+ *
+ * <pre>
+ * java -server -cp bin/classes:tools-bin com.appsdk.advancedimageview.util.Benchmarks [filter] [seconds]
+ * </pre>
+ *
+ * Only the benchmarks whose name contains {@code filter} run. Each one is
+ * warmed up for a second so the JIT compiles it, then measured for
+ * {@code seconds}, 2 by default. Results go through a sink the JIT can't
+ * optimize away. Compare runs made on the same machine only.
+ */
+public final class Benchmarks {
+	private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16 };
+	private static final int KEY_COUNT = 4096;
+	/** Fits a quarter of the keys, puts of random keys evict */
+	private static final int CACHE_SIZE = KEY_COUNT / 4;
+	private static final long WARMUP_MS = 1000;
+
+	/** An operation measured, called in a loop by each thread */
+	private interface Operation {
+		/**
+		 * @param thread
+		 *            index of the calling thread
+		 * @param i
+		 *            number of the call on this thread
+		 * @return anything computed, so the call isn't optimized away
+		 */
+		int run(int thread, int i);
+	}
+
+	private static final String[] mUrls = new String[KEY_COUNT];
+	/** Random indexes into mUrls, a power of two so they wrap with a mask */
+	private static final int[] mIndexes = new int[1 << 16];
+	private static volatile int mSink;
+	/** Tells the threads of the running measure to stop */
+	private static volatile boolean mStopped;
+
+	static {
+		for (int i = 0; i < KEY_COUNT; i++) {
+			mUrls[i] = "http://img.example.com/photos/2014/05/" + Integer.toHexString(i * 0x9e3779b1) + "_large.jpg";
+		}
+		long seed = 42;
+		for (int i = 0; i < mIndexes.length; i++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			// skewed like real traffic: small indexes are requested more
+			double uniform = (seed >>> 11) / (double) (1L << 53);
+			mIndexes[i] = (int) (KEY_COUNT * uniform * uniform);
+		}
+	}
+
+	private Benchmarks() {
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		String filter = args.length > 0 ? args[0] : "";
+		long durationMs = args.length > 1 ? Long.parseLong(args[1]) * 1000 : 2000;
+		run(filter, durationMs, System.out);
+	}
+
+	/** Runs the benchmarks whose name contains {@code filter} */
+	public static void run(String filter, long durationMs, PrintStream out) throws InterruptedException {
+		out.println(String.format("%-32s  %7s  %14s  %10s", "benchmark", "threads", "ops/s", "ns/op"));
+		for (int threads : THREAD_COUNTS) {
+			benchmarkCache(filter, "MyLruCache", newMyLruCache(), threads, durationMs, out);
+			benchmarkCache(filter, "ConcurrentLruCache", newConcurrentLruCache(), threads, durationMs, out);
+		}
+		if (matches("MD5.digest", filter)) {
+			final byte[][] urls = new byte[KEY_COUNT][];
+			for (int i = 0; i < KEY_COUNT; i++) {
+				urls[i] = mUrls[i].getBytes();
+			}
+			measure("MD5.digest", 1, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					return new MD5(urls[i & (KEY_COUNT - 1)]).doFinal()[0];
+				}
+			});
+		}
+		if (matches("MessageDigest.asHex", filter)) {
+			final byte[][] digests = new byte[KEY_COUNT][];
+			for (int i = 0; i < KEY_COUNT; i++) {
+				digests[i] = new MD5(mUrls[i]).doFinal();
+			}
+			measure("MessageDigest.asHex", 1, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					return MessageDigest.asHex(digests[i & (KEY_COUNT - 1)]).length();
+				}
+			});
+		}
+		if (matches("MessageDigest.asHex.legacy", filter)) {
+			final byte[][] digests = new byte[KEY_COUNT][];
+			for (int i = 0; i < KEY_COUNT; i++) {
+				digests[i] = new MD5(mUrls[i]).doFinal();
+			}
+			measure("MessageDigest.asHex.legacy", 1, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					return legacyAsHex(digests[i & (KEY_COUNT - 1)]).length();
+				}
+			});
+		}
+		benchmarkKeys(filter, durationMs, out);
+		if (matches("CacheTrace.hashKey", filter)) {
+			measure("CacheTrace.hashKey", 1, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					return (int) CacheTrace.hashKey(mUrls[i & (KEY_COUNT - 1)]);
+				}
+			});
+		}
+		if (matches("VariantKey", filter)) {
+			measure("VariantKey", 1, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					return new VariantKey(mUrls[i & (KEY_COUNT - 1)], 0, 720, 1280, null).getKey().length();
+				}
+			});
+		}
+		if (matches("LoadQueue", filter)) {
+			for (int threads : THREAD_COUNTS) {
+				benchmarkLoadQueue(threads, durationMs, out);
+			}
+		}
+		if (matches("DecodePeak", filter))
+			printDecodePeaks(out);
+	}
+
+	/**
+	 * Prints a model, not a measurement, of the bitmap bytes allocated at the
+	 * peak of decoding a thumbnail. BitmapFactory doesn't run on a desktop
+	 * JVM, so the bytes are computed from the bitmap sizes each path
+	 * allocates: the old getThumbnail decoded at a fixed inSampleSize of 2
+	 * then scaled to the width with Bitmap.createBitmap, both bitmaps alive
+	 * at once, while {@link BitmapDecoder#decodeByteArrayToWidth} picks the
+	 * sample size from the bounds and scales in the same pass. The encoded
+	 * bytes, held by both paths alike, are left out.
+	 */
+	private static void printDecodePeaks(PrintStream out) {
+		int[][] images = { { 4000, 3000 }, { 3264, 2448 }, { 1920, 1080 }, { 1280, 960 }, { 800, 600 } };
+		int[] widths = { 240, 480, 720 };
+		out.println(String.format("%-32s  %6s  %12s  %10s", "DecodePeak model image/width", "sample", "getThumbnail", "one pass"));
+		for (int[] image : images) {
+			for (int width : widths) {
+				int sampleSize = BitmapDecoder.calculateInSampleSize(image[0], image[1], width, 0);
+				long halfBytes = 4L * ((image[0] + 1) / 2) * ((image[1] + 1) / 2);
+				long scaledBytes = 4L * width * Math.max(1, Math.round(image[1] * (float) width / image[0]));
+				// the half size bitmap is alive until its scaled copy is drawn
+				long twoPass = halfBytes + scaledBytes;
+				out.println(String.format("%-32s  %6d  %10dKB  %8dKB", image[0] + "x" + image[1] + " to " + width, sampleSize, twoPass / 1024, scaledBytes / 1024));
+			}
+		}
+	}
+
+	/**
+	 * Measures the derivation of a cache key from an url: the allocating MD5
+	 * path, with the hex encoding it had before KeyHasher, KeyHasher into a
+	 * string, a char[] and in binary, and java.security.MessageDigest
+	 */
+	private static void benchmarkKeys(String filter, long durationMs, PrintStream out) throws InterruptedException {
+		if (matches("key.md5.legacy", filter)) {
+			measure("key.md5.legacy", 1, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					return legacyAsHex(MD5.digest(mUrls[i & (KEY_COUNT - 1)])).length();
+				}
+			});
+		}
+		if (matches("key.md5", filter)) {
+			measure("key.md5", 1, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					return MD5.asHex(MD5.digest(mUrls[i & (KEY_COUNT - 1)])).length();
+				}
+			});
+		}
+		final KeyHasher hasher = new KeyHasher();
+		if (matches("key.KeyHasher.hashKey", filter)) {
+			measure("key.KeyHasher.hashKey", 1, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					return hasher.hashKey(mUrls[i & (KEY_COUNT - 1)]).length();
+				}
+			});
+		}
+		if (matches("key.KeyHasher.hashKey(char[])", filter)) {
+			final char[] hex = new char[KeyHasher.HEX_LENGTH];
+			measure("key.KeyHasher.hashKey(char[])", 1, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					hasher.hashKey(mUrls[i & (KEY_COUNT - 1)], hex, 0);
+					return hex[0];
+				}
+			});
+		}
+		if (matches("key.KeyHasher.digest", filter)) {
+			final byte[] digest = new byte[KeyHasher.DIGEST_LENGTH];
+			measure("key.KeyHasher.digest", 1, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					hasher.digest(mUrls[i & (KEY_COUNT - 1)], digest, 0);
+					return digest[0];
+				}
+			});
+		}
+		if (matches("key.java.security", filter)) {
+			final java.security.MessageDigest md5;
+			try {
+				md5 = java.security.MessageDigest.getInstance("MD5");
+			} catch (java.security.NoSuchAlgorithmException e) {
+				out.println("key.java.security: " + e);
+				return;
+			}
+			final char[] hex = new char[KeyHasher.HEX_LENGTH];
+			measure("key.java.security", 1, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					byte[] digest = md5.digest(mUrls[i & (KEY_COUNT - 1)].getBytes());
+					MessageDigest.asHex(digest, 0, digest.length, hex, 0);
+					return hex[0];
+				}
+			});
+		}
+	}
+
+	/** The hex encoding of MessageDigest before it used a lookup table */
+	private static String legacyAsHex(byte[] buf) {
+		String str = new String();
+		for (int i = 0; i < buf.length; i++) {
+			str += Integer.toHexString((buf[i] >>> 4) & 0x0F);
+			str += Integer.toHexString(buf[i] & 0x0F);
+		}
+		return str;
+	}
+
+	private static boolean matches(String name, String filter) {
+		return name.contains(filter);
+	}
+
+	private static MyLruCache<String, Integer> newMyLruCache() {
+		MyLruCache<String, Integer> cache = new MyLruCache<String, Integer>(CACHE_SIZE);
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			cache.put(mUrls[i], i);
+		}
+		return cache;
+	}
+
+	private static ConcurrentLruCache<String, Integer> newConcurrentLruCache() {
+		ConcurrentLruCache<String, Integer> cache = new ConcurrentLruCache<String, Integer>(CACHE_SIZE, new LruPolicy<String>());
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			cache.put(mUrls[i], i);
+		}
+		return cache;
+	}
+
+	/**
+	 * Measures gets of cached keys, puts of random keys that evict, a mix of
+	 * 90% gets and 10% puts, and the contention of MyLruCache against
+	 * ConcurrentLruCache: gets on every thread but one that keeps putting
+	 */
+	private static void benchmarkCache(String filter, String name, final Object cache, int threads, long durationMs, PrintStream out) throws InterruptedException {
+		final boolean concurrent = cache instanceof ConcurrentLruCache;
+		if (matches(name + ".get", filter)) {
+			measure(name + ".get", threads, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					Integer value = get(cache, concurrent, mUrls[(i + thread * 7) & (CACHE_SIZE - 1)]);
+					return value != null ? value : 0;
+				}
+			});
+		}
+		if (matches(name + ".put", filter)) {
+			measure(name + ".put", threads, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					int index = mIndexes[(i + thread * 4099) & (mIndexes.length - 1)];
+					put(cache, concurrent, mUrls[index], index);
+					return index;
+				}
+			});
+		}
+		if (matches(name + ".mixed", filter)) {
+			measure(name + ".mixed", threads, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					int index = mIndexes[(i + thread * 4099) & (mIndexes.length - 1)];
+					if (i % 10 == 0) {
+						put(cache, concurrent, mUrls[index], index);
+						return index;
+					}
+					Integer value = get(cache, concurrent, mUrls[index]);
+					return value != null ? value : 0;
+				}
+			});
+		}
+		if (threads > 1 && matches(name + ".contended", filter)) {
+			measure(name + ".contended", threads, durationMs, out, new Operation() {
+				@Override
+				public int run(int thread, int i) {
+					int index = mIndexes[(i + thread * 4099) & (mIndexes.length - 1)];
+					// a loader thread adds decoded bitmaps while the others,
+					// and the UI thread, read
+					if (thread == 0) {
+						put(cache, concurrent, mUrls[index], index);
+						return index;
+					}
+					Integer value = get(cache, concurrent, mUrls[index]);
+					return value != null ? value : 0;
+				}
+			});
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Integer get(Object cache, boolean concurrent, String key) {
+		return concurrent ? ((ConcurrentLruCache<String, Integer>) cache).get(key) : ((MyLruCache<String, Integer>) cache).get(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void put(Object cache, boolean concurrent, String key, Integer value) {
+		if (concurrent)
+			((ConcurrentLruCache<String, Integer>) cache).put(key, value);
+		else
+			((MyLruCache<String, Integer>) cache).put(key, value);
+	}
+
+	/** Measures an offer then a poll of loads of alternating priorities */
+	private static void benchmarkLoadQueue(int threads, long durationMs, PrintStream out) throws InterruptedException {
+		final LoadQueue queue = new LoadQueue(64);
+		measure("LoadQueue.offer+poll", threads, durationMs, out, new Operation() {
+			@Override
+			public int run(int thread, int i) {
+				final int priority = (i & 1) == 0 ? ImageLoadRequest.PRIORITY_VISIBLE : ImageLoadRequest.PRIORITY_PREFETCH;
+				final long sequence = LoadQueue.nextSequence();
+				queue.offer(new QueuedLoad(priority, sequence));
+				Runnable polled = queue.poll();
+				return polled != null ? 1 : 0;
+			}
+		});
+	}
+
+	private static final class QueuedLoad implements Runnable, LoadQueue.Prioritized {
+		private final int mPriority;
+		private final long mSequence;
+
+		QueuedLoad(int priority, long sequence) {
+			mPriority = priority;
+			mSequence = sequence;
+		}
+
+		@Override
+		public void run() {
+		}
+
+		@Override
+		public int getPriority() {
+			return mPriority;
+		}
+
+		@Override
+		public long getSequence() {
+			return mSequence;
+		}
+	}
+
+	/**
+	 * Runs {@code operation} on {@code threads} threads, for a warmup then
+	 * for {@code durationMs}, and prints the throughput
+	 */
+	private static void measure(String name, int threads, long durationMs, PrintStream out, Operation operation) throws InterruptedException {
+		run(threads, WARMUP_MS, operation);
+		long ops = run(threads, durationMs, operation);
+		double opsPerSecond = ops * 1000.0 / durationMs;
+		// the time a thread spends per operation
+		double nsPerOp = ops > 0 ? durationMs * 1000000.0 * threads / ops : 0;
+		out.println(String.format("%-32s  %7d  %14.0f  %10.1f", name, threads, opsPerSecond, nsPerOp));
+	}
+
+	/** Returns the number of operations completed by every thread */
+	private static long run(int threads, long durationMs, final Operation operation) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[] counts = new long[threads];
+		Thread[] workers = new Thread[threads];
+		mStopped = false;
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			workers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					int sink = 0;
+					int i = 0;
+					while (!mStopped) {
+						// read the flag every 256 calls only
+						for (int j = 0; j < 256; j++) {
+							sink += operation.run(thread, i++);
+						}
+					}
+					mSink += sink;
+					counts[thread] = i;
+				}
+			}, "Benchmark-" + t);
+			workers[t].start();
+		}
+		start.countDown();
+		Thread.sleep(durationMs);
+		mStopped = true;
+		long ops = 0;
+		for (int t = 0; t < threads; t++) {
+			workers[t].join();
+			ops += counts[t];
+		}
+		return ops;
+	}
+}
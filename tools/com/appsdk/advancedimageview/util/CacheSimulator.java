@@ -0,0 +1,182 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+
+/**
+ * Replays a {@link CacheTrace} against the eviction policies at several
+ * budgets and prints their hit ratios and the bytes they would have saved.
+ * Plain Java and kept under tools/, out of the library; run it on a desktop
+ * JVM with the classes of the library and of tools/:
+ *
+ * <pre>
+ * java -cp bin/classes:tools-bin com.appsdk.advancedimageview.util.CacheSimulator trace.bin [budgetMB...]
+ * </pre>
+ *
+ * A lookup of the trace is a hit if the simulated cache holds the key. A
+ * miss of a bitmap the app had in cache is added to the simulated cache
+ * right away, as the app would have decoded it; other misses are added by
+ * the put that follows them in the trace.
+ * <p>
+ * The bytes of a lookup are the size of its bitmap: the size recorded by a
+ * hit of the app, or else by the puts of the key. A lookup of a key never
+ * put before counts its bytes once the put that follows it is replayed.
+ */
+public final class CacheSimulator {
+	private static final int[] DEFAULT_BUDGETS_MB = { 4, 8, 16, 32, 64 };
+	private static final String[] POLICIES = { "MyLruCache", "LRU", "2Q", "W-TinyLFU" };
+
+	/** The subset of the cache API the replay needs */
+	private interface SimulatedCache {
+		/** Returns the size of the entry of {@code key}, null if not held */
+		Integer get(Long key);
+
+		void put(Long key, Integer size);
+	}
+
+	/** Results of one replay */
+	public static final class Result {
+		public long mRequests;
+		public long mHits;
+		public long mRequestedBytes;
+		public long mSavedBytes;
+
+		public double getHitRatio() {
+			return mRequests > 0 ? (double) mHits / mRequests : 0;
+		}
+
+		public double getByteHitRatio() {
+			return mRequestedBytes > 0 ? (double) mSavedBytes / mRequestedBytes : 0;
+		}
+	}
+
+	private CacheSimulator() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: CacheSimulator <trace file> [budget in MB...]");
+			System.exit(1);
+		}
+		int[] budgets = DEFAULT_BUDGETS_MB;
+		if (args.length > 1) {
+			budgets = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				budgets[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+		print(new File(args[0]), budgets, System.out);
+	}
+
+	/** Replays {@code trace} for every policy and budget, in MB */
+	public static void print(File trace, int[] budgetsMb, PrintStream out) throws IOException {
+		out.println(String.format("%8s  %-10s  %9s  %9s  %14s", "budget", "policy", "hit ratio", "byte hits", "bytes saved"));
+		for (int budgetMb : budgetsMb) {
+			for (String policy : POLICIES) {
+				Result result = replay(trace, policy, budgetMb * 1024 * 1024);
+				out.println(String.format("%6dMB  %-10s  %8.2f%%  %8.2f%%  %14d", budgetMb, policy, result.getHitRatio() * 100, result.getByteHitRatio() * 100, result.mSavedBytes));
+			}
+		}
+	}
+
+	/**
+	 * Replays {@code trace} against a cache of {@code budget} bytes
+	 *
+	 * @param policy
+	 *            one of "MyLruCache", "LRU", "2Q" and "W-TinyLFU"
+	 */
+	public static Result replay(File trace, String policy, int budget) throws IOException {
+		SimulatedCache cache = createCache(policy, budget);
+		Result result = new Result();
+		// the last size known for each key, and the lookups of keys whose
+		// size isn't known yet
+		HashMap<Long, Integer> sizes = new HashMap<Long, Integer>();
+		HashMap<Long, Integer> unsized = new HashMap<Long, Integer>();
+		CacheTrace.Reader reader = new CacheTrace.Reader(trace);
+		try {
+			while (reader.next()) {
+				Long key = reader.getKey();
+				int size = reader.getSize();
+				if (reader.getOp() == CacheTrace.OP_GET) {
+					result.mRequests++;
+					if (size > 0)
+						sizes.put(key, size);
+					Integer knownSize = sizes.get(key);
+					if (knownSize != null) {
+						result.mRequestedBytes += knownSize;
+					} else {
+						Integer count = unsized.get(key);
+						unsized.put(key, count != null ? count + 1 : 1);
+					}
+					Integer heldSize = cache.get(key);
+					if (heldSize != null) {
+						result.mHits++;
+						result.mSavedBytes += heldSize;
+					} else if (size > 0) {
+						cache.put(key, size);
+					}
+				} else if (reader.getOp() == CacheTrace.OP_PUT) {
+					sizes.put(key, size);
+					Integer count = unsized.remove(key);
+					if (count != null)
+						result.mRequestedBytes += (long) count * size;
+					if (cache.get(key) == null)
+						cache.put(key, size);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	private static SimulatedCache createCache(String policy, int budget) {
+		if ("MyLruCache".equals(policy)) {
+			final MyLruCache<Long, Integer> cache = new MyLruCache<Long, Integer>(budget) {
+				@Override
+				protected int sizeOf(Long key, Integer value) {
+					return value;
+				}
+			};
+			return new SimulatedCache() {
+				@Override
+				public Integer get(Long key) {
+					return cache.get(key);
+				}
+
+				@Override
+				public void put(Long key, Integer size) {
+					cache.put(key, size);
+				}
+			};
+		}
+		EvictionPolicy<Long> evictionPolicy;
+		if ("LRU".equals(policy))
+			evictionPolicy = new LruPolicy<Long>();
+		else if ("2Q".equals(policy))
+			evictionPolicy = new TwoQueuePolicy<Long>();
+		else if ("W-TinyLFU".equals(policy))
+			evictionPolicy = new TinyLfuPolicy<Long>();
+		else
+			throw new IllegalArgumentException("Unknown policy " + policy);
+		final ConcurrentLruCache<Long, Integer> cache = new ConcurrentLruCache<Long, Integer>(budget, evictionPolicy) {
+			@Override
+			protected int sizeOf(Long key, Integer value) {
+				return value;
+			}
+		};
+		return new SimulatedCache() {
+			@Override
+			public Integer get(Long key) {
+				return cache.get(key);
+			}
+
+			@Override
+			public void put(Long key, Integer size) {
+				cache.put(key, size);
+			}
+		};
+	}
+}
@@ -0,0 +1,295 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks of {@link HostLimiter}, then a run against a slow server. Plain Java
+ * like {@link Benchmarks} and kept under tools/, out of the library; run it
+ * on a desktop JVM with the classes of the library and of tools/:
+ *
+ * <pre>
+ * java -cp bin/classes:tools-bin com.appsdk.advancedimageview.util.HostLimiterCheck [delayMs]
+ * </pre>
+ *
+ * The checks park and resume fetches by hand, so they are deterministic, and
+ * throw an AssertionError on failure. The run fetches from two local servers
+ * through 4 threads, the slow one answering after {@code delayMs}, 1000 by
+ * default. Without a limit the fetches of the slow server hold every thread
+ * and the fetches of the fast one wait behind them; with 2 fetches per host
+ * the fast ones complete right away.
+ */
+public final class HostLimiterCheck {
+	private static final int THREAD_COUNT = 4;
+	private static final int FETCH_COUNT = 8;
+	private static final int MAX_PER_HOST = 2;
+
+	private HostLimiterCheck() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int delayMs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		checkPermits();
+		checkResumeOrder();
+		checkRemove();
+		System.out.println("checks ok");
+		runSlowServer(delayMs, System.out);
+	}
+
+	/** A fetch resumed by hand, it records its resume instead of running */
+	private static final class ParkedFetch implements HostLimiter.Fetch, LoadQueue.Prioritized {
+		final String mName;
+		final int mPriority;
+		final long mSequence = LoadQueue.nextSequence();
+		final ArrayList<String> mResumed;
+
+		ParkedFetch(String name, int priority, ArrayList<String> resumed) {
+			mName = name;
+			mPriority = priority;
+			mResumed = resumed;
+		}
+
+		@Override
+		public void run() {
+		}
+
+		@Override
+		public void resume() {
+			mResumed.add(mName);
+		}
+
+		@Override
+		public int getPriority() {
+			return mPriority;
+		}
+
+		@Override
+		public long getSequence() {
+			return mSequence;
+		}
+	}
+
+	/** Fetches beyond the limit of a host park, other hosts are not affected */
+	static void checkPermits() {
+		ArrayList<String> resumed = new ArrayList<String>();
+		HostLimiter limiter = new HostLimiter(2);
+		check(limiter.acquire("a", new ParkedFetch("a1", 0, resumed)), "first permit of a");
+		check(limiter.acquire("a", new ParkedFetch("a2", 0, resumed)), "second permit of a");
+		check(!limiter.acquire("a", new ParkedFetch("a3", 0, resumed)), "third fetch of a parks");
+		check(limiter.acquire("b", new ParkedFetch("b1", 0, resumed)), "b is not limited by a");
+		check(limiter.getActiveCount("a") == 2, "2 fetches of a run");
+		check(limiter.getParkedCount() == 1, "1 fetch parked");
+		limiter.release("a");
+		check(resumed.size() == 1 && "a3".equals(resumed.get(0)), "a3 resumed");
+		check(limiter.getParkedCount() == 0, "nothing parked");
+		check(limiter.getActiveCount("a") == 1, "the permit is free for a3");
+
+		// one permit per url, like the url lock of AsyncNetImageLoader
+		HostLimiter urls = new HostLimiter(1);
+		check(urls.acquire("http://h/1.jpg", new ParkedFetch("thumbnail", 0, resumed)), "first variant fetches");
+		check(!urls.acquire("http://h/1.jpg", new ParkedFetch("full", 0, resumed)), "second variant parks");
+		check(urls.acquire("http://h/2.jpg", new ParkedFetch("other", 0, resumed)), "other url fetches");
+	}
+
+	/** The best priority resumes first, the newest among equal priorities */
+	static void checkResumeOrder() {
+		ArrayList<String> resumed = new ArrayList<String>();
+		HostLimiter limiter = new HostLimiter(1);
+		check(limiter.acquire("h", new ParkedFetch("running", ImageLoadRequest.PRIORITY_VISIBLE, resumed)), "permit");
+		ParkedFetch[] parked = { new ParkedFetch("prefetch", ImageLoadRequest.PRIORITY_PREFETCH, resumed),
+				new ParkedFetch("visible1", ImageLoadRequest.PRIORITY_VISIBLE, resumed),
+				new ParkedFetch("visible2", ImageLoadRequest.PRIORITY_VISIBLE, resumed) };
+		for (ParkedFetch fetch : parked) {
+			check(!limiter.acquire("h", fetch), fetch.mName + " parks");
+		}
+		for (int i = 0; i < parked.length; i++) {
+			limiter.release("h");
+			// the resumed fetch runs again and takes the permit
+			ParkedFetch next = parked[parked.length - 1 - i];
+			check(resumed.size() == i + 1, "one fetch resumed per release");
+			check(limiter.acquire("h", next), resumed.get(i) + " takes the permit");
+		}
+		check("visible2".equals(resumed.get(0)) && "visible1".equals(resumed.get(1)) && "prefetch".equals(resumed.get(2)), "resume order " + resumed);
+		limiter.release("h");
+		check(limiter.getActiveCount("h") == 0, "no permit left");
+	}
+
+	/** An aborted fetch leaves the queue and is never resumed */
+	static void checkRemove() {
+		ArrayList<String> resumed = new ArrayList<String>();
+		HostLimiter limiter = new HostLimiter(1);
+		check(limiter.acquire("h", new ParkedFetch("running", 0, resumed)), "permit");
+		ParkedFetch aborted = new ParkedFetch("aborted", 0, resumed);
+		check(!limiter.acquire("h", aborted), "parks");
+		check(limiter.remove("h", aborted), "removed");
+		check(!limiter.remove("h", aborted), "removed once");
+		limiter.release("h");
+		check(resumed.isEmpty(), "removed fetch not resumed");
+		check(limiter.getActiveCount("h") == 0 && limiter.getParkedCount() == 0, "host forgotten");
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition)
+			throw new AssertionError(what);
+	}
+
+	/** A fetch of a local server, parked on the limiter like ImageLoadTask */
+	private static final class ServerFetch implements HostLimiter.Fetch {
+		final URL mUrl;
+		final String mHost;
+		final HostLimiter mLimiter;
+		final ThreadPoolExecutor mExecutor;
+		final CountDownLatch mDone;
+		volatile long mEndTime;
+
+		ServerFetch(URL url, HostLimiter limiter, ThreadPoolExecutor executor, CountDownLatch done) {
+			mUrl = url;
+			// both servers are on localhost, the port tells them apart
+			mHost = url.getAuthority();
+			mLimiter = limiter;
+			mExecutor = executor;
+			mDone = done;
+		}
+
+		@Override
+		public void run() {
+			if (mLimiter != null && !mLimiter.acquire(mHost, this))
+				return;
+			try {
+				HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+				InputStream in = connection.getInputStream();
+				try {
+					byte[] buffer = new byte[4096];
+					while (in.read(buffer) != -1) {
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				if (mLimiter != null)
+					mLimiter.release(mHost);
+			}
+			mEndTime = System.nanoTime();
+			mDone.countDown();
+		}
+
+		@Override
+		public void resume() {
+			mExecutor.execute(this);
+		}
+	}
+
+	/**
+	 * Fetches {@link #FETCH_COUNT} images from a server answering after
+	 * {@code delayMs} then as many from a server answering at once, with and
+	 * without a limit per host, and prints when they completed
+	 */
+	static void runSlowServer(int delayMs, PrintStream out) throws Exception {
+		ServerSocket slow = startServer(delayMs);
+		ServerSocket fast = startServer(0);
+		try {
+			out.println(String.format("%-14s  %14s  %14s", "limit", "fast done", "all done"));
+			for (int limit : new int[] { 0, MAX_PER_HOST }) {
+				long[] times = runFetches(slow.getLocalPort(), fast.getLocalPort(), limit > 0 ? new HostLimiter(limit) : null);
+				out.println(String.format("%-14s  %12dms  %12dms", limit > 0 ? limit + " per host" : "none", times[0], times[1]));
+				if (limit > 0)
+					check(times[0] < delayMs, "fast fetches wait for the slow server");
+			}
+		} finally {
+			slow.close();
+			fast.close();
+		}
+	}
+
+	/** Returns when the last fast fetch and the last fetch completed, in ms */
+	private static long[] runFetches(int slowPort, int fastPort, HostLimiter limiter) throws Exception {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		CountDownLatch done = new CountDownLatch(FETCH_COUNT * 2);
+		ServerFetch[] fetches = new ServerFetch[FETCH_COUNT * 2];
+		for (int i = 0; i < fetches.length; i++) {
+			int port = i < FETCH_COUNT ? slowPort : fastPort;
+			fetches[i] = new ServerFetch(new URL("http://127.0.0.1:" + port + "/" + i + ".jpg"), limiter, executor, done);
+		}
+		long start = System.nanoTime();
+		for (ServerFetch fetch : fetches) {
+			executor.execute(fetch);
+		}
+		done.await();
+		executor.shutdown();
+		long fastEnd = 0;
+		long end = 0;
+		for (int i = 0; i < fetches.length; i++) {
+			if (i >= FETCH_COUNT)
+				fastEnd = Math.max(fastEnd, fetches[i].mEndTime);
+			end = Math.max(end, fetches[i].mEndTime);
+		}
+		return new long[] { (fastEnd - start) / 1000000, (end - start) / 1000000 };
+	}
+
+	/** Starts a server answering every request with 16KB after {@code delayMs} */
+	private static ServerSocket startServer(final int delayMs) throws IOException {
+		final ServerSocket server = new ServerSocket(0);
+		Thread acceptor = new Thread("server:" + server.getLocalPort()) {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = server.accept();
+						Thread handler = new Thread() {
+							@Override
+							public void run() {
+								serve(socket, delayMs);
+							}
+						};
+						handler.setDaemon(true);
+						handler.start();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return server;
+	}
+
+	private static void serve(Socket socket, int delayMs) {
+		try {
+			InputStream in = socket.getInputStream();
+			// the request ends with an empty line
+			int matched = 0;
+			int b;
+			while (matched < 4 && (b = in.read()) != -1) {
+				matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+			}
+			if (delayMs > 0)
+				Thread.sleep(delayMs);
+			byte[] body = new byte[16 * 1024];
+			OutputStream out = socket.getOutputStream();
+			out.write(("HTTP/1.1 200 OK\r\nContent-Type: image/jpeg\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n").getBytes());
+			out.write(body);
+			out.flush();
+		} catch (Exception e) {
+			// the client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
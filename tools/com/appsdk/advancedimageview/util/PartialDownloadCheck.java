@@ -0,0 +1,240 @@
+package com.appsdk.advancedimageview.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+
+/**
+ * Downloads an image from a local server that drops the connection midway,
+ * resuming through {@link ResumableDownload} like
+ * {@link AsyncNetImageLoader}, then checks the byte budget of the
+ * partial downloads. Plain Java like {@link Benchmarks}, kept under tools/ so
+ * it stays out of the library; run it on a desktop JVM with the classes of
+ * the library and of tools/:
+ *
+ * <pre>
+ * java -cp bin/classes:tools-bin com.appsdk.advancedimageview.util.PartialDownloadCheck [drops]
+ * </pre>
+ *
+ * The server drops the first {@code drops} responses, 3 by default, after a
+ * third of the image. Each attempt resumes where the previous one stopped,
+ * so about the size of the image is transferred in total instead of once
+ * per attempt. Throws an AssertionError on failure.
+ */
+public final class PartialDownloadCheck {
+	private static final int IMAGE_LENGTH = 1024 * 1024;
+	private static final String ETAG = "\"v1\"";
+	private static final int MAX_ATTEMPTS = 10;
+
+	/** The image served, each byte derived from its offset */
+	private static final byte[] mImage = new byte[IMAGE_LENGTH];
+	/** Responses left to drop */
+	private static volatile int mDrops;
+
+	static {
+		for (int i = 0; i < IMAGE_LENGTH; i++) {
+			mImage[i] = (byte) (i * 31 + (i >> 8));
+		}
+	}
+
+	private PartialDownloadCheck() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int drops = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		File dir = createTempDir();
+		try {
+			runDroppingServer(dir, drops, System.out);
+			checkBudget(dir);
+			System.out.println("checks ok");
+		} finally {
+			DiskLruCache.deleteContents(dir);
+			dir.delete();
+		}
+	}
+
+	static void runDroppingServer(File cacheDir, int drops, PrintStream out) throws Exception {
+		ServerSocket server = startServer();
+		try {
+			String url = "http://127.0.0.1:" + server.getLocalPort() + "/large.jpg";
+			mDrops = drops;
+			long received = 0;
+			byte[] data = null;
+			int attempts = 0;
+			while (data == null && attempts < MAX_ATTEMPTS) {
+				attempts++;
+				PartialDownload partial = PartialDownload.get(cacheDir, url, 4L * IMAGE_LENGTH);
+				long resumeFrom = partial.getLength();
+				long[] count = new long[1];
+				try {
+					data = download(url, partial, count);
+				} catch (IOException e) {
+					out.println("attempt " + attempts + " broken at " + (resumeFrom + count[0]) + ": " + e);
+				}
+				received += count[0];
+			}
+			out.println(String.format("%d attempts, %d bytes received for %d", attempts, received, IMAGE_LENGTH));
+			check(data != null, "downloaded");
+			check(Arrays.equals(data, mImage), "resumed bytes match");
+			check(attempts == drops + 1, "one attempt per drop");
+			check(received == IMAGE_LENGTH, "no byte received twice");
+			check(PartialDownload.get(cacheDir, url, IMAGE_LENGTH).getLength() == 0, "partial download deleted once complete");
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Downloads {@code url} through {@link ResumableDownload}, the download
+	 * of AsyncNetImageLoader
+	 *
+	 * @param count
+	 *            receives the number of body bytes read
+	 */
+	private static byte[] download(final String url, PartialDownload partial, long[] count) throws IOException {
+		ResumableDownload download = new ResumableDownload(new ResumableDownload.Listener() {
+			@Override
+			public URLConnection openConnection() throws IOException {
+				return new URL(url).openConnection();
+			}
+
+			@Override
+			public void onConnection(URLConnection conn, Closeable stream) {
+			}
+
+			@Override
+			public void onStage(int stage) {
+			}
+
+			@Override
+			public boolean isAborted() {
+				return false;
+			}
+		}, partial, Long.MAX_VALUE);
+		try {
+			return download.run();
+		} finally {
+			count[0] = download.getReceivedCount();
+		}
+	}
+
+	/** The oldest partial downloads are deleted to stay within the budget */
+	static void checkBudget(File cacheDir) throws IOException {
+		long maxBytes = 3 * PartialDownload.MIN_LENGTH;
+		check(PartialDownload.get(cacheDir, "http://h/too-large.jpg", maxBytes).restart(ETAG, maxBytes + 1) == null, "larger than the budget");
+		for (int i = 0; i < 5; i++) {
+			PartialDownload partial = PartialDownload.get(cacheDir, "http://h/" + i + ".jpg", maxBytes);
+			OutputStream os = partial.restart(ETAG, PartialDownload.MIN_LENGTH);
+			check(os != null, "room made for " + i);
+			try {
+				os.write(mImage, 0, (int) PartialDownload.MIN_LENGTH);
+			} finally {
+				os.close();
+			}
+		}
+		long size = 0;
+		File[] files = new File(cacheDir, "partial").listFiles();
+		for (File file : files) {
+			size += file.length();
+		}
+		check(size <= maxBytes, "partial downloads take " + size + " bytes, budget " + maxBytes);
+		check(PartialDownload.get(cacheDir, "http://h/4.jpg", maxBytes).getLength() == PartialDownload.MIN_LENGTH, "newest kept");
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition)
+			throw new AssertionError(what);
+	}
+
+	private static File createTempDir() throws IOException {
+		File dir = File.createTempFile("partial", "");
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Unable to create " + dir);
+		return dir;
+	}
+
+	/**
+	 * Starts a server of {@link #mImage} that honors Range and If-Range, and
+	 * drops the connection after a third of the body while mDrops is positive
+	 */
+	private static ServerSocket startServer() throws IOException {
+		final ServerSocket server = new ServerSocket(0);
+		Thread acceptor = new Thread("server:" + server.getLocalPort()) {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						serve(server.accept());
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return server;
+	}
+
+	private static void serve(Socket socket) {
+		try {
+			String request = readRequest(socket.getInputStream());
+			String range = getHeader(request, "Range");
+			String ifRange = getHeader(request, "If-Range");
+			int start = 0;
+			if (range != null && range.startsWith("bytes=") && (ifRange == null || ETAG.equals(ifRange)))
+				start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+			StringBuilder headers = new StringBuilder();
+			headers.append(start > 0 ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+			headers.append("Content-Type: image/jpeg\r\nETag: ").append(ETAG).append("\r\nAccept-Ranges: bytes\r\n");
+			if (start > 0)
+				headers.append("Content-Range: bytes ").append(start).append('-').append(IMAGE_LENGTH - 1).append('/').append(IMAGE_LENGTH).append("\r\n");
+			headers.append("Content-Length: ").append(IMAGE_LENGTH - start).append("\r\nConnection: close\r\n\r\n");
+			OutputStream out = socket.getOutputStream();
+			out.write(headers.toString().getBytes("US-ASCII"));
+			int end = IMAGE_LENGTH;
+			if (mDrops > 0) {
+				mDrops--;
+				end = Math.min(end, start + IMAGE_LENGTH / 3);
+			}
+			out.write(mImage, start, end - start);
+			out.flush();
+		} catch (IOException e) {
+			// the client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/** Reads the request line and headers, up to the empty line */
+	private static String readRequest(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1) {
+			sb.append((char) b);
+			if (sb.length() >= 4 && sb.lastIndexOf("\r\n\r\n") == sb.length() - 4)
+				break;
+		}
+		return sb.toString();
+	}
+
+	private static String getHeader(String request, String name) {
+		for (String line : request.split("\r\n")) {
+			int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name))
+				return line.substring(colon + 1).trim();
+		}
+		return null;
+	}
+}